@@ -0,0 +1,141 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Index local des fichiers sauvegardés par le client (backup_index.txt), qui remplace
+// sent_files.txt: pour chaque nom sur le serveur, la taille, la date de modification et l'empreinte
+// SHA-256 du fichier tel qu'il a été envoyé.
+//
+// Une sauvegarde ne renvoie pas un fichier dont la taille et la date n'ont pas changé, sans même
+// le relire. Si seule la date a changé (fichier recopié, touch...), l'empreinte décide.
+//
+// Format: une ligne "taille<TAB>date en ms<TAB>empreinte<TAB>nom" par fichier; l'empreinte est
+// vide quand elle n'est pas connue. Les noms de sent_files.txt sont repris au premier chargement,
+// sans taille ni date: ces fichiers seront renvoyés une fois.
+public class BackupIndex {
+    public static final String DEFAULT_FILE = "backup_index.txt";
+    private static final String LEGACY_FILE = "sent_files.txt";
+
+    public static final class Record {
+        private final long size;
+        private final long modified;
+        // SHA-256 en hexadécimal, ou null si inconnue
+        private final String hash;
+
+        public Record(long size, long modified, String hash) {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+        }
+
+        public long getSize() { return size; }
+        public long getModified() { return modified; }
+        public String getHash() { return hash; }
+    }
+
+    private final Path file;
+    private final TreeMap<String, Record> records = new TreeMap<>();
+
+    private BackupIndex(Path file) {
+        this.file = file;
+    }
+
+    public static BackupIndex load(Path file) throws IOException {
+        BackupIndex index = new BackupIndex(file);
+        if (Files.exists(file)) {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t", 4);
+                    if (fields.length < 4) {
+                        throw new IOException("Ligne invalide dans " + file + ": " + line);
+                    }
+                    index.records.put(fields[3], new Record(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                            fields[2].isEmpty() ? null : fields[2]));
+                }
+            }
+        } else {
+            Path legacy = file.resolveSibling(LEGACY_FILE);
+            if (Files.exists(legacy)) {
+                for (String name : Files.readAllLines(legacy, StandardCharsets.UTF_8)) {
+                    if (!name.isEmpty()) {
+                        index.records.put(name, new Record(-1, -1, null));
+                    }
+                }
+            }
+        }
+        return index;
+    }
+
+    public synchronized Record get(String name) {
+        return records.get(name);
+    }
+
+    public synchronized void put(String name, Record record) {
+        records.put(name, record);
+    }
+
+    public synchronized void remove(String name) {
+        records.remove(name);
+    }
+
+    public synchronized List<String> names() {
+        return new ArrayList<>(records.keySet());
+    }
+
+    // Vrai si path est toujours tel qu'il a été envoyé sous ce nom. Sans changement de taille ni de
+    // date, le fichier n'est pas relu; si seule la date a changé, l'index est mis à jour quand le
+    // contenu est le même.
+    public boolean isUnchanged(String name, Path path, long size, long modified) throws IOException {
+        Record record = get(name);
+        if (record == null || record.getSize() != size) {
+            return false;
+        }
+        if (record.getModified() == modified) {
+            return true;
+        }
+        if (record.getHash() == null || !record.getHash().equals(hash(path))) {
+            return false;
+        }
+        put(name, new Record(size, modified, record.getHash()));
+        return true;
+    }
+
+    // Réécrit l'index en entier, à côté puis à sa place: un arrêt pendant l'écriture laisse l'ancien
+    public synchronized void save() throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Record> entry : records.entrySet()) {
+                Record record = entry.getValue();
+                writer.write(record.getSize() + "\t" + record.getModified() + "\t"
+                        + (record.getHash() == null ? "" : record.getHash()) + "\t" + entry.getKey());
+                writer.newLine();
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static String hash(Path path) throws IOException {
+        MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] buffer = new byte[ChunkedOutputStream.DEFAULT_CHUNK_SIZE];
+        try (InputStream in = Files.newInputStream(path)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                sha256.update(buffer, 0, n);
+            }
+        }
+        return HexFormat.of().formatHex(sha256.digest());
+    }
+}
@@ -0,0 +1,301 @@
+import java.io.*;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Index en mémoire des fichiers sauvegardés (nom -> taille, partitions).
+// Chargé une seule fois depuis storage.txt; LIST, DOWNLOAD et DELETE sont servis depuis la mémoire.
+//
+// Format de storage.txt: une ligne "nom;taille;nombreDePartitions" suivie d'une ligne
+// par partition contenant son chemin (répertoire du serveur secondaire + nom de la partition).
+// Une partition répliquée a plusieurs chemins sur sa ligne, séparés par une tabulation; le
+// premier est la copie principale. La ligne se termine par "crc32c=<8 chiffres hexadécimaux>"
+// (après une tabulation) quand la somme de contrôle de la partition est connue. De même, la ligne
+// du fichier se termine par "date=<millisecondes>" quand sa date d'envoi est connue.
+//
+// LIST_FILES est servi depuis une liste triée par nom (voir listing), reconstruite seulement
+// quand un fichier a été ajouté, renvoyé ou supprimé depuis la dernière demande.
+public class Catalog {
+    // Somme de contrôle inconnue: partition envoyée avant les sommes de contrôle
+    public static final long NO_CHECKSUM = -1;
+    // Date d'envoi inconnue: fichier envoyé avant que les dates soient gardées
+    public static final long NO_DATE = 0;
+    private static final String CHECKSUM_PREFIX = "crc32c=";
+    private static final String DATE_PREFIX = "date=";
+
+    public static final class Entry {
+        private final String fileName;
+        private final long size;
+        // Copies de chaque partition, dans l'ordre du fichier (la copie principale en premier)
+        private final List<List<String>> replicas;
+        private final List<String> partitionPaths;
+        // CRC32C de chaque partition telle qu'elle est stockée (après compression), ou NO_CHECKSUM:
+        // vérifié à chaque lecture. Toutes les copies d'une partition ont le même contenu.
+        private final List<Long> checksums;
+        // Identifie ce contenu du fichier pour la reprise d'un téléchargement: change quand le fichier
+        // est renvoyé, pas quand ses partitions sont déplacées. Non persisté: après un redémarrage du
+        // serveur, un téléchargement interrompu repart du début.
+        private final long version;
+        // Date d'envoi (millisecondes depuis 1970), ou NO_DATE
+        private final long modified;
+
+        public Entry(String fileName, long size, List<String> partitionPaths) {
+            this(fileName, size, partitionPaths, null, null, newVersion(), System.currentTimeMillis());
+        }
+
+        private Entry(String fileName, long size, List<String> partitionPaths, List<List<String>> replicas, List<Long> checksums,
+                      long version, long modified) {
+            this.fileName = fileName;
+            this.size = size;
+            this.version = version;
+            this.modified = modified;
+            if (replicas == null) {
+                replicas = new ArrayList<>(partitionPaths.size());
+                for (String path : partitionPaths) {
+                    replicas.add(List.of(path));
+                }
+            }
+            List<List<String>> copies = new ArrayList<>(replicas.size());
+            List<String> primaries = new ArrayList<>(replicas.size());
+            for (List<String> paths : replicas) {
+                if (paths.isEmpty()) {
+                    throw new IllegalArgumentException("Partition sans copie: " + fileName);
+                }
+                copies.add(List.copyOf(paths));
+                primaries.add(paths.get(0));
+            }
+            this.replicas = List.copyOf(copies);
+            this.partitionPaths = List.copyOf(primaries);
+            if (checksums == null) {
+                checksums = Collections.nCopies(replicas.size(), NO_CHECKSUM);
+            } else if (checksums.size() != replicas.size()) {
+                throw new IllegalArgumentException("Sommes de contrôle incomplètes: " + fileName);
+            }
+            this.checksums = List.copyOf(checksums);
+        }
+
+        // Chaque partition avec toutes ses copies (voir getReplicas)
+        public static Entry withReplicas(String fileName, long size, List<List<String>> replicas) {
+            return new Entry(fileName, size, null, replicas, null, newVersion(), System.currentTimeMillis());
+        }
+
+        // checksums: CRC32C de chaque partition, ou NO_CHECKSUM
+        public static Entry withReplicas(String fileName, long size, List<List<String>> replicas, List<Long> checksums) {
+            return new Entry(fileName, size, null, replicas, checksums, newVersion(), System.currentTimeMillis());
+        }
+
+        // Fichier relu depuis storage.txt ou le journal, envoyé à la date modified (ou NO_DATE)
+        public static Entry restored(String fileName, long size, List<List<String>> replicas, List<Long> checksums, long modified) {
+            return new Entry(fileName, size, null, replicas, checksums, newVersion(), modified);
+        }
+
+        // Même contenu, partitions déplacées (rééquilibrage)
+        public Entry relocated(List<List<String>> replicas) {
+            return new Entry(fileName, size, null, replicas, checksums, version, modified);
+        }
+
+        private static long newVersion() {
+            return ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+        }
+
+        public String getFileName() { return fileName; }
+        public long getSize() { return size; }
+        // Copie principale de chaque partition
+        public List<String> getPartitionPaths() { return partitionPaths; }
+        public List<List<String>> getReplicas() { return replicas; }
+        public long getVersion() { return version; }
+        public long getModified() { return modified; }
+
+        public List<String> getReplicas(int partition) {
+            return replicas.get(partition);
+        }
+
+        public List<Long> getChecksums() { return checksums; }
+
+        public long getChecksum(int partition) {
+            return checksums.get(partition);
+        }
+
+        // Tous les chemins, copies comprises
+        public List<String> getAllPaths() {
+            List<String> paths = new ArrayList<>();
+            for (List<String> copies : replicas) {
+                paths.addAll(copies);
+            }
+            return paths;
+        }
+
+        // Répertoires des serveurs secondaires qui hébergent les partitions
+        public List<String> getLocations() {
+            List<String> locations = new ArrayList<>(partitionPaths.size());
+            for (String path : partitionPaths) {
+                int slash = path.lastIndexOf('/');
+                locations.add(slash < 0 ? "" : path.substring(0, slash));
+            }
+            return locations;
+        }
+
+        public void writeTo(PrintWriter writer) {
+            writer.println(fileName + ";" + size + ";" + replicas.size()
+                    + (modified == NO_DATE ? "" : "\t" + DATE_PREFIX + modified));
+            for (int i = 0; i < replicas.size(); i++) {
+                long checksum = checksums.get(i);
+                writer.println(String.join("\t", replicas.get(i))
+                        + (checksum == NO_CHECKSUM ? "" : "\t" + CHECKSUM_PREFIX + String.format("%08x", checksum)));
+            }
+        }
+    }
+
+    // Liste des fichiers triée par nom, telle qu'à la version donnée du catalogue. Ne change plus
+    // une fois construite: une page est lue sans verrou pendant que le catalogue évolue.
+    public static final class Listing {
+        private final long version;
+        private final List<String> names;
+        private final List<Entry> files;
+
+        private Listing(long version, Collection<Entry> entries) {
+            List<Entry> sorted = new ArrayList<>(entries);
+            sorted.sort(Comparator.comparing(Entry::getFileName));
+            List<String> sortedNames = new ArrayList<>(sorted.size());
+            for (Entry entry : sorted) {
+                sortedNames.add(entry.getFileName());
+            }
+            this.version = version;
+            this.files = List.copyOf(sorted);
+            this.names = List.copyOf(sortedNames);
+        }
+
+        public long getVersion() { return version; }
+        public List<String> getNames() { return names; }
+
+        // Fichiers dont le nom commence par prefix, triés par nom (recherche dichotomique: les noms
+        // qui commencent par prefix se suivent dans la liste triée)
+        public List<Entry> withPrefix(String prefix) {
+            if (prefix.isEmpty()) {
+                return files;
+            }
+            int from = insertionPoint(prefix);
+            int to = from;
+            while (to < names.size() && names.get(to).startsWith(prefix)) {
+                to++;
+            }
+            return files.subList(from, to);
+        }
+
+        private int insertionPoint(String name) {
+            int index = Collections.binarySearch(names, name);
+            return index >= 0 ? index : -index - 1;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    // Change à chaque ajout, envoi ou suppression de fichier, pas quand des partitions sont déplacées.
+    // Tirée au hasard au départ: une version connue d'un client avant un redémarrage du serveur
+    // ne correspond pas à la nouvelle liste.
+    private final AtomicLong version = new AtomicLong(ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE / 2));
+    private Listing listing;
+
+    public static Catalog load(File storageFile) throws IOException {
+        Catalog catalog = new Catalog();
+        if (!storageFile.exists()) {
+            return catalog;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(storageFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.contains(";")) {
+                    continue;
+                }
+                // Le nom peut lui-même contenir ';': la taille et le nombre sont les deux derniers champs
+                // (avant la date)
+                int last = line.lastIndexOf(';');
+                int previous = line.lastIndexOf(';', last - 1);
+                if (previous < 0) {
+                    throw new IOException("Ligne invalide dans " + storageFile + ": " + line);
+                }
+                String fileName = line.substring(0, previous);
+                long modified = NO_DATE;
+                int date = line.lastIndexOf("\t" + DATE_PREFIX);
+                if (date > last) {
+                    modified = Long.parseLong(line.substring(date + 1 + DATE_PREFIX.length()));
+                    line = line.substring(0, date);
+                }
+                long size = Long.parseLong(line.substring(previous + 1, last));
+                int numPartitions = Integer.parseInt(line.substring(last + 1));
+
+                List<List<String>> replicas = new ArrayList<>(numPartitions);
+                List<Long> checksums = new ArrayList<>(numPartitions);
+                for (int i = 0; i < numPartitions; i++) {
+                    String paths = reader.readLine();
+                    if (paths == null) {
+                        throw new EOFException("Partitions manquantes pour " + fileName + " dans " + storageFile);
+                    }
+                    List<String> copies = new ArrayList<>(Arrays.asList(paths.split("\t")));
+                    String field = copies.get(copies.size() - 1);
+                    long checksum = NO_CHECKSUM;
+                    if (copies.size() > 1 && field.startsWith(CHECKSUM_PREFIX)) {
+                        checksum = Long.parseLong(field.substring(CHECKSUM_PREFIX.length()), 16);
+                        copies.remove(copies.size() - 1);
+                    }
+                    replicas.add(copies);
+                    checksums.add(checksum);
+                }
+                // Un fichier renvoyé plusieurs fois: la dernière version remplace les précédentes
+                catalog.put(Entry.restored(fileName, size, replicas, checksums, modified));
+            }
+        }
+        return catalog;
+    }
+
+    public Entry get(String fileName) {
+        return entries.get(fileName);
+    }
+
+    // Retourne l'entrée remplacée (fichier renvoyé sous le même nom), ou null
+    public Entry put(Entry entry) {
+        Entry previous = entries.put(entry.getFileName(), entry);
+        if (previous == null || previous.getVersion() != entry.getVersion()) {
+            version.incrementAndGet();
+        }
+        return previous;
+    }
+
+    public Entry remove(String fileName) {
+        Entry removed = entries.remove(fileName);
+        if (removed != null) {
+            version.incrementAndGet();
+        }
+        return removed;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public Collection<Entry> entries() {
+        return entries.values();
+    }
+
+    public ArrayList<String> fileNames() {
+        return new ArrayList<>(listing().getNames());
+    }
+
+    // Liste triée à jour, reconstruite seulement si le catalogue a changé depuis la précédente.
+    // La version est lue avant les entrées: une liste construite pendant une modification porte
+    // l'ancienne version et sera reconstruite à la demande suivante.
+    public synchronized Listing listing() {
+        long current = version.get();
+        if (listing == null || listing.getVersion() != current) {
+            listing = new Listing(current, entries.values());
+        }
+        return listing;
+    }
+
+    public void writeTo(PrintWriter writer) {
+        for (Entry entry : entries.values()) {
+            entry.writeTo(writer);
+        }
+    }
+}
@@ -0,0 +1,386 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+// Persistance du catalogue: instantané (storage.txt, même format qu'avant) + journal binaire
+// en ajout seul (storage.log).
+//
+// Chaque modification ajoute un enregistrement [type][longueur][données][crc32]. Un seul thread
+// écrit le journal: les enregistrements en attente sont écrits ensemble puis synchronisés sur
+// disque par un seul fsync (group commit). Quand le journal dépasse COMPACTION_THRESHOLD, il est
+// renommé en storage.log.compacting et un nouvel instantané est écrit en arrière-plan.
+//
+// Au démarrage: instantané, puis storage.log.compacting s'il existe, puis storage.log. Les
+// enregistrements sont idempotents, rejouer un journal déjà inclus dans l'instantané est sans effet.
+//
+// Le catalogue en mémoire est modifié avant l'écriture de l'enregistrement. Si l'écriture ou le
+// fsync échoue, les modifications du groupe (et celles arrivées depuis) sont annulées, dans l'ordre
+// inverse, et le journal est tronqué à sa longueur d'avant le groupe: le catalogue reste celui qui
+// est sur disque. Si la troncature échoue aussi, le journal refuse toute nouvelle modification.
+public class CatalogJournal {
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final long COMPACTION_THRESHOLD = 4L * 1024 * 1024;
+
+    private final Path snapshotFile;
+    private final Path journalFile;
+    private final Path compactingFile;
+    private final Consumer<String> log;
+    private final Catalog catalog = new Catalog();
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "catalog-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private FileChannel channel;
+    private volatile boolean compacting;
+    // Erreur qui a laissé le journal dans un état inconnu, ou null
+    private IOException failure;
+
+    private static final class Pending {
+        final byte[] record;
+        // Annule la modification du catalogue si l'enregistrement n'a pas pu être écrit
+        final Runnable undo;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Pending(byte[] record, Runnable undo) {
+            this.record = record;
+            this.undo = undo;
+        }
+    }
+
+    public CatalogJournal(File snapshotFile, Consumer<String> log) {
+        this.snapshotFile = snapshotFile.toPath();
+        this.log = log;
+        this.journalFile = Paths.get(snapshotFile.getPath().replaceFirst("\\.txt$", "") + ".log");
+        this.compactingFile = Paths.get(journalFile + ".compacting");
+    }
+
+    // Recharge l'instantané et rejoue les journaux, puis démarre le thread d'écriture
+    public Catalog open() throws IOException {
+        for (Catalog.Entry entry : Catalog.load(snapshotFile.toFile()).entries()) {
+            catalog.put(entry);
+        }
+        if (Files.exists(compactingFile)) {
+            replay(compactingFile);
+        }
+        long validLength = Files.exists(journalFile) ? replay(journalFile) : 0;
+
+        channel = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        // Un enregistrement incomplet (arrêt brutal pendant une écriture) est tronqué
+        channel.truncate(validLength);
+        channel.position(validLength);
+
+        if (Files.exists(compactingFile)) {
+            compacting = true;
+            compactor.execute(this::compact);
+        }
+
+        Thread writer = new Thread(this::writeLoop, "catalog-journal");
+        writer.setDaemon(true);
+        writer.start();
+        return catalog;
+    }
+
+    // Retourne l'entrée remplacée, ou null
+    public Catalog.Entry put(Catalog.Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream payload = new DataOutputStream(bytes);
+        payload.writeUTF(entry.getFileName());
+        payload.writeLong(entry.getSize());
+        payload.writeInt(entry.getPartitionPaths().size());
+        for (String path : entry.getPartitionPaths()) {
+            payload.writeUTF(path);
+        }
+        // Copies supplémentaires à la suite: les enregistrements écrits avant la réplication
+        // s'arrêtent après les copies principales
+        for (List<String> copies : entry.getReplicas()) {
+            payload.writeInt(copies.size() - 1);
+            for (String path : copies.subList(1, copies.size())) {
+                payload.writeUTF(path);
+            }
+        }
+        // Puis les sommes de contrôle, absentes des enregistrements plus anciens
+        for (long checksum : entry.getChecksums()) {
+            payload.writeLong(checksum);
+        }
+        // Et la date d'envoi
+        payload.writeLong(entry.getModified());
+        byte[] record = encode(PUT, bytes.toByteArray());
+
+        Catalog.Entry previous;
+        Pending pending;
+        // Catalogue et journal sont modifiés dans le même ordre pour tous les threads
+        synchronized (this) {
+            checkUsable();
+            Catalog.Entry replaced = catalog.put(entry);
+            previous = replaced;
+            pending = enqueue(record, () -> {
+                if (catalog.get(entry.getFileName()) != entry) {
+                    return;
+                }
+                if (replaced != null) {
+                    catalog.put(replaced);
+                } else {
+                    catalog.remove(entry.getFileName());
+                }
+            });
+        }
+        await(pending);
+        return previous;
+    }
+
+    public Catalog.Entry remove(String fileName) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeUTF(fileName);
+        byte[] record = encode(DELETE, bytes.toByteArray());
+
+        Catalog.Entry removed;
+        Pending pending;
+        synchronized (this) {
+            checkUsable();
+            Catalog.Entry entry = catalog.remove(fileName);
+            if (entry == null) {
+                return null;
+            }
+            removed = entry;
+            pending = enqueue(record, () -> {
+                if (catalog.get(fileName) == null) {
+                    catalog.put(entry);
+                }
+            });
+        }
+        await(pending);
+        return removed;
+    }
+
+    private Pending enqueue(byte[] record, Runnable undo) {
+        Pending pending = new Pending(record, undo);
+        queue.add(pending);
+        return pending;
+    }
+
+    private void checkUsable() throws IOException {
+        if (failure != null) {
+            throw new IOException("Journal du catalogue inutilisable: " + failure.getMessage(), failure);
+        }
+    }
+
+    private static void await(Pending pending) throws IOException {
+        try {
+            pending.done.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Écriture du journal interrompue");
+        }
+    }
+
+    private static byte[] encode(byte type, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.length + 9);
+        DataOutputStream record = new DataOutputStream(bytes);
+        record.writeByte(type);
+        record.writeInt(payload.length);
+        record.write(payload);
+        record.writeInt((int) crc.getValue());
+        return bytes.toByteArray();
+    }
+
+    private void writeLoop() {
+        List<Pending> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch);
+
+            long start = -1;
+            try {
+                start = channel.position();
+                // Tous les enregistrements en attente partagent la même écriture et le même fsync
+                int length = 0;
+                for (Pending pending : batch) {
+                    length += pending.record.length;
+                }
+                ByteBuffer buffer = ByteBuffer.allocate(length);
+                for (Pending pending : batch) {
+                    buffer.put(pending.record);
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                rollBack(batch, start, e);
+                batch.clear();
+                continue;
+            }
+            for (Pending pending : batch) {
+                pending.done.complete(null);
+            }
+            batch.clear();
+
+            if (!compacting) {
+                try {
+                    if (channel.size() > COMPACTION_THRESHOLD) {
+                        rotate();
+                    }
+                } catch (IOException e) {
+                    log.accept("Erreur de rotation du journal du catalogue: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Groupe non écrit: ses modifications et celles mises en file depuis (appliquées au catalogue
+    // après elles) sont annulées de la dernière à la première, puis le journal retrouve sa longueur
+    // d'avant le groupe, pour qu'un enregistrement écrit en partie ne soit pas rejoué
+    private void rollBack(List<Pending> batch, long start, IOException cause) {
+        synchronized (this) {
+            queue.drainTo(batch);
+            for (int i = batch.size() - 1; i >= 0; i--) {
+                batch.get(i).undo.run();
+            }
+            try {
+                if (start < 0) {
+                    throw cause;
+                }
+                channel.truncate(start);
+                channel.position(start);
+            } catch (IOException e) {
+                failure = cause;
+                log.accept("Journal du catalogue inutilisable, modifications refusées: " + cause.getMessage());
+            }
+        }
+        log.accept("Erreur d'écriture du journal du catalogue, " + batch.size() + " modification(s) annulée(s): " + cause.getMessage());
+        for (Pending pending : batch) {
+            pending.done.completeExceptionally(cause);
+        }
+    }
+
+    // Appelé par le thread d'écriture: le journal courant part en compaction, un nouveau commence
+    private void rotate() throws IOException {
+        channel.close();
+        try {
+            Files.move(journalFile, compactingFile, StandardCopyOption.ATOMIC_MOVE);
+            compacting = true;
+            compactor.execute(this::compact);
+        } finally {
+            // En cas d'échec du renommage, on continue simplement dans le même journal
+            channel = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            channel.position(channel.size());
+        }
+    }
+
+    private void compact() {
+        try {
+            // Toutes les modifications du journal renommé sont déjà dans le catalogue en mémoire
+            Path temporary = Paths.get(snapshotFile + ".tmp");
+            try (FileOutputStream fileOut = new FileOutputStream(temporary.toFile());
+                 PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(fileOut)))) {
+                catalog.writeTo(writer);
+                writer.flush();
+                if (writer.checkError()) {
+                    throw new IOException("Erreur d'écriture de " + temporary);
+                }
+                fileOut.getFD().sync();
+            }
+            Files.move(temporary, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(compactingFile);
+            log.accept("Catalogue compacté: " + catalog.size() + " fichier(s)");
+        } catch (IOException e) {
+            // Le journal renommé est conservé: il sera rejoué au prochain démarrage
+            log.accept("Erreur de compaction du catalogue: " + e.getMessage());
+        } finally {
+            compacting = false;
+        }
+    }
+
+    // Rejoue un journal et retourne la longueur de sa partie valide
+    private long replay(Path file) throws IOException {
+        long valid = 0;
+        long fileSize = Files.size(file);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            while (true) {
+                int type = in.read();
+                if (type < 0) {
+                    break;
+                }
+                byte[] payload;
+                int expectedCrc;
+                try {
+                    int length = in.readInt();
+                    if (length < 0 || length > fileSize - valid) {
+                        break;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    expectedCrc = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(type);
+                crc.update(payload);
+                if ((int) crc.getValue() != expectedCrc) {
+                    break;
+                }
+
+                apply((byte) type, new DataInputStream(new ByteArrayInputStream(payload)));
+                valid += 9 + payload.length;
+            }
+        }
+        return valid;
+    }
+
+    private void apply(byte type, DataInputStream payload) throws IOException {
+        String fileName = payload.readUTF();
+        if (type == PUT) {
+            long size = payload.readLong();
+            int numPartitions = payload.readInt();
+            List<List<String>> replicas = new ArrayList<>(numPartitions);
+            for (int i = 0; i < numPartitions; i++) {
+                List<String> copies = new ArrayList<>();
+                copies.add(payload.readUTF());
+                replicas.add(copies);
+            }
+            if (payload.available() > 0) {
+                for (List<String> copies : replicas) {
+                    int extra = payload.readInt();
+                    for (int j = 0; j < extra; j++) {
+                        copies.add(payload.readUTF());
+                    }
+                }
+            }
+            List<Long> checksums = null;
+            if (payload.available() > 0) {
+                checksums = new ArrayList<>(numPartitions);
+                for (int i = 0; i < numPartitions; i++) {
+                    checksums.add(payload.readLong());
+                }
+            }
+            long modified = payload.available() > 0 ? payload.readLong() : Catalog.NO_DATE;
+            catalog.put(Catalog.Entry.restored(fileName, size, replicas, checksums, modified));
+        } else if (type == DELETE) {
+            catalog.remove(fileName);
+        } else {
+            throw new IOException("Enregistrement de journal inconnu: " + type);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Index des blocs stockés sur les serveurs secondaires (empreinte SHA-256 -> emplacement),
+// avec le nombre de références depuis le catalogue.
+//
+// Un bloc est stocké une seule fois sous le nom "chunk-<empreinte>" (suivi de l'extension de son
+// codec s'il est compressé, voir Codec), quel que soit le nombre de fichiers (ou de versions d'un
+// fichier) qui le contiennent. L'index n'est pas persisté: il est
+// reconstruit au démarrage à partir des chemins du catalogue.
+//
+// Un bloc est supprimé du serveur secondaire quand plus aucun fichier ne le référence. Pendant
+// cette suppression, un envoi qui a besoin du même bloc attend qu'elle soit terminée puis le
+// stocke à nouveau.
+public class ChunkIndex {
+    private static final String PREFIX = "chunk-";
+
+    public static final class Chunk {
+        private final String hash;
+        // Copies du bloc, la principale en premier. Fixé par stored (le codec choisi à l'envoi peut
+        // ajouter une extension, et les copies sont choisies à l'envoi), puis modifié seulement par
+        // le rééquilibrage (move).
+        private volatile List<String> paths;
+        // CRC32C du bloc tel qu'il est stocké (voir Catalog.Entry.getChecksums), fixé par stored
+        private volatile long checksum = Catalog.NO_CHECKSUM;
+        // Terminé quand le bloc est enregistré sur son serveur secondaire
+        private final CompletableFuture<Void> stored = new CompletableFuture<>();
+        private final AtomicBoolean storeClaimed;
+        private int references;
+        private boolean deleting;
+
+        private Chunk(String hash, List<String> paths, boolean alreadyStored) {
+            this.hash = hash;
+            this.paths = paths;
+            this.storeClaimed = new AtomicBoolean(alreadyStored);
+            if (alreadyStored) {
+                stored.complete(null);
+            }
+        }
+
+        public String getHash() { return hash; }
+        public String getPath() { return paths.get(0); }
+        public List<String> getPaths() { return paths; }
+        public long getChecksum() { return checksum; }
+        public CompletableFuture<Void> getStored() { return stored; }
+
+        // Vrai pour un seul appelant: celui qui doit envoyer le bloc au serveur secondaire
+        public boolean claimStore() {
+            return storeClaimed.compareAndSet(false, true);
+        }
+    }
+
+    private final Map<String, Chunk> chunks = new HashMap<>();
+
+    public static String chunkName(String hash) {
+        return PREFIX + hash;
+    }
+
+    public static boolean isChunk(String partitionPath) {
+        return hashOf(partitionPath) != null;
+    }
+
+    private static String hashOf(String partitionPath) {
+        String name = Codec.strip(partitionPath.substring(partitionPath.lastIndexOf('/') + 1));
+        return name.startsWith(PREFIX) ? name.substring(PREFIX.length()) : null;
+    }
+
+    // Compte les références de tous les fichiers du catalogue
+    public synchronized void load(Catalog catalog) {
+        for (Catalog.Entry entry : catalog.entries()) {
+            for (int i = 0; i < entry.getReplicas().size(); i++) {
+                List<String> copies = entry.getReplicas(i);
+                String hash = hashOf(copies.get(0));
+                if (hash != null) {
+                    Chunk chunk = chunks.computeIfAbsent(hash, h -> new Chunk(h, copies, true));
+                    chunk.references++;
+                    if (entry.getChecksum(i) != Catalog.NO_CHECKSUM) {
+                        chunk.checksum = entry.getChecksum(i);
+                    }
+                }
+            }
+        }
+    }
+
+    // Ajoute une référence au bloc; s'il est inconnu, il sera stocké à l'emplacement path
+    // par l'appelant qui obtient claimStore()
+    public synchronized Chunk reference(String hash, String path) throws InterruptedIOException {
+        Chunk chunk;
+        while ((chunk = chunks.get(hash)) != null && chunk.deleting) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Attente de la suppression d'un bloc interrompue");
+            }
+        }
+        if (chunk == null) {
+            chunk = new Chunk(hash, List.of(path), false);
+            chunks.put(hash, chunk);
+        }
+        chunk.references++;
+        return chunk;
+    }
+
+    // Le bloc est enregistré sur ses serveurs secondaires sous storedPaths
+    public void stored(Chunk chunk, List<String> storedPaths, long checksum) {
+        chunk.paths = List.copyOf(storedPaths);
+        chunk.checksum = checksum;
+        chunk.stored.complete(null);
+    }
+
+    // Le bloc n'a pas pu être stocké: il sort de l'index et les envois qui l'attendaient échouent
+    public void storeFailed(Chunk chunk, IOException cause) {
+        synchronized (this) {
+            chunks.remove(chunk.hash, chunk);
+        }
+        chunk.stored.completeExceptionally(cause);
+    }
+
+    // Le rééquilibrage a copié le bloc ailleurs: ses copies deviennent paths, à condition qu'il soit
+    // encore utilisé et toujours à l'emplacement expected. Sinon les nouvelles copies sont inutiles.
+    public synchronized boolean move(Chunk chunk, List<String> expected, List<String> paths) {
+        if (chunks.get(chunk.hash) != chunk || chunk.deleting || !chunk.paths.equals(expected)) {
+            return false;
+        }
+        chunk.paths = List.copyOf(paths);
+        return true;
+    }
+
+    // Blocs déjà enregistrés sur leurs serveurs secondaires
+    public synchronized List<Chunk> storedChunks() {
+        List<Chunk> stored = new ArrayList<>();
+        for (Chunk chunk : chunks.values()) {
+            if (chunk.stored.isDone() && !chunk.stored.isCompletedExceptionally() && !chunk.deleting) {
+                stored.add(chunk);
+            }
+        }
+        return stored;
+    }
+
+    public synchronized Chunk find(String partitionPath) {
+        String hash = hashOf(partitionPath);
+        return hash == null ? null : chunks.get(hash);
+    }
+
+    // Retire une référence. Retourne true si le bloc n'est plus utilisé: l'appelant doit alors
+    // le supprimer du serveur secondaire puis appeler deleted()
+    public synchronized boolean release(Chunk chunk) {
+        if (chunks.get(chunk.hash) != chunk || chunk.deleting) {
+            return false;
+        }
+        if (--chunk.references > 0) {
+            return false;
+        }
+        chunk.deleting = true;
+        return true;
+    }
+
+    public synchronized void deleted(Chunk chunk) {
+        chunks.remove(chunk.hash, chunk);
+        notifyAll();
+    }
+
+    public synchronized int size() {
+        return chunks.size();
+    }
+}
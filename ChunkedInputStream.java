@@ -0,0 +1,68 @@
+import java.io.*;
+
+// Relit un flux écrit par ChunkedOutputStream; retourne -1 après le bloc de fin.
+public class ChunkedInputStream extends InputStream {
+    private final DataInputStream in;
+    private int remaining;
+    private boolean eof;
+
+    public ChunkedInputStream(InputStream in) {
+        this.in = new DataInputStream(in);
+    }
+
+    private boolean nextChunk() throws IOException {
+        while (remaining == 0 && !eof) {
+            int length = in.readInt();
+            if (length < 0) {
+                throw new IOException("Longueur de bloc invalide: " + length);
+            }
+            if (length == 0) {
+                eof = true;
+            }
+            remaining = length;
+        }
+        return !eof || remaining > 0;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextChunk()) {
+            return -1;
+        }
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("Flux interrompu au milieu d'un bloc");
+        }
+        remaining--;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextChunk()) {
+            return -1;
+        }
+        int n = in.read(b, off, Math.min(len, remaining));
+        if (n < 0) {
+            throw new EOFException("Flux interrompu au milieu d'un bloc");
+        }
+        remaining -= n;
+        return n;
+    }
+
+    // Consomme les blocs restants jusqu'au marqueur de fin
+    public void skipToEnd() throws IOException {
+        byte[] scratch = new byte[8192];
+        while (read(scratch, 0, scratch.length) >= 0) {
+            // rien
+        }
+    }
+
+    @Override
+    public void close() {
+        // Ne ferme pas le flux sous-jacent: la connexion peut encore servir
+    }
+}
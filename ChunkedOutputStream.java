@@ -0,0 +1,79 @@
+import java.io.*;
+
+// Découpe un flux en blocs de taille fixe préfixés par leur longueur (int).
+// Un bloc de longueur 0 marque la fin du flux (voir ChunkedInputStream).
+public class ChunkedOutputStream extends OutputStream {
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    private final DataOutputStream out;
+    private final byte[] buffer;
+    private int count;
+    private long written;
+    private boolean finished;
+
+    public ChunkedOutputStream(OutputStream out) {
+        this(out, DEFAULT_CHUNK_SIZE);
+    }
+
+    public ChunkedOutputStream(OutputStream out, int chunkSize) {
+        this.out = new DataOutputStream(out);
+        this.buffer = new byte[chunkSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buffer.length) {
+            flushChunk();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == buffer.length) {
+                flushChunk();
+            }
+            int n = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void flushChunk() throws IOException {
+        if (count > 0) {
+            out.writeInt(count);
+            out.write(buffer, 0, count);
+            written += count;
+            count = 0;
+        }
+    }
+
+    // Octets de données déjà envoyés (sans les longueurs des blocs)
+    public long getWritten() {
+        return written;
+    }
+
+    // Envoie le dernier bloc et le marqueur de fin, sans fermer le flux sous-jacent
+    public void finish() throws IOException {
+        if (!finished) {
+            flushChunk();
+            out.writeInt(0);
+            out.flush();
+            finished = true;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushChunk();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+}
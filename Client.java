@@ -2,9 +2,12 @@ import javax.swing.*;
 import java.awt.*;
 import java.io.*;
 import java.net.*;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 
 public class Client extends JFrame {
     private final JList<String> fileList;
@@ -12,6 +15,10 @@ public class Client extends JFrame {
     private final String serverIp;
     private final int serverPort;
     private final JTextArea logArea;
+    // Version de la liste affichée: le serveur ne la renvoie que si elle a changé depuis
+    private long listVersion;
+    // Taille et date d'envoi des fichiers affichés
+    private final Map<String, ServerConnection.FileInfo> fileInfos = new HashMap<>();
 
     public Client() {
         // Initialisation des paramètres
@@ -39,6 +46,14 @@ public class Client extends JFrame {
         JPanel listPanel = new JPanel(new BorderLayout());
         listPanel.setBorder(BorderFactory.createTitledBorder("Fichiers disponibles"));
         fileList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        fileList.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
+                ServerConnection.FileInfo info = fileInfos.get(value);
+                return super.getListCellRendererComponent(list, info != null ? ClientSans.describe(info) : value,
+                        index, isSelected, cellHasFocus);
+            }
+        });
         listPanel.add(new JScrollPane(fileList), BorderLayout.CENTER);
 
         // Panel pour les logs
@@ -90,26 +105,21 @@ deleteButton.addActionListener(e -> deleteSelectedFile());
     private void uploadFile() {
         JFileChooser fileChooser = new JFileChooser();
         fileChooser.setDialogTitle("Sélectionner un fichier à envoyer");
+        fileChooser.setMultiSelectionEnabled(true);
         
         int result = fileChooser.showOpenDialog(this);
-        if (result == JFileChooser.APPROVE_OPTION) {
+        if (result == JFileChooser.APPROVE_OPTION && fileChooser.getSelectedFiles().length > 1) {
+            uploadFiles(fileChooser.getSelectedFiles());
+        } else if (result == JFileChooser.APPROVE_OPTION) {
             File file = fileChooser.getSelectedFile();
-            try {
-                Socket socket = new Socket(serverIp, serverPort);
-                try (ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-                     ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
+            // Envoyer seulement les blocs que le serveur n'a pas déjà, sans charger le fichier en mémoire
+            try (ServerConnection connection = new ServerConnection(serverIp, serverPort)) {
 
-                    out.writeObject("CLIENT");
-                    out.writeObject("UPLOAD");
-                    out.writeObject(file.getName());
-                    out.writeObject(file.length());
+                long sent = connection.uploadFile(file.toPath());
 
-                    byte[] fileData = Files.readAllBytes(file.toPath());
-                    out.writeObject(fileData);
-
-                    log("Fichier envoyé avec succès: " + file.getName());
-                    refreshFileList();
-                }
+                log("Fichier envoyé avec succès: " + file.getName()
+                        + " (" + sent + " octets transmis sur " + file.length() + ")");
+                refreshFileList();
             } catch (IOException e) {
                 log("Erreur lors de l'envoi: " + e.getMessage());
                 JOptionPane.showMessageDialog(this, 
@@ -120,6 +130,33 @@ deleteButton.addActionListener(e -> deleteSelectedFile());
         }
     }
 
+    // Plusieurs fichiers sélectionnés: envoyés par lots sur une seule connexion
+    private void uploadFiles(File[] selected) {
+        List<Path> files = new ArrayList<>();
+        for (File file : selected) {
+            files.add(file.toPath());
+        }
+        try (ServerConnection connection = new ServerConnection(serverIp, serverPort)) {
+            List<String> errors = connection.uploadFiles(files);
+            int sent = 0;
+            for (int i = 0; i < selected.length; i++) {
+                if (errors.get(i) == null) {
+                    sent++;
+                } else {
+                    log("Erreur lors de l'envoi de " + selected[i].getName() + ": " + errors.get(i));
+                }
+            }
+            log(sent + " fichier(s) envoyé(s) sur " + selected.length);
+            refreshFileList();
+        } catch (IOException e) {
+            log("Erreur lors de l'envoi: " + e.getMessage());
+            JOptionPane.showMessageDialog(this,
+                "Erreur lors de l'envoi des fichiers: " + e.getMessage(),
+                "Erreur d'envoi",
+                JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
     private void downloadSelectedFile() {
         String selectedFile = fileList.getSelectedValue();
         if (selectedFile == null) {
@@ -136,24 +173,19 @@ deleteButton.addActionListener(e -> deleteSelectedFile());
         
         int result = fileChooser.showSaveDialog(this);
         if (result == JFileChooser.APPROVE_OPTION) {
-            try {
-                Socket socket = new Socket(serverIp, serverPort);
-                try (ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-                     ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
-
-                    out.writeObject("CLIENT");
-                    out.writeObject("DOWNLOAD");
-                    out.writeObject(selectedFile);
-
-                    byte[] fileData = (byte[]) in.readObject();
-                    if (fileData != null) {
-                        Files.write(fileChooser.getSelectedFile().toPath(), fileData);
-                        log("Fichier téléchargé avec succès: " + selectedFile);
-                    } else {
-                        throw new IOException("Le fichier n'a pas pu être récupéré du serveur");
-                    }
-                }
+            // Le contenu est écrit sur disque au fil de l'eau
+            Path target = fileChooser.getSelectedFile().toPath();
+            try (ServerConnection connection = new ServerConnection(serverIp, serverPort);
+                 FileChannel fileOut = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+                connection.download(selectedFile, fileOut);
+                log("Fichier téléchargé avec succès: " + selectedFile);
             } catch (Exception e) {
+                try {
+                    Files.deleteIfExists(target);
+                } catch (IOException ignored) {
+                    // Fichier partiel laissé en place
+                }
                 log("Erreur lors du téléchargement: " + e.getMessage());
                 JOptionPane.showMessageDialog(this,
                     "Erreur lors du téléchargement: " + e.getMessage(),
@@ -164,23 +196,23 @@ deleteButton.addActionListener(e -> deleteSelectedFile());
     }
 
     private void refreshFileList() {
-        try {
-            Socket socket = new Socket(serverIp, serverPort);
-            try (ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-                 ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
-
-                out.writeObject("CLIENT");
-                out.writeObject("LIST_FILES");
-
-                @SuppressWarnings("unchecked")
-                List<String> files = (List<String>) in.readObject();
-                
-                SwingUtilities.invokeLater(() -> {
-                    listModel.clear();
-                    files.forEach(listModel::addElement);
-                    log("Liste des fichiers mise à jour");
-                });
+        try (ServerConnection connection = new ServerConnection(serverIp, serverPort)) {
+            ServerConnection.FileList files = connection.listFiles("", listVersion);
+            if (files == null) {
+                log("Liste des fichiers inchangée");
+                return;
             }
+
+            SwingUtilities.invokeLater(() -> {
+                listVersion = files.getVersion();
+                fileInfos.clear();
+                listModel.clear();
+                for (ServerConnection.FileInfo file : files.getFiles()) {
+                    fileInfos.put(file.getName(), file);
+                    listModel.addElement(file.getName());
+                }
+                log("Liste des fichiers mise à jour");
+            });
         } catch (Exception e) {
             log("Erreur lors du rafraîchissement de la liste: " + e.getMessage());
             JOptionPane.showMessageDialog(this,
@@ -207,25 +239,12 @@ deleteButton.addActionListener(e -> deleteSelectedFile());
             JOptionPane.YES_NO_OPTION);
     
         if (confirm == JOptionPane.YES_OPTION) {
-            try {
-                // Connect to the server to request the deletion of the file
-                Socket socket = new Socket(serverIp, serverPort);
-                try (ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-                     ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
-    
-                    out.writeObject("CLIENT");
-                    out.writeObject("DELETE");
-                    out.writeObject(selectedFile);  // Send the selected file name to the server
-    
-                    String response = (String) in.readObject();
-                    if ("SUCCESS".equals(response)) {
-                        log("Fichier supprimé avec succès: " + selectedFile);
-                        refreshFileList();  // Refresh the file list after deletion
-                    } else {
-                        log("Erreur lors de la suppression du fichier: " + selectedFile);
-                    }
-                }
-            } catch (IOException | ClassNotFoundException e) {
+            // Connect to the server to request the deletion of the file
+            try (ServerConnection connection = new ServerConnection(serverIp, serverPort)) {
+                connection.delete(selectedFile);
+                log("Fichier supprimé avec succès: " + selectedFile);
+                refreshFileList();  // Refresh the file list after deletion
+            } catch (IOException e) {
                 log("Erreur lors de la suppression: " + e.getMessage());
                 JOptionPane.showMessageDialog(this,
                     "Erreur lors de la suppression du fichier: " + e.getMessage(),
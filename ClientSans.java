@@ -1,6 +1,11 @@
 import java.io.*;
 import java.net.*;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Scanner;
 import java.util.Map;
@@ -8,9 +13,17 @@ import java.util.Map;
 public class ClientSans {
     private final String serverIp = "localhost";
     private final int serverPort = 5000;
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm").withZone(ZoneId.systemDefault());
+    // Dernière liste reçue: le serveur ne la renvoie que si elle a changé depuis
+    private ServerConnection.FileList fileList;
 
+    // Sans argument: menu interactif. "backup <répertoire>": sauvegarde du répertoire sans
+    // interaction (tâches planifiées), code de sortie 1 si des fichiers n'ont pas pu être envoyés
     public static void main(String[] args) {
         ClientSans client = new ClientSans();
+        if (args.length == 2 && args[0].equals("backup")) {
+            System.exit(client.backupDirectory(new File(args[1])) ? 0 : 1);
+        }
         client.start();
     }
 
@@ -46,24 +59,29 @@ public class ClientSans {
     }
 
     private void refreshFileList() {
-        try (Socket socket = new Socket(serverIp, serverPort);
-             ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-             ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
-
-            out.writeObject("CLIENT");
-            out.writeObject("LIST_FILES");
-
-            @SuppressWarnings("unchecked")
-            List<String> files = (List<String>) in.readObject();
+        try (ServerConnection connection = new ServerConnection(serverIp, serverPort)) {
+            ServerConnection.FileList latest = connection.listFiles("", fileList != null ? fileList.getVersion() : 0);
+            if (latest != null) {
+                fileList = latest;
+            }
             System.out.println("Fichiers disponibles :");
-            files.forEach(file -> System.out.println(" - " + file));
+            fileList.getFiles().forEach(file -> System.out.println(" - " + describe(file)));
         } catch (Exception e) {
             System.err.println("Erreur lors de la récupération de la liste des fichiers : " + e.getMessage());
         }
     }
 
+    static String describe(ServerConnection.FileInfo file) {
+        if (file.getSize() < 0) {
+            return file.getName();
+        }
+        return file.getName() + " (" + file.getSize() + " octets"
+                + (file.getModified() != Catalog.NO_DATE ? ", envoyé le " + DATE_FORMAT.format(Instant.ofEpochMilli(file.getModified())) : "")
+                + ")";
+    }
+
     private void downloadFile(Scanner scanner) {
-        System.out.print("Entrez le nom du fichier à télécharger : ");
+        System.out.print("Entrez le nom du fichier à télécharger (préfixe* pour plusieurs) : ");
         String fileName = scanner.nextLine();
     
         System.out.print("Entrez le chemin pour enregistrer le fichier : ");
@@ -80,77 +98,97 @@ public class ClientSans {
             }
         }
     
-        try (Socket socket = new Socket(serverIp, serverPort);
-             ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-             ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
+        if (fileName.endsWith("*")) {
+            downloadFiles(fileName.substring(0, fileName.length() - 1), Paths.get(savePath));
+            return;
+        }
+
+        // Le contenu est écrit sur disque au fil de l'eau; un fichier sauvegardé avec son répertoire
+        // ("répertoire/chemin") retrouve ses sous-répertoires
+        Path path = Paths.get(savePath, fileName);
+        path.getParent().toFile().mkdirs();
+        try (ServerConnection connection = new ServerConnection(serverIp, serverPort);
+             FileChannel fileOut = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
     
-            out.writeObject("CLIENT");
-            out.writeObject("DOWNLOAD");
-            out.writeObject(fileName);
+            connection.download(fileName, fileOut);
+            System.out.println("Fichier téléchargé avec succès : " + fileName);
+        } catch (IOException e) {
+            System.err.println("Erreur lors du téléchargement : " + e.getMessage());
+            deleteQuietly(path);
+        }
+    }
     
-            byte[] fileData = (byte[]) in.readObject();
-            if (fileData != null) {
-                Path path = Paths.get(savePath, fileName);
-                Files.write(path, fileData);
-                System.out.println("Fichier téléchargé avec succès : " + fileName);
-            } else {
-                System.err.println("Erreur : fichier introuvable sur le serveur.");
+    // Tous les fichiers dont le nom commence par prefix, en un seul téléchargement groupé
+    private void downloadFiles(String prefix, Path directory) {
+        try (ServerConnection connection = new ServerConnection(serverIp, serverPort)) {
+            List<String> fileNames = new ArrayList<>();
+            for (ServerConnection.FileInfo file : connection.listFiles(prefix, 0).getFiles()) {
+                fileNames.add(file.getName());
+            }
+            List<String> errors = connection.downloadFiles(fileNames, directory);
+            int downloaded = 0;
+            for (int i = 0; i < fileNames.size(); i++) {
+                if (errors.get(i) == null) {
+                    downloaded++;
+                } else {
+                    System.err.println("Erreur lors du téléchargement de " + fileNames.get(i) + " : " + errors.get(i));
+                }
             }
-        } catch (IOException | ClassNotFoundException e) {
+            System.out.println(downloaded + " fichier(s) téléchargé(s) sur " + fileNames.size() + " dans " + directory);
+        } catch (IOException e) {
             System.err.println("Erreur lors du téléchargement : " + e.getMessage());
-            e.printStackTrace();
         }
     }
-    
+
     private void uploadFile(Scanner scanner) {
-        System.out.print("Entrez le chemin du fichier à envoyer : ");
+        System.out.print("Entrez le chemin du fichier (ou du répertoire) à envoyer : ");
         String filePath = scanner.nextLine();
 
         File file = new File(filePath);
+        if (file.isDirectory()) {
+            backupDirectory(file);
+            return;
+        }
         if (!file.exists() || !file.isFile()) {
             System.err.println("Erreur : fichier invalide.");
             return;
         }
 
-        try (Socket socket = new Socket(serverIp, serverPort);
-             ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-             ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
-
-            out.writeObject("CLIENT");
-            out.writeObject("UPLOAD");
-            out.writeObject(file.getName());
-            out.writeObject(file.length());
+        // Envoyer seulement les blocs que le serveur n'a pas déjà, sans charger le fichier en mémoire
+        try (ServerConnection connection = new ServerConnection(serverIp, serverPort)) {
 
-            byte[] fileData = Files.readAllBytes(file.toPath());
-            out.writeObject(fileData);
+            long sent = connection.uploadFile(file.toPath());
 
-            // Ajouter le fichier à la liste locale des fichiers envoyés
-            recordSentFile(file.getName());
+            // Ajouter le fichier à l'index local des fichiers envoyés
+            recordSentFile(file);
 
-            System.out.println("Fichier envoyé avec succès : " + file.getName());
+            System.out.println("Fichier envoyé avec succès : " + file.getName()
+                    + " (" + sent + " octets transmis sur " + file.length() + ")");
         } catch (IOException e) {
             System.err.println("Erreur lors de l'envoi du fichier : " + e.getMessage());
         }
     }
 
+    // Tout le répertoire et ses sous-répertoires, sauf les fichiers inchangés depuis la dernière
+    // sauvegarde (voir DirectoryBackup). Retourne vrai si tous les fichiers sont sauvegardés.
+    private boolean backupDirectory(File directory) {
+        try {
+            BackupIndex index = BackupIndex.load(Paths.get(BackupIndex.DEFAULT_FILE));
+            return new DirectoryBackup(serverIp, serverPort, index, System.out, System.err).run(directory.toPath()) == 0;
+        } catch (IOException e) {
+            System.err.println("Erreur lors de la sauvegarde du répertoire : " + e.getMessage());
+            return false;
+        }
+    }
+
     private void deleteFile(Scanner scanner) {
         System.out.print("Entrez le nom du fichier à supprimer : ");
         String fileName = scanner.nextLine();
 
-        try (Socket socket = new Socket(serverIp, serverPort);
-             ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-             ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
-
-            out.writeObject("CLIENT");
-            out.writeObject("DELETE");
-            out.writeObject(fileName);
-
-            String response = (String) in.readObject();
-            if ("SUCCESS".equals(response)) {
-                System.out.println("Fichier supprimé avec succès : " + fileName);
-            } else {
-                System.err.println("Erreur lors de la suppression du fichier.");
-            }
+        try (ServerConnection connection = new ServerConnection(serverIp, serverPort)) {
+            connection.delete(fileName);
+            System.out.println("Fichier supprimé avec succès : " + fileName);
+            forgetSentFile(fileName);
         } catch (Exception e) {
             System.err.println("Erreur lors de la suppression : " + e.getMessage());
         }
@@ -158,11 +196,14 @@ public class ClientSans {
 
     private void listSentFiles() {
         System.out.println("Fichiers envoyés par le client (fonctionnalité locale) :");
-        // Cette liste pourrait être mise à jour à chaque upload
-        try (BufferedReader br = new BufferedReader(new FileReader("sent_files.txt"))) {
-            br.lines().forEach(System.out::println);
+        try {
+            List<String> names = BackupIndex.load(Paths.get(BackupIndex.DEFAULT_FILE)).names();
+            if (names.isEmpty()) {
+                System.out.println("Aucun fichier enregistré localement pour le moment.");
+            }
+            names.forEach(System.out::println);
         } catch (IOException e) {
-            System.out.println("Aucun fichier enregistré localement pour le moment.");
+            System.err.println("Erreur lors de la lecture de l'index local : " + e.getMessage());
         }
     }
 
@@ -188,12 +229,33 @@ public class ClientSans {
         }
     }
 
-    private void recordSentFile(String fileName) {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter("sent_files.txt", true))) {
-            writer.write(fileName);
-            writer.newLine();
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            // Fichier partiel laissé en place
+        }
+    }
+
+    // Sans empreinte: seules la taille et la date diront si le fichier a changé
+    private void recordSentFile(File file) {
+        try {
+            BackupIndex index = BackupIndex.load(Paths.get(BackupIndex.DEFAULT_FILE));
+            index.put(file.getName(), new BackupIndex.Record(file.length(), file.lastModified(), null));
+            index.save();
         } catch (IOException e) {
             System.err.println("Erreur lors de l'enregistrement du fichier envoyé : " + e.getMessage());
         }
     }
+
+    // Un fichier supprimé du serveur doit être renvoyé par la prochaine sauvegarde du répertoire
+    private void forgetSentFile(String fileName) {
+        try {
+            BackupIndex index = BackupIndex.load(Paths.get(BackupIndex.DEFAULT_FILE));
+            index.remove(fileName);
+            index.save();
+        } catch (IOException e) {
+            System.err.println("Erreur lors de la mise à jour de l'index local : " + e.getMessage());
+        }
+    }
 }
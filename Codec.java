@@ -0,0 +1,135 @@
+import java.io.*;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+// Compression des partitions (et des blocs) stockées sur les serveurs secondaires.
+//
+// Le codec fait partie du nom de la partition (extension, par exemple ".deflate"), donc du chemin
+// enregistré dans le catalogue: le téléchargement sait comment la relire, et les partitions
+// écrites sans compression (sans extension) restent lisibles telles quelles. Les tailles du
+// catalogue restent celles des données d'origine.
+//
+// Configuration (propriétés système):
+//   backup.compression        none (défaut), deflate, ou auto: deflate sauf pour les données qui
+//                             paraissent déjà compressées (archives, images, vidéos...)
+//   backup.compression.level  niveau Deflate, de 1 (rapide) à 9 (compact) (défaut: 1)
+public enum Codec {
+    NONE("") {
+        @Override
+        public OutputStream compress(OutputStream out) {
+            return out;
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) {
+            return in;
+        }
+    },
+    DEFLATE(".deflate") {
+        @Override
+        public OutputStream compress(OutputStream out) {
+            Deflater deflater = new Deflater(LEVEL);
+            return new DeflaterOutputStream(out, deflater, BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        deflater.end();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) {
+            return new InflaterInputStream(in, new Inflater(), BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inf.end();
+                    }
+                }
+            };
+        }
+    };
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int LEVEL = Integer.getInteger("backup.compression.level", Deflater.BEST_SPEED);
+    private static final String MODE = System.getProperty("backup.compression", "none");
+    // Échantillon: SAMPLE_SLICES tranches de SAMPLE_SLICE octets réparties sur les données, pour ne
+    // pas juger seulement sur l'entête d'un fichier
+    private static final int SAMPLE_SLICES = 16;
+    private static final int SAMPLE_SLICE = 256;
+    // Au-delà (en bits par octet, 8 au maximum), la compression ne gagne presque rien
+    private static final double ENTROPY_THRESHOLD = 7.5;
+
+    static {
+        if (!MODE.equals("none") && !MODE.equals("deflate") && !MODE.equals("auto")) {
+            throw new IllegalStateException("backup.compression inconnu: " + MODE + " (none, deflate ou auto)");
+        }
+    }
+
+    private final String extension;
+
+    Codec(String extension) {
+        this.extension = extension;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    // Flux compressé écrit dans out; close() termine la compression et ferme out
+    public abstract OutputStream compress(OutputStream out);
+
+    public abstract InputStream decompress(InputStream in);
+
+    // Codec d'une partition d'après son chemin (ou son nom)
+    public static Codec of(String partitionPath) {
+        return partitionPath.endsWith(DEFLATE.extension) ? DEFLATE : NONE;
+    }
+
+    // Nom sans l'extension du codec
+    public static String strip(String partitionPath) {
+        return partitionPath.substring(0, partitionPath.length() - of(partitionPath).extension.length());
+    }
+
+    // Codec à utiliser pour ces données, d'après backup.compression et un échantillon du contenu
+    public static Codec choose(byte[] data, int offset, int length) {
+        switch (MODE) {
+            case "deflate":
+                return DEFLATE;
+            case "auto":
+                return entropy(data, offset, length) > ENTROPY_THRESHOLD ? NONE : DEFLATE;
+            default:
+                return NONE;
+        }
+    }
+
+    // Entropie de Shannon de l'échantillon, en bits par octet
+    static double entropy(byte[] data, int offset, int length) {
+        int[] counts = new int[256];
+        int sampled = 0;
+        int step = Math.max(SAMPLE_SLICE, length / SAMPLE_SLICES);
+        for (int start = offset; start < offset + length; start += step) {
+            int end = Math.min(start + SAMPLE_SLICE, offset + length);
+            for (int i = start; i < end; i++) {
+                counts[data[i] & 0xFF]++;
+            }
+            sampled += end - start;
+        }
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / sampled;
+                entropy -= p * Math.log(p) / Math.log(2);
+            }
+        }
+        return entropy;
+    }
+}
@@ -0,0 +1,21 @@
+import java.io.*;
+import java.util.Arrays;
+
+// BufferedInputStream qui peut démarrer avec des octets déjà lus (par la boucle NIO)
+// et rendre ceux qu'il a lus en avance, pour que la connexion reparte sans rien perdre.
+public class ConnectionInputStream extends BufferedInputStream {
+
+    public ConnectionInputStream(InputStream in, byte[] alreadyRead) {
+        super(in, Math.max(ChunkedOutputStream.DEFAULT_CHUNK_SIZE, alreadyRead.length));
+        System.arraycopy(alreadyRead, 0, buf, 0, alreadyRead.length);
+        count = alreadyRead.length;
+        pos = 0;
+    }
+
+    // Octets reçus mais pas encore consommés par le traitement de la requête
+    public synchronized byte[] takeBuffered() {
+        byte[] rest = Arrays.copyOfRange(buf, pos, count);
+        pos = count;
+        return rest;
+    }
+}
@@ -0,0 +1,116 @@
+import java.io.*;
+import java.util.Arrays;
+import java.util.Random;
+
+// Découpage d'un flux en blocs définis par le contenu (FastCDC).
+//
+// Une empreinte glissante (gear) sur les derniers octets lus choisit les frontières: elles
+// dépendent du contenu et non de la position, donc une insertion ou une suppression ne décale
+// que les blocs autour de la modification. Les autres blocs gardent la même empreinte d'une
+// version à l'autre et ne sont stockés qu'une fois (voir ChunkIndex).
+//
+// Tailles: entre average / 4 et average * 4, autour de average (normalisation FastCDC: frontière
+// plus difficile avant la taille moyenne, plus facile après).
+public class ContentChunker {
+    // Taille moyenne des blocs en octets (backup.chunk.size). Clients et serveur doivent utiliser
+    // la même valeur pour que les blocs envoyés par manifeste soient reconnus.
+    public static final int AVERAGE_SIZE = Integer.getInteger("backup.chunk.size", 64 * 1024);
+
+    // La table doit rester identique d'une version à l'autre: sinon les frontières changent
+    // et plus aucun bloc déjà stocké n'est reconnu
+    private static final long[] GEAR = new long[256];
+    static {
+        Random random = new Random(0x6261636B7570L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final InputStream in;
+    private long remaining;
+    private final int minSize;
+    private final int averageSize;
+    private final int maxSize;
+    private final long smallMask;
+    private final long largeMask;
+    private final byte[] buffer;
+    private int start;
+    private int end;
+
+    // Lit exactement length octets de in
+    public ContentChunker(InputStream in, long length, int averageSize) {
+        int bits = bits(averageSize);
+        this.in = in;
+        this.remaining = length;
+        this.averageSize = 1 << bits;
+        this.minSize = this.averageSize / 4;
+        this.maxSize = this.averageSize * 4;
+        // Bits de poids fort: ils dépendent des 64 derniers octets lus
+        this.smallMask = -1L << (64 - (bits + 2));
+        this.largeMask = -1L << (64 - (bits - 2));
+        this.buffer = new byte[maxSize];
+    }
+
+    // Nombre maximal de blocs pour length octets: tous sauf le dernier font au moins la taille minimale
+    public static long maxChunks(long length, int averageSize) {
+        return length / ((1 << bits(averageSize)) / 4) + 1;
+    }
+
+    // La taille moyenne est arrondie à la puissance de deux inférieure, au moins 256
+    private static int bits(int averageSize) {
+        return 31 - Integer.numberOfLeadingZeros(Math.max(averageSize, 256));
+    }
+
+    // Bloc suivant, ou null à la fin du flux
+    public byte[] next() throws IOException {
+        fill();
+        int available = end - start;
+        if (available == 0) {
+            return null;
+        }
+        int cut = cutPoint(start, available);
+        byte[] chunk = Arrays.copyOfRange(buffer, start, start + cut);
+        start += cut;
+        return chunk;
+    }
+
+    private void fill() throws IOException {
+        if (end - start >= maxSize || remaining == 0) {
+            return;
+        }
+        System.arraycopy(buffer, start, buffer, 0, end - start);
+        end -= start;
+        start = 0;
+        while (end < buffer.length && remaining > 0) {
+            int n = in.read(buffer, end, (int) Math.min(buffer.length - end, remaining));
+            if (n < 0) {
+                throw new EOFException("Fin de fichier inattendue (" + remaining + " octets manquants)");
+            }
+            end += n;
+            remaining -= n;
+        }
+    }
+
+    private int cutPoint(int offset, int length) {
+        if (length <= minSize) {
+            return length;
+        }
+        int limit = Math.min(length, maxSize);
+        int normal = Math.min(averageSize, limit);
+        long fingerprint = 0;
+        int i = minSize;
+        for (; i < normal; i++) {
+            fingerprint = (fingerprint << 1) + GEAR[buffer[offset + i] & 0xFF];
+            if ((fingerprint & smallMask) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < limit; i++) {
+            fingerprint = (fingerprint << 1) + GEAR[buffer[offset + i] & 0xFF];
+            if ((fingerprint & largeMask) == 0) {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+}
@@ -0,0 +1,244 @@
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Sauvegarde récursive d'un répertoire par le client. Chaque fichier est enregistré sur le serveur
+// sous le nom "<nom du répertoire>/<chemin relatif>" (séparateur '/'): le répertoire se restaure
+// avec un téléchargement par préfixe ("<nom du répertoire>/*" dans ClientSans). Les fichiers
+// inchangés depuis la sauvegarde précédente (voir BackupIndex) ne sont pas renvoyés.
+//
+// WORKERS connexions envoient en parallèle. Chacune prend dans la file des lots d'au plus
+// GROUP_FILES fichiers et GROUP_BYTES octets, envoyés ensemble (voir ServerConnection.uploadFiles).
+// Toutes les PROGRESS_INTERVAL_MS, la progression est affichée et l'index enregistré: une
+// sauvegarde interrompue ne renvoie pas ce qui était déjà passé.
+//
+// Configuration (propriétés système):
+//   backup.client.workers    connexions d'envoi en parallèle (défaut: 4)
+//   backup.client.groupFiles fichiers par lot (défaut: 256)
+//   backup.client.groupBytes octets par lot (défaut: 16 Mio)
+public class DirectoryBackup {
+    private static final int WORKERS = Integer.getInteger("backup.client.workers", 4);
+    private static final int GROUP_FILES = Integer.getInteger("backup.client.groupFiles", 256);
+    private static final long GROUP_BYTES = Long.getLong("backup.client.groupBytes", 16L * 1024 * 1024);
+    private static final long PROGRESS_INTERVAL_MS = 10000;
+
+    // Fichier à examiner, avec sa taille et sa date au moment du parcours
+    private static final class Item {
+        final Path path;
+        final String name;
+        final long size;
+        final long modified;
+
+        Item(Path path, String name, long size, long modified) {
+            this.path = path;
+            this.name = name;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    private final String serverIp;
+    private final int serverPort;
+    private final BackupIndex index;
+    private final int workers;
+    private final PrintStream out;
+    private final PrintStream err;
+    private final AtomicInteger scanned = new AtomicInteger();
+    private final AtomicInteger unchanged = new AtomicInteger();
+    private final AtomicInteger sent = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong sentBytes = new AtomicLong();
+    private long startNanos;
+
+    public DirectoryBackup(String serverIp, int serverPort, BackupIndex index, PrintStream out, PrintStream err) {
+        this(serverIp, serverPort, index, WORKERS, out, err);
+    }
+
+    public DirectoryBackup(String serverIp, int serverPort, BackupIndex index, int workers, PrintStream out, PrintStream err) {
+        this.serverIp = serverIp;
+        this.serverPort = serverPort;
+        this.index = index;
+        this.workers = Math.max(1, workers);
+        this.out = out;
+        this.err = err;
+    }
+
+    // Retourne le nombre de fichiers qui n'ont pas pu être sauvegardés
+    public int run(Path directory) throws IOException {
+        startNanos = System.nanoTime();
+        Path root = directory.toAbsolutePath().normalize();
+        String prefix = root.getFileName() == null ? "" : root.getFileName() + "/";
+        ConcurrentLinkedQueue<Item> queue = new ConcurrentLinkedQueue<>(scan(root, prefix));
+
+        ExecutorService pool = Executors.newFixedThreadPool(workers, r -> {
+            Thread thread = new Thread(r, "sauvegarde");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "progression");
+            thread.setDaemon(true);
+            return thread;
+        });
+        progress.scheduleWithFixedDelay(() -> {
+            out.println("Progression : " + describe());
+            saveIndex();
+        }, PROGRESS_INTERVAL_MS, PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        try {
+            List<Future<?>> running = new ArrayList<>(workers);
+            for (int i = 0; i < workers; i++) {
+                running.add(pool.submit(() -> work(queue)));
+            }
+            for (Future<?> worker : running) {
+                worker.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Sauvegarde interrompue");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            progress.shutdownNow();
+            pool.shutdownNow();
+            saveIndex();
+        }
+        out.println("Sauvegarde de " + root + " terminée : " + describe());
+        return failed.get();
+    }
+
+    // Fichiers ordinaires de l'arborescence, triés par chemin; les liens symboliques ne sont pas suivis
+    private List<Item> scan(Path root, String prefix) throws IOException {
+        List<Item> items = new ArrayList<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (attributes.isRegularFile()) {
+                    scanned.incrementAndGet();
+                    String relative = root.relativize(file).toString().replace(File.separatorChar, '/');
+                    items.add(new Item(file, prefix + relative, attributes.size(), attributes.lastModifiedTime().toMillis()));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                failed.incrementAndGet();
+                err.println("Erreur : " + file + " illisible (" + e.getMessage() + ")");
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        items.sort((a, b) -> a.name.compareTo(b.name));
+        return items;
+    }
+
+    // Une connexion: lot après lot jusqu'à ce que la file soit vide
+    private void work(ConcurrentLinkedQueue<Item> queue) {
+        ServerConnection connection = null;
+        try {
+            List<Item> group;
+            while (!(group = nextGroup(queue)).isEmpty()) {
+                try {
+                    if (connection == null) {
+                        connection = new ServerConnection(serverIp, serverPort);
+                    }
+                    upload(connection, group);
+                } catch (IOException e) {
+                    // Connexion perdue (après les reprises de ServerConnection): lot en échec,
+                    // nouvelle connexion pour le suivant
+                    for (Item item : group) {
+                        fail(item, e.getMessage());
+                    }
+                    closeQuietly(connection);
+                    connection = null;
+                }
+            }
+        } finally {
+            closeQuietly(connection);
+        }
+    }
+
+    // Fichiers modifiés pris dans la file, jusqu'à GROUP_FILES fichiers ou GROUP_BYTES octets
+    private List<Item> nextGroup(ConcurrentLinkedQueue<Item> queue) {
+        List<Item> group = new ArrayList<>();
+        long bytes = 0;
+        Item item;
+        while (group.size() < GROUP_FILES && bytes < GROUP_BYTES && (item = queue.poll()) != null) {
+            try {
+                if (index.isUnchanged(item.name, item.path, item.size, item.modified)) {
+                    unchanged.incrementAndGet();
+                    continue;
+                }
+            } catch (IOException e) {
+                fail(item, "illisible (" + e.getMessage() + ")");
+                continue;
+            }
+            group.add(item);
+            bytes += item.size;
+        }
+        return group;
+    }
+
+    private void upload(ServerConnection connection, List<Item> group) throws IOException {
+        List<Path> paths = new ArrayList<>(group.size());
+        List<String> names = new ArrayList<>(group.size());
+        for (Item item : group) {
+            paths.add(item.path);
+            names.add(item.name);
+        }
+        // Empreintes calculées pendant l'envoi: un fichier modifié n'est lu qu'une fois
+        String[] hashes = new String[group.size()];
+        List<String> errors = connection.uploadFiles(paths, names, hashes);
+        for (int i = 0; i < group.size(); i++) {
+            Item item = group.get(i);
+            if (errors.get(i) != null) {
+                fail(item, errors.get(i));
+                continue;
+            }
+            index.put(item.name, new BackupIndex.Record(item.size, item.modified, hashes[i]));
+            sent.incrementAndGet();
+            sentBytes.addAndGet(item.size);
+        }
+    }
+
+    private void fail(Item item, String message) {
+        failed.incrementAndGet();
+        err.println("Erreur lors de l'envoi de " + item.path + " : " + message);
+    }
+
+    private void saveIndex() {
+        try {
+            index.save();
+        } catch (IOException e) {
+            err.println("Erreur lors de l'enregistrement de l'index local : " + e.getMessage());
+        }
+    }
+
+    private String describe() {
+        double seconds = Math.max(1e-3, (System.nanoTime() - startNanos) / 1e9);
+        return scanned.get() + " fichier(s), " + unchanged.get() + " inchangé(s), " + sent.get() + " envoyé(s), "
+                + failed.get() + " en échec, " + sentBytes.get() + " octets en " + String.format("%.1f", seconds) + " s ("
+                + String.format("%.2f", sentBytes.get() / seconds / (1024 * 1024)) + " Mio/s, "
+                + String.format("%.1f", sent.get() / seconds) + " fichiers/s)";
+    }
+
+    private static void closeQuietly(ServerConnection connection) {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                // Connexion déjà fermée
+            }
+        }
+    }
+}
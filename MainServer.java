@@ -5,24 +5,205 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
 
 
 public class MainServer extends JFrame {
-    private List<SecondaryServerInfo> secondaryServers;
+    private Membership membership;
+    private Rebalancer rebalancer;
+    // Verrou d'écriture: le rééquilibrage change l'emplacement d'un fichier ou d'un bloc dans le
+    // catalogue. Verrou de lecture: les envois et suppressions, qui peuvent avoir lieu en même temps.
+    private final ReentrantReadWriteLock relocation = new ReentrantReadWriteLock();
     private JTextArea serverLog;
     private int mainServerPort = 5000;
     private ServerSocket serverSocket;
+    private NioServer nioServer;
     private File storageFile;
+    private Catalog catalog;
+    private CatalogJournal catalogJournal;
+    private ChunkIndex chunkIndex;
+    private WorkerPool connectionPool;
+    private ThreadPoolExecutor rejectionResponder;
+    private ExecutorService partitionTransfers;
+    private SecondaryConnectionPool secondaryConnections;
+    private JLabel metricsLabel;
+    private final AtomicLong hedgedReads = new AtomicLong();
+    private final AtomicLong hedgedWins = new AtomicLong();
+    // Copies de partitions dont le contenu ne correspond plus au CRC32C du catalogue, trouvées à la
+    // lecture ou signalées par leur serveur secondaire: les lectures et le rééquilibrage les évitent
+    // jusqu'à ce qu'elles soient réécrites
+    private final Set<String> corruptCopies = ConcurrentHashMap.newKeySet();
+    // Téléchargements interrompus par une copie corrompue, par nom de fichier: le client a pu en
+    // recevoir une partie avant que le CRC32C ne soit vérifié, sa reprise repart donc du début de
+    // la partition (voir handleBinaryDownload)
+    private final Map<String, CorruptDownload> corruptDownloads = new ConcurrentHashMap<>();
+    // Partitions à supprimer dont le serveur secondaire n'était pas enregistré (serveur principal
+    // redémarré depuis peu): supprimées quand il s'enregistre à nouveau, perdues à l'arrêt
+    private final Set<String> pendingDeletes = ConcurrentHashMap.newKeySet();
+    // Délai entre l'enregistrement d'un serveur secondaire et la reprise de ses suppressions en
+    // attente, le temps qu'il accepte les connexions
+    private static final long PENDING_DELETE_DELAY_MS = 2000;
+    // Contenu des partitions souvent téléchargées (backup.cache.size, voir ReadCache)
+    private final ReadCache readCache = new ReadCache();
+    // Envois par manifeste en cours ou interrompus, par identifiant de session (voir UploadSession)
+    private final Map<Long, UploadSession> uploadSessions = new ConcurrentHashMap<>();
+    private final SecureRandom sessionIds = new SecureRandom();
+    private final ScheduledExecutorService uploadSessionExpiry = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "sessions-envoi");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final String BUSY_MESSAGE = "Serveur occupé, réessayez plus tard";
+    private static final int BUSY_RESPONSE_TIMEOUT_MS = 2000;
+    // Délai maximal d'attente des serveurs secondaires pendant un envoi (backup.upload.timeout, en ms)
+    private static final long UPLOAD_TIMEOUT_MS = Long.getLong("backup.upload.timeout", 60000);
+    // Délai pendant lequel un envoi par manifeste interrompu peut être repris (backup.upload.resumeTimeout, en ms)
+    private static final long UPLOAD_RESUME_TIMEOUT_MS = Long.getLong("backup.upload.resumeTimeout", 600000);
+    // Blocs de 64 Ko en mémoire par partition en cours d'envoi
+    private static final int PARTITION_PIPE_CHUNKS = 16;
+    // Délai maximal d'attente d'un serveur secondaire pendant un téléchargement (backup.download.timeout, en ms)
+    private static final long DOWNLOAD_TIMEOUT_MS = Long.getLong("backup.download.timeout", 60000);
+    // Blocs de 64 Ko lus en avance par partition pendant un téléchargement (backup.download.prefetch)
+    private static final int DOWNLOAD_PREFETCH_CHUNKS = Integer.getInteger("backup.download.prefetch", 64);
+    // Partitions lues en avance pendant un téléchargement (backup.download.window)
+    private static final int DOWNLOAD_WINDOW = Integer.getInteger("backup.download.window", 16);
+    // Envois et téléchargements groupés: les fichiers d'au plus BATCH_BUFFER_SIZE octets passent par
+    // la mémoire (backup.batch.bufferSize), au plus BATCH_PARALLEL à la fois (backup.batch.parallel)
+    private static final int BATCH_BUFFER_SIZE = Integer.getInteger("backup.batch.bufferSize", 1024 * 1024);
+    private static final int BATCH_PARALLEL = Integer.getInteger("backup.batch.parallel", 16);
+    // Découpage des fichiers: "dedup" (blocs définis par le contenu, stockés une fois), "stripe"
+    // (une partition par serveur secondaire, comme avant) ou "erasure" (partitions de données et
+    // de parité Reed-Solomon) (backup.layout)
+    private static final String LAYOUT = System.getProperty("backup.layout", "dedup");
+    private static final boolean ERASURE_CODING = LAYOUT.equals("erasure");
+    private static final boolean DEDUPLICATION = !LAYOUT.equals("stripe") && !ERASURE_CODING;
+    // Mode "erasure": k partitions de données (backup.erasure.data) + m de parité (backup.erasure.parity),
+    // sur k+m serveurs secondaires différents; le fichier survit à la perte de m d'entre eux
+    private static final ReedSolomon ERASURE_CODE = new ReedSolomon(
+            Integer.getInteger("backup.erasure.data", 2), Integer.getInteger("backup.erasure.parity", 1));
+    // Nouveaux blocs en cours d'envoi par fichier
+    private static final int CHUNKS_IN_FLIGHT = 16;
+    // Mode "stripe": nombre de serveurs secondaires (donc de partitions) par fichier, choisis par
+    // hachage cohérent du nom du fichier (backup.placement.targets)
+    private static final int PLACEMENT_TARGETS = Integer.getInteger("backup.placement.targets", 4);
+    // Copies de chaque partition ou bloc, sur des serveurs secondaires différents (backup.replication).
+    // Sans effet en mode "erasure", qui a déjà ses partitions de parité.
+    private static final int REPLICATION = Integer.getInteger("backup.replication", 1);
+    // Délai avant de demander aussi la copie suivante d'une partition répliquée (backup.download.hedgeDelay, en ms)
+    private static final long HEDGE_DELAY_MS = Long.getLong("backup.download.hedgeDelay", 50);
+    // Rééquilibrage des partitions existantes quand un serveur secondaire s'enregistre (backup.rebalance),
+    // REBALANCE_DELAY_MS après le dernier enregistrement (backup.rebalance.delay, en ms), à au plus
+    // REBALANCE_BANDWIDTH octets par seconde (backup.rebalance.bandwidth, 0 = sans limite). Les
+    // anciennes copies sont supprimées REBALANCE_GRACE_MS plus tard (backup.rebalance.grace, en ms).
+    // Les copies d'un serveur arrêté depuis REBALANCE_DOWN_GRACE_MS (backup.rebalance.downGrace, en
+    // ms) sont refaites sur les autres.
+    private static final boolean REBALANCE = Boolean.parseBoolean(System.getProperty("backup.rebalance", "true"));
+    private static final long REBALANCE_DELAY_MS = Long.getLong("backup.rebalance.delay", 10000);
+    private static final long REBALANCE_BANDWIDTH = Long.getLong("backup.rebalance.bandwidth", 20L * 1024 * 1024);
+    private static final long REBALANCE_GRACE_MS = Long.getLong("backup.rebalance.grace", 60000);
+    private static final long REBALANCE_DOWN_GRACE_MS = Long.getLong("backup.rebalance.downGrace", 60000);
+    // Début du fichier examiné pour choisir la compression des partitions (voir Codec)
+    private static final int COMPRESSION_SAMPLE_SIZE = 64 * 1024;
 
     public MainServer() {
-        secondaryServers = new ArrayList<>();
         storageFile = new File("storage.txt");
+        connectionPool = new WorkerPool("connexions");
+        rejectionResponder = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(64), r -> {
+                    Thread thread = new Thread(r, "refus-connexions");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        partitionTransfers = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "transferts-partitions");
+            thread.setDaemon(true);
+            return thread;
+        });
+        secondaryConnections = new SecondaryConnectionPool(this::updateLog);
+        membership = new Membership(secondaryConnections, this::updateLog, () -> {
+            partitionTransfers.execute(this::retryDeletes);
+            if (REBALANCE) {
+                rebalancer.schedule();
+            }
+        }, server -> {
+            if (REBALANCE) {
+                rebalancer.scheduleRepair();
+            }
+        }, this::corruptionReported);
         setupGUI();
+        loadCatalog();
+        rebalancer = new Rebalancer();
         setupServer();
     }
 
+    private String metrics() {
+        return connectionPool.metrics() + " | " + secondaryConnections.metrics() + " | " + membership.describe()
+                + " | lectures de secours: " + hedgedReads.get() + " (plus rapides: " + hedgedWins.get() + ")"
+                + " | copies corrompues: " + corruptCopies.size() + " | " + readCache.describe();
+    }
+
+    // Partitions trouvées corrompues par le serveur secondaire lui-même (voir Scrubber)
+    private void corruptionReported(SecondaryServerInfo server, List<String> partitionNames) {
+        for (String partitionName : partitionNames) {
+            String path = server.getStoragePath() + "/" + partitionName;
+            if (corruptCopies.add(path)) {
+                updateLog("Partition corrompue signalée par le serveur secondaire ID=" + server.getId() + ": " + partitionName);
+            }
+        }
+    }
+
+    // Copie dont le contenu lu ne correspond pas au CRC32C du catalogue
+    private void corruptionFound(String partitionPath) {
+        if (corruptCopies.add(partitionPath)) {
+            updateLog("Partition corrompue (CRC32C différent): " + partitionPath);
+        }
+    }
+
+    private void loadCatalog() {
+        // storage.txt est l'instantané, storage.log le journal des modifications suivantes
+        catalogJournal = new CatalogJournal(storageFile, this::updateLog);
+        try {
+            catalog = catalogJournal.open();
+            chunkIndex = new ChunkIndex();
+            chunkIndex.load(catalog);
+            updateLog("Catalogue chargé: " + catalog.size() + " fichier(s), " + chunkIndex.size() + " bloc(s)");
+        } catch (IOException | NumberFormatException e) {
+            updateLog("Erreur de lecture du catalogue: " + e.getMessage());
+            throw new IllegalStateException("Catalogue illisible", e);
+        }
+    }
+
     private void setupGUI() {
         setTitle("Serveur Principal");
         setSize(600, 400);
@@ -40,6 +221,11 @@ public class MainServer extends JFrame {
         JButton startButton = new JButton("Démarrer le serveur");
         startButton.addActionListener(e -> startServer());
 
+        // Indicateurs du pool de connexions, rafraîchis chaque seconde
+        metricsLabel = new JLabel(metrics());
+        new javax.swing.Timer(1000, e -> metricsLabel.setText(metrics())).start();
+
+        mainPanel.add(metricsLabel, BorderLayout.NORTH);
         mainPanel.add(serversPanel, BorderLayout.CENTER);
         mainPanel.add(startButton, BorderLayout.SOUTH);
 
@@ -47,6 +233,10 @@ public class MainServer extends JFrame {
     }
 
     private void setupServer() {
+        if (Boolean.getBoolean("backup.server.nio")) {
+            setupNioServer();
+            return;
+        }
         Thread serverThread = new Thread(() -> {
             try {
                 serverSocket = new ServerSocket(mainServerPort);
@@ -64,8 +254,31 @@ public class MainServer extends JFrame {
         serverThread.start();
     }
 
+    // Mode événementiel: quelques threads d'E/S pour toutes les connexions, les workers ne
+    // sont occupés que pendant le traitement d'une commande
+    private void setupNioServer() {
+        nioServer = new NioServer(mainServerPort, new NioServer.Handler() {
+            @Override
+            public void handleLegacy(Socket socket, InputStream in) throws Exception {
+                handleLegacyConnection(socket, in);
+            }
+
+            @Override
+            public boolean handleFrame(Socket socket, Protocol.Frame frame, DataInputStream in, DataOutputStream out, int version) throws IOException {
+                return MainServer.this.handleFrame(socket, frame, in, out, version);
+            }
+        }, connectionPool, this::updateLog);
+        try {
+            nioServer.start();
+            updateLog("Serveur principal démarré sur le port " + mainServerPort + " (NIO)");
+        } catch (IOException e) {
+            updateLog("Erreur serveur: " + e.getMessage());
+        }
+    }
+
     private void startServer() {
-    if (serverSocket == null || serverSocket.isClosed()) {
+    boolean running = nioServer != null ? nioServer.isRunning() : serverSocket != null && !serverSocket.isClosed();
+    if (!running) {
         setupServer();
         updateLog("Serveur démarré");
     } else {
@@ -73,199 +286,1823 @@ public class MainServer extends JFrame {
     }
 }
 
+private Catalog.Entry findFile(String fileName) throws IOException {
+    Catalog.Entry entry = catalog.get(fileName);
+    if (entry == null) {
+        throw new IOException("Fichier non trouvé");
+    }
+    return entry;
+}
+
 private void handleFileDownload(ObjectOutputStream out, String fileName) throws IOException {
     try {
-        // Lire les informations du fichier depuis storage.txt
-        List<String> partitionPaths = new ArrayList<>();
-        int numPartitions = 0;
+        Catalog.Entry entry = findFile(fileName);
+
+        // Ancien protocole: un seul tableau, rempli depuis les partitions
+        if (entry.getSize() > Integer.MAX_VALUE - 8) {
+            throw new IOException("Fichier trop volumineux pour DOWNLOAD, utiliser DOWNLOAD_STREAM");
+        }
+        byte[] combinedFile = new byte[(int) entry.getSize()];
+        ByteBuffer filled = ByteBuffer.wrap(combinedFile);
+        sendPartitions(filling(filled), entry);
+        if (filled.hasRemaining()) {
+            throw new IOException("Fichier plus court que sa taille enregistrée");
+        }
+
+        // Envoyer le fichier reconstitué au client
+        out.writeObject(combinedFile);
         
-        try (BufferedReader reader = new BufferedReader(new FileReader(storageFile))) {
-            String line;
-            boolean foundFile = false;
-            while ((line = reader.readLine()) != null) {
-                if (line.startsWith(fileName + ";")) {
-                    foundFile = true;
-                    String[] parts = line.split(";");
-                    numPartitions = Integer.parseInt(parts[2]);
-                    
-                    // Lire les chemins des partitions
-                    for (int i = 0; i < numPartitions; i++) {
-                        partitionPaths.add(reader.readLine());
+    } catch (IOException e) {
+        updateLog("Erreur lors du téléchargement: " + e.getMessage());
+        out.writeObject(null);
+    }
+}
+
+// Envoie l'entête ("OK" + taille) puis le contenu brut des partitions, dans l'ordre,
+// directement sur la socket: le client écrit sur disque au fur et à mesure.
+private void handleStreamingDownload(Socket socket, ObjectOutputStream out, String fileName) throws IOException {
+    Catalog.Entry entry;
+    try {
+        entry = findFile(fileName);
+    } catch (IOException e) {
+        updateLog("Erreur lors du téléchargement: " + e.getMessage());
+        out.writeObject("ERROR: " + e.getMessage());
+        out.flush();
+        return;
+    }
+
+    out.writeObject("OK");
+    out.writeLong(entry.getSize());
+    out.flush();
+
+    sendPartitions(socketChannel(socket), entry);
+    updateLog("Fichier envoyé: " + fileName + " (" + entry.getSize() + " octets)");
+}
+
+private static WritableByteChannel socketChannel(Socket socket) throws IOException {
+    // transferTo évite la copie en mémoire utilisateur quand la socket a un canal NIO
+    return socket.getChannel() != null
+            ? socket.getChannel()
+            : Channels.newChannel(socket.getOutputStream());
+}
+
+// Canal qui ignore les skip premiers octets écrits, pour reprendre un téléchargement: les
+// partitions sont relues depuis le début (leurs tailles, après décompression, ne sont pas connues
+// à l'avance), mais seule la fin du fichier repasse sur la connexion du client.
+private static WritableByteChannel skipping(WritableByteChannel target, long skip) {
+    if (skip == 0) {
+        return target;
+    }
+    return new WritableByteChannel() {
+        private long remaining = skip;
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int dropped = (int) Math.min(remaining, src.remaining());
+            src.position(src.position() + dropped);
+            remaining -= dropped;
+            return src.hasRemaining() ? dropped + target.write(src) : dropped;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return target.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            target.close();
+        }
+    };
+}
+
+// Canal qui remplit buffer, sans le dépasser: le tableau envoyé par DOWNLOAD est alloué une seule
+// fois à la taille du fichier
+private static WritableByteChannel filling(ByteBuffer buffer) {
+    return new WritableByteChannel() {
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int length = src.remaining();
+            if (length > buffer.remaining()) {
+                throw new IOException("Fichier plus long que sa taille enregistrée");
+            }
+            buffer.put(src);
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+}
+
+// Envoie le contenu des partitions dans l'ordre. Les partitions suivantes sont demandées en même
+// temps à leurs serveurs secondaires (RETRIEVE_PARTITION) et lues en avance pendant que les
+// précédentes partent vers le client. Les partitions sans serveur binaire connu sont lues sur le
+// disque local, comme avant.
+private void sendPartitions(WritableByteChannel target, Catalog.Entry entry) throws IOException {
+    List<String> partitionPaths = entry.getPartitionPaths();
+    ReedSolomon code = partitionPaths.isEmpty() ? null : ReedSolomon.fromShardPath(partitionPaths.get(0));
+    if (code != null) {
+        sendShards(target, entry, code);
+        return;
+    }
+    List<PartitionPipe> fetches = new ArrayList<>(partitionPaths.size());
+    // Partitions trouvées dans le cache (null sinon): elles ne sont pas demandées
+    List<ByteBuffer> cached = new ArrayList<>(partitionPaths.size());
+
+    long sent = 0;
+    try {
+        for (int i = 0; i < partitionPaths.size(); i++) {
+            long partitionStart = sent;
+            // Au plus DOWNLOAD_WINDOW partitions demandées en avance (un fichier dédupliqué a de nombreux blocs)
+            while (fetches.size() < partitionPaths.size() && fetches.size() <= i + DOWNLOAD_WINDOW) {
+                int next = fetches.size();
+                ByteBuffer content = readCache.get(cacheKey(entry, next));
+                cached.add(content);
+                fetches.add(content != null ? null : startFetch(entry.getReplicas(next), entry.getChecksum(next)));
+            }
+            PartitionPipe pipe = fetches.get(i);
+            Codec codec = Codec.of(partitionPaths.get(i));
+            if (cached.get(i) != null) {
+                sent += writeFully(cached.get(i), target);
+            } else if (pipe == null) {
+                try {
+                    sent += transferLocalPartition(partitionPaths.get(i), entry.getChecksum(i), target);
+                } catch (IOException e) {
+                    if (e.getCause() instanceof CorruptPartitionException) {
+                        corruptDownload(entry, partitionStart);
                     }
-                    break;
+                    throw e;
+                }
+            } else {
+                int index = i;
+                WritableByteChannel capture = readCache.capture(target, cacheKey(entry, i),
+                        () -> partitionLength(entry, index, pipe));
+                try (InputStream partition = codec.decompress(pipe)) {
+                    sent += copyToChannel(partition, capture);
+                    readCache.commit(capture);
+                } catch (IOException e) {
+                    if (e.getCause() instanceof CorruptPartitionException) {
+                        corruptDownload(entry, partitionStart);
+                    }
+                    throw e;
                 }
             }
-            
-            if (!foundFile) {
-                throw new IOException("Fichier non trouvé");
+        }
+    } finally {
+        // Arrête les lectures en avance si l'envoi au client a échoué
+        for (PartitionPipe pipe : fetches) {
+            if (pipe != null) {
+                pipe.abort();
             }
         }
+    }
+    if (sent != entry.getSize()) {
+        throw new IOException("Taille reçue des serveurs secondaires incorrecte: " + sent + " au lieu de " + entry.getSize());
+    }
+}
+
+// Fichier codé Reed-Solomon: toutes les partitions sont demandées en même temps et chaque bande
+// part vers le client dès que k partitions l'ont fournie; les plus lentes sont ignorées, les
+// partitions perdues sont reconstituées à partir de la parité.
+private void sendShards(WritableByteChannel target, Catalog.Entry entry, ReedSolomon code) throws IOException {
+    List<String> shardPaths = entry.getPartitionPaths();
+    ShardCollector collector = new ShardCollector(code, entry.getSize(), DOWNLOAD_PREFETCH_CHUNKS);
+    List<PartitionPipe> fetches = new ArrayList<>(shardPaths.size());
+    // Une partition corrompue n'est détectée qu'à sa fin, quand ses bandes sont peut-être déjà
+    // parties: la dernière bande attend donc la vérification des partitions qui ont servi, et le
+    // téléchargement échoue avant la fin du fichier; sa reprise reconstitue la partition par la parité
+    AtomicBoolean corrupted = new AtomicBoolean();
+    // Fichier entier dans le cache: les partitions ne sont pas demandées
+    String key = cacheKey(entry, -1);
+    ByteBuffer content = readCache.get(key);
+    if (content != null) {
+        if (writeFully(content, target) != entry.getSize()) {
+            throw new IOException("Taille du fichier en cache incorrecte: " + entry.getFileName());
+        }
+        return;
+    }
+    WritableByteChannel capture = readCache.capture(target, key, entry.getSize());
 
-        // Récupérer et combiner les partitions
-        ByteArrayOutputStream combinedFile = new ByteArrayOutputStream();
-        for (String partitionPath : partitionPaths) {
-            byte[] partitionData = Files.readAllBytes(Paths.get(partitionPath));
-            combinedFile.write(partitionData);
+    long sent = 0;
+    try {
+        for (int i = 0; i < shardPaths.size(); i++) {
+            int shard = i;
+            String shardPath = shardPaths.get(i);
+            PartitionPipe pipe = startFetch(List.of(shardPath), entry.getChecksum(i));
+            fetches.add(pipe);
+            long checksum = entry.getChecksum(i);
+            partitionTransfers.execute(() -> readShard(collector, shard, shardPath, pipe, checksum, corrupted));
+        }
+        byte[] stripe;
+        while ((stripe = collector.nextStripe(DOWNLOAD_TIMEOUT_MS)) != null) {
+            if (sent + stripe.length == entry.getSize()) {
+                collector.awaitUsed(DOWNLOAD_TIMEOUT_MS);
+            }
+            if (corrupted.get()) {
+                // Chaque partition couvre tout le fichier
+                corruptDownload(entry, 0);
+                throw new IOException("Partition corrompue pendant le téléchargement de " + entry.getFileName());
+            }
+            sent += writeFully(ByteBuffer.wrap(stripe), capture);
+        }
+    } finally {
+        // Arrête les lectures des partitions qui n'ont pas servi
+        collector.close();
+        for (PartitionPipe pipe : fetches) {
+            if (pipe != null) {
+                pipe.abort();
+            }
         }
+    }
+    if (sent != entry.getSize()) {
+        throw new IOException("Taille reçue des serveurs secondaires incorrecte: " + sent + " au lieu de " + entry.getSize());
+    }
+    readCache.commit(capture);
+    if (collector.getReconstructed() > 0) {
+        updateLog("Fichier " + entry.getFileName() + ": " + collector.getReconstructed() + " bande(s) reconstituée(s) par la parité");
+    }
+}
 
-        // Envoyer le fichier reconstitué au client
-        out.writeObject(combinedFile.toByteArray());
-        
+// Taille du contenu (décompressé) d'une partition lue par pipe, -1 si inconnue: celle annoncée par le
+// serveur secondaire pour une partition non compressée, sinon celle du découpage de distributeFile
+// (la taille d'un bloc compressé n'est pas connue)
+private static long partitionLength(Catalog.Entry entry, int partition, PartitionPipe pipe) {
+    String partitionPath = entry.getPartitionPaths().get(partition);
+    if (Codec.of(partitionPath) == Codec.NONE) {
+        return pipe.getLength();
+    }
+    if (ChunkIndex.isChunk(partitionPath)) {
+        return -1;
+    }
+    int count = entry.getPartitionPaths().size();
+    long partitionSize = (entry.getSize() + count - 1) / count;
+    return Math.max(0, Math.min(partitionSize, entry.getSize() - partition * partitionSize));
+}
+
+// Clé du contenu de la partition dans le cache (du fichier entier si partition < 0, pour un
+// fichier codé Reed-Solomon). Un bloc est désigné par son contenu, partagé entre les fichiers; une
+// autre partition, par la version du fichier, qui change quand il est renvoyé.
+private static String cacheKey(Catalog.Entry entry, int partition) {
+    if (partition < 0) {
+        return entry.getFileName() + "@" + entry.getVersion();
+    }
+    String partitionPath = entry.getPartitionPaths().get(partition);
+    return ChunkIndex.isChunk(partitionPath) ? partitionName(partitionPath) : partitionName(partitionPath) + "@" + entry.getVersion();
+}
+
+// Le cache n'est plus utile pour cette version du fichier (renvoyé ou supprimé); ses blocs le
+// sont tant qu'un autre fichier les utilise
+private void evictFromCache(Catalog.Entry entry) {
+    List<String> partitionPaths = entry.getPartitionPaths();
+    readCache.invalidate(cacheKey(entry, -1));
+    for (int i = 0; i < partitionPaths.size(); i++) {
+        if (!ChunkIndex.isChunk(partitionPaths.get(i))) {
+            readCache.invalidate(cacheKey(entry, i));
+        }
+    }
+}
+
+private static long writeFully(ByteBuffer data, WritableByteChannel target) throws IOException {
+    long length = data.remaining();
+    while (data.hasRemaining()) {
+        target.write(data);
+    }
+    return length;
+}
+
+private void readShard(ShardCollector collector, int shard, String shardPath, PartitionPipe pipe, long checksum, AtomicBoolean corrupted) {
+    Codec codec = Codec.of(shardPath);
+    try (InputStream stored = pipe != null ? pipe : openLocalPartition(shardPath, checksum);
+         InputStream in = codec.decompress(stored)) {
+        collector.read(shard, in);
+        // Jusqu'à la fin du flux: le CRC32C n'est vérifié qu'après le dernier octet
+        in.transferTo(OutputStream.nullOutputStream());
+        stored.transferTo(OutputStream.nullOutputStream());
+        collector.finish(shard);
     } catch (IOException e) {
-        updateLog("Erreur lors du téléchargement: " + e.getMessage());
-        out.writeObject(null);
+        if (e.getCause() instanceof CorruptPartitionException) {
+            corrupted.set(true);
+        }
+        collector.fail(shard, e);
     }
 }
 
-private void sendFileList(ObjectOutputStream out) throws IOException {
-    List<String> fileNames = new ArrayList<>();
-    
-    try (BufferedReader reader = new BufferedReader(new FileReader(storageFile))) {
-        String line;
-        while ((line = reader.readLine()) != null) {
-            if (line.contains(";")) {  // Ligne contenant les infos du fichier
-                String fileName = line.split(";")[0];
-                fileNames.add(fileName);
+// Demande la partition aux serveurs secondaires qui en ont une copie, les moins chargés d'abord
+// (les serveurs arrêtés en dernier, les copies corrompues jamais); null si elle doit être lue sur
+// le disque local (copie principale). Les données reçues sont comparées à checksum au passage.
+private PartitionPipe startFetch(List<String> replicaPaths, long checksum) {
+    Map<SecondaryServerInfo, String> copies = new LinkedHashMap<>();
+    boolean skipped = false;
+    for (String path : replicaPaths) {
+        SecondaryServerInfo server = findServer(path);
+        if (corruptCopies.contains(path)) {
+            skipped = true;
+        } else if (server != null && server.getProtocolVersion() > 0) {
+            copies.put(server, path);
+        }
+    }
+    if (copies.isEmpty() && skipped) {
+        PartitionPipe pipe = new PartitionPipe(0);
+        pipe.fail(new IOException("Toutes les copies de la partition sont corrompues: " + partitionName(replicaPaths.get(0))));
+        return pipe;
+    }
+    if (copies.isEmpty()) {
+        return null;
+    }
+    List<SecondaryServerInfo> servers = membership.byLoad(new ArrayList<>(copies.keySet()));
+    List<String> paths = new ArrayList<>(servers.size());
+    for (SecondaryServerInfo server : servers) {
+        paths.add(copies.get(server));
+    }
+    PartitionPipe pipe = new PartitionPipe(DOWNLOAD_PREFETCH_CHUNKS);
+    new HedgedFetch(servers, paths, checksum, pipe).start();
+    return pipe;
+}
+
+// Lecture d'une partition et passage des données au thread d'envoi. Pour une partition répliquée
+// (lecture "de secours", hedged read), la première copie est demandée tout de suite et la
+// suivante si aucune réponse n'est arrivée après HEDGE_DELAY_MS, ou dès qu'une demande échoue.
+// La première copie qui répond fournit les données; les réponses suivantes sont abandonnées avec
+// leur connexion. Un serveur secondaire momentanément lent (GC, disque saturé) ne retarde donc
+// plus le téléchargement.
+//
+// Le CRC32C des données est calculé pendant leur lecture; le dernier bloc n'est passé au thread
+// d'envoi qu'après sa comparaison avec celui du catalogue. Une copie corrompue fait donc échouer
+// la partition avant sa fin et est évitée par les lectures suivantes (reprise du client comprise).
+private final class HedgedFetch {
+    private final List<SecondaryServerInfo> servers;
+    private final List<String> paths;
+    private final long checksum;
+    private final PartitionPipe pipe;
+    private final AtomicInteger started = new AtomicInteger(1);
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger winner = new AtomicInteger(-1);
+
+    HedgedFetch(List<SecondaryServerInfo> servers, List<String> paths, long checksum, PartitionPipe pipe) {
+        this.servers = servers;
+        this.paths = paths;
+        this.checksum = checksum;
+        this.pipe = pipe;
+    }
+
+    void start() {
+        launch(0);
+    }
+
+    private void launch(int attempt) {
+        if (attempt > 0) {
+            hedgedReads.incrementAndGet();
+        }
+        partitionTransfers.execute(() -> fetch(attempt));
+        if (attempt + 1 < servers.size()) {
+            CompletableFuture.delayedExecutor(HEDGE_DELAY_MS, TimeUnit.MILLISECONDS, partitionTransfers).execute(() -> {
+                if (winner.get() < 0 && !pipe.isAborted() && started.compareAndSet(attempt + 1, attempt + 2)) {
+                    launch(attempt + 1);
+                }
+            });
+        }
+    }
+
+    private void fetch(int attempt) {
+        SecondaryServerInfo server = servers.get(attempt);
+        String partitionName = partitionName(paths.get(attempt));
+        try {
+            secondaryConnections.execute(server, (int) DOWNLOAD_TIMEOUT_MS, connection -> {
+                Protocol.writeFrame(connection.getOut(), Protocol.RETRIEVE_PARTITION, header -> {
+                    header.writeUTF(partitionName);
+                    header.writeLong(0);
+                    header.writeLong(-1);
+                });
+                connection.getOut().flush();
+                long remaining = Protocol.readResponse(connection.getIn()).header.readLong();
+                if (!winner.compareAndSet(-1, attempt)) {
+                    // Une autre copie a répondu avant: la connexion, avec ses données non lues, est fermée
+                    throw new IOException("Copie abandonnée");
+                }
+                if (attempt > 0) {
+                    hedgedWins.incrementAndGet();
+                }
+                pipe.announce(remaining);
+                CRC32C crc = new CRC32C();
+                while (remaining > 0) {
+                    byte[] chunk = new byte[(int) Math.min(ChunkedOutputStream.DEFAULT_CHUNK_SIZE, remaining)];
+                    connection.getIn().readFully(chunk);
+                    crc.update(chunk);
+                    remaining -= chunk.length;
+                    if (remaining == 0 && checksum != Catalog.NO_CHECKSUM && crc.getValue() != checksum) {
+                        corruptionFound(paths.get(attempt));
+                        throw new CorruptPartitionException(partitionName);
+                    }
+                    pipe.feed(chunk, DOWNLOAD_TIMEOUT_MS);
+                }
+                if (checksum != Catalog.NO_CHECKSUM && crc.getValue() != checksum) {
+                    // Partition vide attendue non vide, ou l'inverse
+                    corruptionFound(paths.get(attempt));
+                    throw new CorruptPartitionException(partitionName);
+                }
+                return null;
+            });
+            pipe.finish(DOWNLOAD_TIMEOUT_MS);
+        } catch (IOException e) {
+            int current = winner.get();
+            if (current >= 0 && current != attempt) {
+                return;
+            }
+            // Une lecture arrêtée par le thread d'envoi (client parti, partition devenue inutile) n'est pas une erreur
+            if (!pipe.isAborted()) {
+                updateLog("Erreur lors de la lecture de la partition " + partitionName + " sur le serveur " + server.getId() + ": " + e.getMessage());
+            }
+            if (current == attempt || failed.incrementAndGet() == servers.size()) {
+                pipe.fail(e);
+                return;
+            }
+            // Pas encore de réponse: la copie suivante est demandée sans attendre
+            int next = started.get();
+            if (next < servers.size() && started.compareAndSet(next, next + 1)) {
+                launch(next);
             }
         }
     }
-    
-    out.writeObject(fileNames);
 }
 
-private void sendPartitionToSecondary(SecondaryServerInfo server, String partitionName, byte[] partitionData) {
-    try (Socket socket = new Socket(server.getIp(), server.getPort());
-         ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream())) {
-        
-        out.writeObject("STORE_PARTITION");
-        out.writeObject(partitionName);
-        out.writeObject(partitionData);
+// Copie de partition dont le CRC32C ne correspond pas à celui du catalogue
+private static final class CorruptPartitionException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    CorruptPartitionException(String partitionName) {
+        super("Partition corrompue (CRC32C différent): " + partitionName);
+    }
+}
+
+// Position à partir de laquelle un client a pu recevoir des données corrompues
+private static final class CorruptDownload {
+    final long version;
+    final long offset;
+
+    CorruptDownload(long version, long offset) {
+        this.version = version;
+        this.offset = offset;
+    }
+}
+
+private void corruptDownload(Catalog.Entry entry, long offset) {
+    corruptDownloads.merge(entry.getFileName(), new CorruptDownload(entry.getVersion(), offset),
+            (previous, current) -> previous.version == current.version && previous.offset <= current.offset ? previous : current);
+}
+
+private static long copyToChannel(InputStream in, WritableByteChannel target) throws IOException {
+    byte[] buffer = new byte[ChunkedOutputStream.DEFAULT_CHUNK_SIZE];
+    long total = 0;
+    int n;
+    while ((n = in.read(buffer)) >= 0) {
+        ByteBuffer data = ByteBuffer.wrap(buffer, 0, n);
+        while (data.hasRemaining()) {
+            target.write(data);
+        }
+        total += n;
+    }
+    return total;
+}
+
+private long transferLocalPartition(String partitionPath, long checksum, WritableByteChannel target) throws IOException {
+    try (InputStream stored = openLocalPartition(partitionPath, checksum);
+         InputStream partition = Codec.of(partitionPath).decompress(stored)) {
+        long sent = copyToChannel(partition, target);
+        // Un flux compressé peut finir avant le dernier octet stocké
+        stored.transferTo(OutputStream.nullOutputStream());
+        return sent;
+    }
+}
+
+// Copie locale telle qu'elle est stockée. Son CRC32C est comparé à checksum en fin de lecture,
+// comme pour une copie lue sur un serveur secondaire (voir HedgedFetch); l'erreur a pour cause
+// une CorruptPartitionException, comme celle d'une PartitionPipe.
+private InputStream openLocalPartition(String partitionPath, long checksum) throws IOException {
+    CRC32C crc = new CRC32C();
+    return new FilterInputStream(new CheckedInputStream(Files.newInputStream(localPartition(partitionPath)), crc)) {
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b < 0) {
+                verify();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n < 0) {
+                verify();
+            }
+            return n;
+        }
+
+        private void verify() throws IOException {
+            if (checksum != Catalog.NO_CHECKSUM && crc.getValue() != checksum) {
+                corruptionFound(partitionPath);
+                CorruptPartitionException cause = new CorruptPartitionException(partitionName(partitionPath));
+                throw new IOException(cause.getMessage(), cause);
+            }
+        }
+    };
+}
+
+// Copie lue directement sur le disque local, sans serveur secondaire enregistré: seulement un
+// fichier du répertoire de stockage (serveurs de l'ancien protocole sur la même machine). Une
+// partition peut aussi être dans un segment (voir SegmentStore), que seul son serveur lit.
+private static Path localPartition(String partitionPath) throws IOException {
+    Path path = Paths.get(partitionPath);
+    if (!Files.isRegularFile(path)) {
+        throw new IOException("Partition " + partitionName(partitionPath)
+                + " indisponible: son serveur secondaire n'est pas (encore) enregistré");
+    }
+    return path;
+}
+
+// Serveur secondaire qui héberge une partition, d'après le répertoire de son chemin
+private SecondaryServerInfo findServer(String partitionPath) {
+    return findServer(partitionPath, membership.getServers());
+}
+
+private static SecondaryServerInfo findServer(String partitionPath, List<SecondaryServerInfo> servers) {
+    int slash = partitionPath.lastIndexOf('/');
+    String location = slash < 0 ? "" : partitionPath.substring(0, slash);
+    for (SecondaryServerInfo server : servers) {
+        if (location.equals(server.getStoragePath())) {
+            return server;
+        }
+    }
+    return null;
+}
+
+private static String partitionName(String partitionPath) {
+    return partitionPath.substring(partitionPath.lastIndexOf('/') + 1);
+}
+
+// Début du nom des partitions d'un fichier: le nom d'un fichier peut contenir des séparateurs
+// (sauvegarde d'un répertoire, voir ClientSans), pas celui d'une partition
+private static String partitionBaseName(String fileName) {
+    return fileName.replace("%", "%25").replace("/", "%2F").replace("\\", "%5C");
+}
+
+private void sendFileList(ObjectOutputStream out) throws IOException {
+    out.writeObject(listFileNames());
+}
+
+private ArrayList<String> listFileNames() {
+    return catalog.fileNames();
+}
+
+// Retourne le nombre d'octets stockés (après compression); checksum reçoit le CRC32C des octets
+// stockés, que le serveur secondaire vérifie à la réception s'il le connaît
+private long sendPartitionToSecondary(SecondaryServerInfo server, String partitionName, InputStream data, long length, byte[] buffer, Codec codec, CRC32C checksum) throws IOException {
+    try {
+        if (server.getProtocolVersion() > 0) {
+            long stored = secondaryConnections.execute(server, (int) UPLOAD_TIMEOUT_MS, connection -> {
+                checksum.reset();
+                boolean verified = server.getProtocolVersion() >= Protocol.VERSION_CHECKSUM;
+                Protocol.writeFrame(connection.getOut(), Protocol.STORE_PARTITION, header -> {
+                    header.writeUTF(partitionName);
+                    if (verified) {
+                        header.writeBoolean(true);
+                    }
+                });
+                long written = copyAsChunks(data, connection.getOut(), length, buffer, codec, checksum);
+                if (verified) {
+                    connection.getOut().writeInt((int) checksum.getValue());
+                    connection.getOut().flush();
+                }
+                // Attendre l'accusé de réception du serveur secondaire
+                Protocol.readResponse(connection.getIn());
+                return written;
+            });
+            // Copie réécrite: son ancien contenu corrompu a disparu
+            corruptCopies.remove(server.getStoragePath() + "/" + partitionName);
+            return stored;
+        } else {
+            try (Socket socket = new Socket(server.getIp(), server.getPort())) {
+                socket.setSoTimeout((int) UPLOAD_TIMEOUT_MS);
+                ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                out.writeObject("STORE_PARTITION_STREAM");
+                out.writeObject(partitionName);
+                checksum.reset();
+                return copyAsChunks(data, out, length, buffer, codec, checksum);
+            }
+        }
         
     } catch (IOException e) {
         updateLog("Erreur lors de l'envoi de la partition au serveur " + server.getId() + ": " + e.getMessage());
+        throw e;
     }
 }
 
+// Transférer exactement length octets bloc par bloc, sans les charger en mémoire, compressés au
+// passage par codec. Retourne le nombre d'octets envoyés après compression; checksum reçoit leur
+// CRC32C, calculé dans le même passage.
+private static long copyAsChunks(InputStream data, OutputStream out, long length, byte[] buffer, Codec codec, CRC32C checksum) throws IOException {
+    ChunkedOutputStream chunks = new ChunkedOutputStream(out);
+    OutputStream encoded = codec.compress(new CheckedOutputStream(chunks, checksum));
+    long remaining = length;
+    while (remaining > 0) {
+        int n = data.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+        if (n < 0) {
+            throw new EOFException("Fin de fichier inattendue (" + remaining + " octets manquants)");
+        }
+        encoded.write(buffer, 0, n);
+        remaining -= n;
+    }
+    // Seulement en cas de succès: le marqueur de fin ne doit pas suivre une partition incomplète
+    encoded.close();
+    return chunks.getWritten();
+}
+
     private void handleNewConnection(Socket socket) {
-        // Gérer la nouvelle connexion dans un thread séparé
-        Thread connectionHandler = new Thread(() -> {
+        // Gérer la nouvelle connexion dans le pool de traitement (threads et file d'attente bornés)
+        boolean accepted = connectionPool.submit(() -> {
             try {
-                ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-                ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-
-                // Lire le type de connexion (CLIENT ou SECONDARY_SERVER)
-                String connectionType = (String) in.readObject();
-
-                if (connectionType.equals("SECONDARY_SERVER")) {
-                    handleSecondaryServer(socket, in, out);
-                } else if (connectionType.equals("CLIENT")) {
-                    handleClient(socket, in, out);
+                // Les premiers octets indiquent le protocole: sérialisation Java (ancien) ou binaire
+                BufferedInputStream rawIn = new BufferedInputStream(socket.getInputStream());
+                if (Protocol.isSerializationStream(rawIn)) {
+                    handleLegacyConnection(socket, rawIn);
+                } else {
+                    handleBinaryConnection(socket, rawIn);
                 }
             } catch (Exception e) {
                 updateLog("Erreur de connexion: " + e.getMessage());
             }
         });
-        connectionHandler.start();
+        if (!accepted) {
+            rejectConnection(socket);
+        }
     }
 
-    private void handleSecondaryServer(Socket socket, ObjectInputStream in, ObjectOutputStream out) throws IOException, ClassNotFoundException {
-        SecondaryServerInfo serverInfo = (SecondaryServerInfo) in.readObject();
-        serverInfo.setId(secondaryServers.size() + 1);
-        secondaryServers.add(serverInfo);
-        updateLog("Nouveau serveur secondaire connecté: ID=" + serverInfo.getId() + 
-                 ", IP=" + serverInfo.getIp() + ", Port=" + serverInfo.getPort());
+    // Pool saturé: un thread unique répond "serveur occupé" dans le protocole du client.
+    // Si lui aussi est débordé, la connexion est simplement fermée.
+    private void rejectConnection(Socket socket) {
+        try {
+            rejectionResponder.execute(() -> sendBusy(socket));
+        } catch (RejectedExecutionException e) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Connexion déjà fermée
+            }
+        }
     }
 
-    private void handleClient(Socket socket, ObjectInputStream in, ObjectOutputStream out) throws IOException, ClassNotFoundException {
-        String action = (String) in.readObject();
-    
-        if (action.equals("UPLOAD")) {
-            handleFileUpload(in);
-        } else if (action.equals("DOWNLOAD")) {
-            handleFileDownload(out, (String) in.readObject());
-        } else if (action.equals("LIST_FILES")) {
-            sendFileList(out);
-        } else if (action.equals("DELETE")) {  // Handle delete action
-            String fileName = (String) in.readObject();
-            deleteFile(fileName, out);
+    private void sendBusy(Socket socket) {
+        try (socket) {
+            socket.setSoTimeout(BUSY_RESPONSE_TIMEOUT_MS);
+            BufferedInputStream rawIn = new BufferedInputStream(socket.getInputStream());
+            if (Protocol.isSerializationStream(rawIn)) {
+                ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+                out.writeObject("ERROR: " + BUSY_MESSAGE);
+                out.flush();
+            } else {
+                DataInputStream in = new DataInputStream(rawIn);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                Protocol.serverHandshake(in, out);
+                Protocol.writeError(out, BUSY_MESSAGE);
+            }
+        } catch (IOException e) {
+            // Le client est déjà parti
         }
     }
-    
 
-    private void handleFileUpload(ObjectInputStream in) throws IOException, ClassNotFoundException {
-        String fileName = (String) in.readObject();
-        long fileSize = (Long) in.readObject();
-        byte[] fileData = (byte[]) in.readObject();
+    private void handleLegacyConnection(Socket socket, InputStream rawIn) throws IOException, ClassNotFoundException {
+        ObjectInputStream in = new ObjectInputStream(rawIn);
+        ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
 
-        // Diviser le fichier en partitions
-        int numPartitions = secondaryServers.size();
-        int partitionSize = (int) Math.ceil(fileData.length / (double) numPartitions);
+        // Lire le type de connexion (CLIENT ou SECONDARY_SERVER)
+        String connectionType = (String) in.readObject();
 
-        // Distribuer les partitions
-        for (int i = 0; i < numPartitions; i++) {
-            SecondaryServerInfo server = secondaryServers.get(i);
-            int start = i * partitionSize;
-            int end = Math.min(start + partitionSize, fileData.length);
-            byte[] partition = Arrays.copyOfRange(fileData, start, end);
-            
-            // Envoyer la partition au serveur secondaire
-            sendPartitionToSecondary(server, fileName + ".part" + (i+1), partition);
+        if (connectionType.equals("SECONDARY_SERVER")) {
+            handleSecondaryServer(socket, in, out);
+        } else if (connectionType.equals("CLIENT")) {
+            handleClient(socket, in, out);
         }
+    }
 
-        // Enregistrer les informations dans storage.txt
-        saveToStorage(fileName, fileSize, numPartitions);
+    // Protocole binaire: plusieurs commandes peuvent se suivre sur la même connexion
+    private void handleBinaryConnection(Socket socket, InputStream rawIn) throws IOException {
+        try (socket) {
+            DataInputStream in = new DataInputStream(rawIn);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            int version = Protocol.serverHandshake(in, out);
+
+            Protocol.Frame frame;
+            while ((frame = Protocol.readFrame(in)) != null) {
+                if (!handleFrame(socket, frame, in, out, version)) {
+                    return;
+                }
+            }
+        }
     }
 
-    private void saveToStorage(String fileName, long fileSize, int numPartitions) {
-        try (PrintWriter writer = new PrintWriter(new FileWriter(storageFile, true))) {
-            writer.println(fileName + ";" + fileSize + ";" + numPartitions);
-            for (int i = 0; i < numPartitions; i++) {
-                writer.println(secondaryServers.get(i).getStoragePath() + "/" + fileName + ".part" + (i+1));
+    // Traite une commande du protocole binaire; retourne false si la connexion doit être fermée
+    private boolean handleFrame(Socket socket, Protocol.Frame frame, DataInputStream in, DataOutputStream out, int version) throws IOException {
+        switch (frame.opcode) {
+            case Protocol.REGISTER -> registerSecondaryServer(frame, out, version);
+            case Protocol.UPLOAD -> handleBinaryUpload(frame, in, out);
+            case Protocol.UPLOAD_MANIFEST -> handleManifestUpload(socket, frame, in, out);
+            case Protocol.UPLOAD_RESUME -> handleUploadResume(socket, frame, in, out);
+            case Protocol.DOWNLOAD -> handleBinaryDownload(socket, frame, out);
+            case Protocol.BATCH_UPLOAD -> handleBatchUpload(frame, in, out);
+            case Protocol.BATCH_DOWNLOAD -> handleBatchDownload(socket, frame, out);
+            case Protocol.LIST_FILES -> handleBinaryList(frame, out);
+            case Protocol.DELETE -> handleBinaryDelete(frame, out);
+            default -> {
+                Protocol.writeError(out, "Commande inconnue: " + frame.opcode);
+                return false;
             }
-        } catch (IOException e) {
-            updateLog("Erreur d'enregistrement dans storage.txt: " + e.getMessage());
         }
+        return true;
     }
 
-    private void updateLog(String message) {
-        SwingUtilities.invokeLater(() -> {
-            serverLog.append(message + "\n");
-        });
+    private void registerSecondaryServer(Protocol.Frame frame, DataOutputStream out, int version) throws IOException {
+        SecondaryServerInfo serverInfo = new SecondaryServerInfo();
+        serverInfo.setIp(frame.header.readUTF());
+        serverInfo.setPort(frame.header.readInt());
+        serverInfo.setStoragePath(frame.header.readUTF());
+        // Capacité absente pour les serveurs secondaires plus anciens
+        if (frame.header.available() > 0) {
+            serverInfo.setCapacity(frame.header.readLong());
+        }
+        serverInfo.setProtocolVersion(version);
+        SecondaryServerInfo registered = addSecondaryServer(serverInfo);
+        Protocol.writeOk(out, header -> header.writeInt(registered.getId()));
     }
 
-    private void deleteFile(String fileName, ObjectOutputStream out) {
+    private void handleBinaryUpload(Protocol.Frame frame, DataInputStream in, DataOutputStream out) throws IOException {
+        String fileName = frame.header.readUTF();
+        long fileSize = frame.header.readLong();
+
+        ChunkedInputStream data = new ChunkedInputStream(in);
         try {
-            // Read from storage.txt and remove the file entry
-            List<String> lines = new ArrayList<>();
-            boolean fileFound = false;
-    
-            try (BufferedReader reader = new BufferedReader(new FileReader(storageFile))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    if (line.startsWith(fileName + ";")) {
-                        fileFound = true;  // File found, don't add it to the new list
-                        // Delete corresponding files from secondary servers
-                        String[] parts = line.split(";");
-                        int numPartitions = Integer.parseInt(parts[2]);
-                        for (int i = 0; i < numPartitions; i++) {
-                            String partitionPath = reader.readLine();
-                            Files.deleteIfExists(Paths.get(partitionPath));  // Delete the partition file
-                        }
-                    } else {
-                        lines.add(line);  // Keep the lines that don't match the file
-                    }
+            receiveFile(fileName, fileSize, data);
+        } catch (IOException e) {
+            updateLog("Erreur lors de l'envoi du fichier " + fileName + ": " + e.getMessage());
+            // Consommer la fin du fichier pour garder la connexion synchronisée
+            data.skipToEnd();
+            Protocol.writeError(out, e.getMessage());
+            return;
+        }
+        Protocol.writeOk(out, null);
+    }
+
+    // Envoi incrémental: le client annonce les empreintes des blocs de son fichier, le serveur
+    // répond avec ceux qui lui manquent et le client n'envoie que ceux-là
+    private void handleManifestUpload(Socket socket, Protocol.Frame frame, DataInputStream in, DataOutputStream out) throws IOException {
+        String fileName = frame.header.readUTF();
+        long fileSize = frame.header.readLong();
+        int count = frame.header.readInt();
+        if (fileSize < 0 || count < 0 || count > ContentChunker.maxChunks(fileSize, ContentChunker.AVERAGE_SIZE)) {
+            throw new ProtocolException("Manifeste de " + count + " blocs pour " + fileSize + " octets");
+        }
+
+        ChunkedInputStream manifestIn = new ChunkedInputStream(in);
+        if (!DEDUPLICATION) {
+            manifestIn.skipToEnd();
+            Protocol.writeError(out, "Envoi par manifeste désactivé (backup.layout=" + LAYOUT + ")");
+            return;
+        }
+        List<byte[]> digests = new ArrayList<>(count);
+        int[] lengths = new int[count];
+        try {
+            DataInputStream manifest = new DataInputStream(manifestIn);
+            long total = 0;
+            for (int i = 0; i < count; i++) {
+                byte[] digest = new byte[32];
+                manifest.readFully(digest);
+                digests.add(digest);
+                lengths[i] = manifest.readInt();
+                if (lengths[i] <= 0 || lengths[i] > Protocol.MAX_HEADER_SIZE) {
+                    throw new IOException("Taille de bloc invalide: " + lengths[i]);
                 }
+                total += lengths[i];
             }
-    
-            if (fileFound) {
-                // Rewrite the storage.txt without the deleted file
-                try (PrintWriter writer = new PrintWriter(new FileWriter(storageFile))) {
-                    for (String line : lines) {
-                        writer.println(line);
-                    }
+            if (total != fileSize || manifestIn.read() >= 0) {
+                throw new IOException("Le manifeste ne correspond pas à la taille annoncée");
+            }
+        } catch (IOException e) {
+            manifestIn.skipToEnd();
+            Protocol.writeError(out, e.getMessage());
+            return;
+        }
+
+        ChunkUpload upload;
+        try {
+            upload = new ChunkUpload(membership.getPlacement());
+        } catch (IOException e) {
+            Protocol.writeError(out, e.getMessage());
+            return;
+        }
+        UploadSession session = new UploadSession(fileName, fileSize, digests, lengths, upload);
+        try {
+            for (int i = 0; i < count; i++) {
+                ChunkIndex.Chunk chunk = upload.reference(digests.get(i));
+                session.chunks.add(chunk);
+                if (upload.claim(chunk)) {
+                    session.missing.set(i);
+                }
+            }
+        } catch (IOException e) {
+            upload.abort(e);
+            updateLog("Erreur lors de l'envoi du fichier " + fileName + ": " + e.getMessage());
+            Protocol.writeError(out, e.getMessage());
+            return;
+        }
+        uploadSessions.put(session.id, session);
+        session.lock.lock();
+        try {
+            continueUpload(session, socket, in, out);
+        } finally {
+            session.lock.unlock();
+        }
+    }
+
+    // Reprise d'un envoi par manifeste: seuls les blocs que le serveur n'a pas encore reçus sont
+    // redemandés au client
+    private void handleUploadResume(Socket socket, Protocol.Frame frame, DataInputStream in, DataOutputStream out) throws IOException {
+        long id = frame.header.readLong();
+        UploadSession session = uploadSessions.get(id);
+        if (session == null) {
+            Protocol.writeError(out, "Session d'envoi inconnue ou expirée");
+            return;
+        }
+        // L'ancienne connexion n'a pas forcément encore vu la coupure: elle est fermée pour libérer la session
+        Socket previous = session.owner;
+        if (previous != null && previous != socket) {
+            try {
+                previous.close();
+            } catch (IOException ignored) {
+                // Déjà fermée
+            }
+        }
+        try {
+            if (!session.lock.tryLock(UPLOAD_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Protocol.writeError(out, "Session d'envoi occupée");
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Reprise interrompue");
+        }
+        try {
+            if (uploadSessions.get(id) != session) {
+                Protocol.writeError(out, "Session d'envoi inconnue ou expirée");
+                return;
+            }
+            if (session.expiry != null) {
+                session.expiry.cancel(false);
+            }
+            if (!session.finished) {
+                updateLog("Reprise de l'envoi de " + session.fileName + ": " + session.missing.cardinality() + " bloc(s) manquant(s)");
+            }
+            continueUpload(session, socket, in, out);
+        } finally {
+            session.lock.unlock();
+        }
+    }
+
+    // Annonce au client les blocs qui manquent encore, les reçoit puis enregistre le fichier.
+    // Connexion coupée: la session attend une reprise pendant UPLOAD_RESUME_TIMEOUT_MS et l'erreur
+    // ferme la connexion. Autre erreur (bloc corrompu, serveurs secondaires...): l'envoi est abandonné.
+    // Appelé avec le verrou de la session.
+    private void continueUpload(UploadSession session, Socket socket, DataInputStream in, DataOutputStream out) throws IOException {
+        session.owner = socket;
+        ChunkedInputStream data = new ChunkedInputStream(in);
+        try {
+            try {
+                Protocol.writeOk(out, header -> {
+                    byte[] mask = new byte[(session.lengths.length + 7) / 8];
+                    byte[] missing = session.missing.toByteArray();
+                    System.arraycopy(missing, 0, mask, 0, missing.length);
+                    header.writeInt(mask.length);
+                    header.write(mask);
+                    header.writeLong(session.id);
+                });
+            } catch (IOException e) {
+                throw new ConnectionLostException(e);
+            }
+
+            // Le client envoie les blocs manquants, dans l'ordre du manifeste
+            DataInputStream chunkData = new DataInputStream(data);
+            for (int i = session.missing.nextSetBit(0); i >= 0; i = session.missing.nextSetBit(i + 1)) {
+                byte[] content = new byte[session.lengths[i]];
+                try {
+                    chunkData.readFully(content);
+                } catch (IOException e) {
+                    throw new ConnectionLostException(e);
+                }
+                if (!Arrays.equals(sha256(content), session.digests.get(i))) {
+                    throw new IOException("Bloc " + i + " reçu corrompu (empreinte différente)");
+                }
+                session.upload.store(session.chunks.get(i), content);
+                // Bloc acquis: une reprise ne le redemandera pas
+                session.missing.clear(i);
+            }
+            boolean extra;
+            try {
+                extra = data.read() >= 0;
+            } catch (IOException e) {
+                throw new ConnectionLostException(e);
+            }
+            if (extra) {
+                throw new IOException("Données en trop après les blocs manquants");
+            }
+            // Fichier déjà enregistré: la réponse précédente n'est pas arrivée jusqu'au client
+            if (!session.finished) {
+                List<List<String>> chunkPaths = session.upload.finish();
+                saveToStorage(session.fileName, session.fileSize, chunkPaths, Map.of());
+                session.finished = true;
+                updateLog("Fichier reçu par manifeste: " + session.fileName + " (" + session.fileSize + " octets, "
+                        + session.upload.summary(session.fileSize) + ")");
+            }
+        } catch (ConnectionLostException e) {
+            detach(session);
+            updateLog("Envoi de " + session.fileName + " interrompu (" + e.getMessage() + "), "
+                    + session.missing.cardinality() + " bloc(s) manquant(s): reprise possible pendant "
+                    + UPLOAD_RESUME_TIMEOUT_MS / 1000 + " s");
+            throw e;
+        } catch (IOException e) {
+            uploadSessions.remove(session.id, session);
+            session.upload.abort(e);
+            updateLog("Erreur lors de l'envoi du fichier " + session.fileName + ": " + e.getMessage());
+            data.skipToEnd();
+            Protocol.writeError(out, e.getMessage());
+            return;
+        }
+        // La session reste connue un moment: si cette réponse se perd, la reprise la renverra
+        detach(session);
+        Protocol.writeOk(out, null);
+    }
+
+    // La session n'a plus de connexion: elle est oubliée si personne ne la reprend à temps
+    private void detach(UploadSession session) {
+        session.owner = null;
+        session.expiry = uploadSessionExpiry.schedule(() -> expire(session), UPLOAD_RESUME_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void expire(UploadSession session) {
+        // Reprise en cours: elle replanifiera l'expiration
+        if (!session.lock.tryLock()) {
+            return;
+        }
+        try {
+            if (session.owner != null || !uploadSessions.remove(session.id, session)) {
+                return;
+            }
+            if (!session.finished) {
+                session.upload.abort(new IOException("Envoi non repris"));
+                updateLog("Envoi de " + session.fileName + " abandonné: pas de reprise après "
+                        + UPLOAD_RESUME_TIMEOUT_MS / 1000 + " s");
+            }
+        } finally {
+            session.lock.unlock();
+        }
+    }
+
+    // Envoi par manifeste: garde, entre deux connexions du client, les blocs réservés et ceux déjà
+    // reçus. Les blocs qu'il doit stocker restent réservés pendant une coupure; un autre envoi qui
+    // contient les mêmes blocs les attend (au plus UPLOAD_TIMEOUT_MS).
+    private final class UploadSession {
+        final long id = sessionIds.nextLong();
+        final String fileName;
+        final long fileSize;
+        final List<byte[]> digests;
+        final int[] lengths;
+        final ChunkUpload upload;
+        // Blocs du fichier, dans l'ordre du manifeste
+        final List<ChunkIndex.Chunk> chunks = new ArrayList<>();
+        // Blocs que le client doit encore envoyer
+        final BitSet missing = new BitSet();
+        // Tenu par la connexion qui traite la session
+        final ReentrantLock lock = new ReentrantLock();
+        volatile Socket owner;
+        ScheduledFuture<?> expiry;
+        boolean finished;
+
+        UploadSession(String fileName, long fileSize, List<byte[]> digests, int[] lengths, ChunkUpload upload) {
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+            this.digests = digests;
+            this.lengths = lengths;
+            this.upload = upload;
+        }
+    }
+
+    // Erreur de lecture ou d'écriture sur la connexion du client, par opposition aux erreurs de
+    // l'envoi lui-même
+    private static final class ConnectionLostException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ConnectionLostException(IOException cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+
+    // Envoi groupé: les fichiers se suivent sur la connexion sans réponse intermédiaire. Un petit
+    // fichier (au plus BATCH_BUFFER_SIZE octets) est lu en mémoire puis enregistré en arrière-plan
+    // pendant que les suivants arrivent: les allers-retours avec les serveurs secondaires et les
+    // écritures du journal (regroupées, voir CatalogJournal) de plusieurs fichiers se recouvrent.
+    // Les plus gros sont enregistrés au fil de l'eau, comme avec UPLOAD.
+    private void handleBatchUpload(Protocol.Frame frame, DataInputStream in, DataOutputStream out) throws IOException {
+        int count = frame.header.readInt();
+        if (count < 0 || count > Protocol.MAX_BATCH_FILES) {
+            throw new ProtocolException("Envoi groupé de " + count + " fichiers");
+        }
+        String[] fileNames = new String[count];
+        long[] fileSizes = new long[count];
+        for (int i = 0; i < count; i++) {
+            fileNames[i] = frame.header.readUTF();
+            fileSizes[i] = frame.header.readLong();
+        }
+
+        String[] errors = new String[count];
+        Map<String, CompletableFuture<Void>> stores = new HashMap<>();
+        Semaphore parallel = new Semaphore(BATCH_PARALLEL);
+        try {
+            for (int i = 0; i < count; i++) {
+                int index = i;
+                ChunkedInputStream data = new ChunkedInputStream(in);
+                // Même nom plus tôt dans le lot: le dernier envoyé doit rester
+                CompletableFuture<Void> previous = stores.remove(fileNames[i]);
+                if (previous != null) {
+                    previous.join();
+                }
+                if (fileSizes[i] > BATCH_BUFFER_SIZE) {
+                    try {
+                        receiveFile(fileNames[i], fileSizes[i], data);
+                    } catch (IOException e) {
+                        errors[i] = batchUploadFailed(fileNames[i], e);
+                        data.skipToEnd();
+                    }
+                    continue;
+                }
+                byte[] content = data.readNBytes((int) Math.max(0, fileSizes[i]));
+                boolean tooLong = data.read() >= 0;
+                data.skipToEnd();
+                if (tooLong) {
+                    errors[i] = batchUploadFailed(fileNames[i], new IOException("Le fichier reçu dépasse la taille annoncée"));
+                    continue;
+                }
+                try {
+                    parallel.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Envoi interrompu");
+                }
+                stores.put(fileNames[i], CompletableFuture.runAsync(() -> {
+                    try {
+                        receiveFile(fileNames[index], fileSizes[index], new ByteArrayInputStream(content));
+                    } catch (IOException e) {
+                        errors[index] = batchUploadFailed(fileNames[index], e);
+                    } finally {
+                        parallel.release();
+                    }
+                }, partitionTransfers));
+            }
+        } finally {
+            // Même si la connexion est coupée, les fichiers déjà reçus sont enregistrés
+            CompletableFuture.allOf(stores.values().toArray(new CompletableFuture<?>[0])).join();
+        }
+        Protocol.writeOk(out, header -> {
+            header.writeInt(count);
+            for (String error : errors) {
+                header.writeUTF(error == null ? "" : error);
+            }
+        });
+    }
+
+    private String batchUploadFailed(String fileName, IOException e) {
+        updateLog("Erreur lors de l'envoi du fichier " + fileName + ": " + e.getMessage());
+        return e.getMessage() == null ? e.toString() : e.getMessage();
+    }
+
+    private void handleBinaryDownload(Socket socket, Protocol.Frame frame, DataOutputStream out) throws IOException {
+        String fileName = frame.header.readUTF();
+        // Reprise: octets déjà reçus par le client et version du fichier qu'il a commencé à recevoir
+        long offset = 0;
+        long expectedVersion = 0;
+        if (frame.header.available() > 0) {
+            offset = frame.header.readLong();
+            expectedVersion = frame.header.readLong();
+        }
+        Catalog.Entry entry;
+        try {
+            entry = findFile(fileName);
+        } catch (IOException e) {
+            updateLog("Erreur lors du téléchargement: " + e.getMessage());
+            Protocol.writeError(out, e.getMessage());
+            return;
+        }
+
+        // Fichier renvoyé depuis le début du téléchargement: il repart de zéro
+        long resumed = offset > 0 && offset <= entry.getSize() && expectedVersion == entry.getVersion() ? offset : 0;
+        // Données déjà reçues peut-être corrompues: le client recommence avant (un client plus
+        // ancien, qui ne sait pas revenir en arrière, signale que la reprise est impossible)
+        CorruptDownload corrupt = corruptDownloads.get(fileName);
+        if (corrupt != null && corrupt.version != entry.getVersion()) {
+            corruptDownloads.remove(fileName, corrupt);
+        } else if (corrupt != null) {
+            resumed = Math.min(resumed, corrupt.offset);
+        }
+        long start = resumed;
+        // L'entête annonce la taille, le contenu brut suit directement sur la socket
+        Protocol.writeOk(out, header -> {
+            header.writeLong(entry.getSize());
+            header.writeLong(start);
+            header.writeLong(entry.getVersion());
+        });
+        sendPartitions(skipping(socketChannel(socket), start), entry);
+        updateLog("Fichier envoyé: " + fileName + " (" + entry.getSize() + " octets"
+                + (start > 0 ? ", repris à l'octet " + start : "") + ")");
+    }
+
+    // Téléchargement groupé: une réponse par fichier, dans l'ordre, sans nouvelle demande du client.
+    // Les petits fichiers (au plus BATCH_BUFFER_SIZE octets) sont lus en mémoire en avance, jusqu'à
+    // BATCH_PARALLEL à la fois, pendant l'envoi des précédents; leurs réponses partent ensemble sur
+    // la connexion. Les plus gros sont envoyés au fil de l'eau, comme avec DOWNLOAD.
+    private void handleBatchDownload(Socket socket, Protocol.Frame frame, DataOutputStream out) throws IOException {
+        int count = frame.header.readInt();
+        if (count < 0 || count > Protocol.MAX_BATCH_FILES) {
+            throw new ProtocolException("Téléchargement groupé de " + count + " fichiers");
+        }
+        List<String> fileNames = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            fileNames.add(frame.header.readUTF());
+        }
+
+        List<Catalog.Entry> entries = new ArrayList<>(count);
+        // Contenu lu en avance, ou null (fichier absent ou envoyé au fil de l'eau)
+        List<CompletableFuture<byte[]>> prefetched = new ArrayList<>(count);
+        int sent = 0;
+        try {
+            for (int i = 0; i < count; i++) {
+                while (entries.size() < count && entries.size() <= i + BATCH_PARALLEL) {
+                    Catalog.Entry entry = catalog.get(fileNames.get(entries.size()));
+                    entries.add(entry);
+                    prefetched.add(entry != null && entry.getSize() <= BATCH_BUFFER_SIZE ? prefetch(entry) : null);
+                }
+                Catalog.Entry entry = entries.get(i);
+                if (entry == null) {
+                    Protocol.writeFrame(out, Protocol.ERROR, header -> header.writeUTF("Fichier non trouvé"));
+                    continue;
+                }
+                if (prefetched.get(i) == null) {
+                    Protocol.writeOk(out, header -> {
+                        header.writeLong(entry.getSize());
+                        header.writeLong(entry.getVersion());
+                    });
+                    sendPartitions(socketChannel(socket), entry);
+                    sent++;
+                    continue;
+                }
+                byte[] content;
+                try {
+                    content = prefetched.get(i).get(DOWNLOAD_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (ExecutionException e) {
+                    String message = unwrap(e).getMessage();
+                    updateLog("Erreur lors du téléchargement de " + entry.getFileName() + ": " + message);
+                    Protocol.writeFrame(out, Protocol.ERROR, header -> header.writeUTF(message == null ? "" : message));
+                    continue;
+                } catch (TimeoutException e) {
+                    Protocol.writeFrame(out, Protocol.ERROR, header -> header.writeUTF("Délai dépassé en attendant les serveurs secondaires"));
+                    continue;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Téléchargement interrompu");
+                }
+                Protocol.writeFrame(out, Protocol.OK, header -> {
+                    header.writeLong(entry.getSize());
+                    header.writeLong(entry.getVersion());
+                });
+                out.write(content);
+                sent++;
+            }
+        } finally {
+            // Client parti ou erreur d'envoi: les lectures en avance qui restent ne servent plus
+            for (CompletableFuture<byte[]> content : prefetched) {
+                if (content != null) {
+                    content.cancel(true);
+                }
+            }
+        }
+        out.flush();
+        updateLog("Téléchargement groupé: " + sent + " fichier(s) envoyé(s) sur " + count);
+    }
+
+    // Contenu complet d'un petit fichier, lu en arrière-plan
+    private CompletableFuture<byte[]> prefetch(Catalog.Entry entry) {
+        return CompletableFuture.supplyAsync(() -> {
+            ByteArrayOutputStream content = new ByteArrayOutputStream((int) entry.getSize());
+            try {
+                sendPartitions(Channels.newChannel(content), entry);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+            return content.toByteArray();
+        }, partitionTransfers);
+    }
+
+    private void handleBinaryList(Protocol.Frame frame, DataOutputStream out) throws IOException {
+        // Sans paramètres (clients plus anciens): tous les noms
+        if (frame.header.available() == 0) {
+            List<String> fileNames = listFileNames();
+            Protocol.writeOk(out, header -> {
+                header.writeInt(fileNames.size());
+                for (String fileName : fileNames) {
+                    header.writeUTF(fileName);
                 }
+            });
+            return;
+        }
+        String prefix = frame.header.readUTF();
+        int offset = frame.header.readInt();
+        int limit = frame.header.readInt();
+        long knownVersion = frame.header.readLong();
+        Catalog.Listing listing = catalog.listing();
+        if (listing.getVersion() == knownVersion) {
+            Protocol.writeOk(out, header -> {
+                header.writeLong(listing.getVersion());
+                header.writeBoolean(false);
+            });
+            return;
+        }
+        List<Catalog.Entry> matching = listing.withPrefix(prefix);
+        int from = Math.min(Math.max(0, offset), matching.size());
+        int to = from + Math.min(Math.max(0, limit), Math.min(Protocol.MAX_LIST_PAGE, matching.size() - from));
+        List<Catalog.Entry> page = matching.subList(from, to);
+        Protocol.writeOk(out, header -> {
+            header.writeLong(listing.getVersion());
+            header.writeBoolean(true);
+            header.writeInt(matching.size());
+            header.writeInt(page.size());
+            for (Catalog.Entry entry : page) {
+                header.writeUTF(entry.getFileName());
+                header.writeLong(entry.getSize());
+                header.writeLong(entry.getModified());
+            }
+        });
+    }
+
+    private void handleBinaryDelete(Protocol.Frame frame, DataOutputStream out) throws IOException {
+        String fileName = frame.header.readUTF();
+        try {
+            if (removeFile(fileName)) {
+                Protocol.writeOk(out, null);
+            } else {
+                Protocol.writeError(out, "Fichier non trouvé");
+            }
+        } catch (IOException e) {
+            updateLog("Erreur lors de la suppression du fichier: " + e.getMessage());
+            Protocol.writeError(out, e.getMessage());
+        }
+    }
+
+    private void handleSecondaryServer(Socket socket, ObjectInputStream in, ObjectOutputStream out) throws IOException, ClassNotFoundException {
+        SecondaryServerInfo serverInfo = (SecondaryServerInfo) in.readObject();
+        addSecondaryServer(serverInfo);
+    }
+
+    private SecondaryServerInfo addSecondaryServer(SecondaryServerInfo serverInfo) {
+        SecondaryServerInfo registered = membership.register(serverInfo);
+        if (!pendingDeletes.isEmpty()) {
+            CompletableFuture.delayedExecutor(PENDING_DELETE_DELAY_MS, TimeUnit.MILLISECONDS, partitionTransfers)
+                    .execute(this::retryDeletes);
+        }
+        if (registered != serverInfo) {
+            // Serveur redémarré: mêmes partitions, même place dans la répartition
+            updateLog("Serveur secondaire reconnecté: ID=" + registered.getId() +
+                     ", IP=" + registered.getIp() + ", Port=" + registered.getPort());
+            return registered;
+        }
+        updateLog("Nouveau serveur secondaire connecté: ID=" + serverInfo.getId() + 
+                 ", IP=" + serverInfo.getIp() + ", Port=" + serverInfo.getPort()
+                 + ", Capacité=" + (serverInfo.getCapacity() > 0 ? serverInfo.getCapacity() + " octets" : "inconnue"));
+        updateLog("Répartition: " + membership.getPlacement().describe());
+        if (REBALANCE) {
+            rebalancer.schedule();
+        }
+        return registered;
+    }
+
+    private void handleClient(Socket socket, ObjectInputStream in, ObjectOutputStream out) throws IOException, ClassNotFoundException {
+        String action = (String) in.readObject();
+    
+        if (action.equals("UPLOAD")) {
+            handleFileUpload(in);
+        } else if (action.equals("UPLOAD_STREAM")) {
+            handleStreamingUpload(in, out);
+        } else if (action.equals("DOWNLOAD")) {
+            handleFileDownload(out, (String) in.readObject());
+        } else if (action.equals("DOWNLOAD_STREAM")) {
+            handleStreamingDownload(socket, out, (String) in.readObject());
+        } else if (action.equals("LIST_FILES")) {
+            sendFileList(out);
+        } else if (action.equals("DELETE")) {  // Handle delete action
+            String fileName = (String) in.readObject();
+            deleteFile(fileName, out);
+        }
+    }
     
-                updateLog("Fichier supprimé de storage.txt et des serveurs secondaires: " + fileName);
+
+    private void handleFileUpload(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        String fileName = (String) in.readObject();
+        long fileSize = (Long) in.readObject();
+        byte[] fileData = (byte[]) in.readObject();
+
+        // Ancien protocole: le fichier arrive en entier, mais les partitions sont envoyées sans copie
+        receiveFile(fileName, fileData.length, new ByteArrayInputStream(fileData));
+    }
+
+    private void handleStreamingUpload(ObjectInputStream in, ObjectOutputStream out) throws IOException, ClassNotFoundException {
+        String fileName = (String) in.readObject();
+        long fileSize = (Long) in.readObject();
+
+        // Le contenu arrive en blocs de taille fixe, transmis aux serveurs secondaires au fil de l'eau
+        ChunkedInputStream data = new ChunkedInputStream(in);
+        try {
+            receiveFile(fileName, fileSize, data);
+            out.writeObject("SUCCESS");
+        } catch (IOException e) {
+            updateLog("Erreur lors de l'envoi du fichier " + fileName + ": " + e.getMessage());
+            out.writeObject("ERROR: " + e.getMessage());
+        }
+        out.flush();
+    }
+
+    private void receiveFile(String fileName, long fileSize, InputStream data) throws IOException {
+        Placement servers = membership.getPlacement();
+        // CRC32C des partitions envoyées (ceux des blocs sont dans l'index des blocs)
+        Map<String, Long> checksums = new ConcurrentHashMap<>();
+        List<List<String>> partitionPaths = DEDUPLICATION
+                ? storeChunks(fileName, fileSize, data, servers)
+                : ERASURE_CODING
+                ? storeShards(fileName, fileSize, data, servers, checksums)
+                : distributeFile(fileName, fileSize, data, servers, checksums);
+        try {
+            if (data.read() >= 0) {
+                throw new IOException("Le fichier reçu dépasse la taille annoncée");
+            }
+            saveToStorage(fileName, fileSize, partitionPaths, checksums);
+        } catch (IOException e) {
+            releaseChunks(partitionPaths);
+            throw e;
+        }
+        updateLog("Fichier reçu: " + fileName + " (" + fileSize + " octets)");
+    }
+
+    // Découpe le fichier en blocs définis par le contenu et n'envoie aux serveurs secondaires que
+    // les blocs absents de l'index: un fichier renvoyé avec peu de modifications ne transfère et ne
+    // stocke que les blocs modifiés. Retourne les chemins des blocs, dans l'ordre du fichier.
+    private List<List<String>> storeChunks(String fileName, long fileSize, InputStream data, Placement servers) throws IOException {
+        ChunkUpload upload = new ChunkUpload(servers);
+        try {
+            ContentChunker chunker = new ContentChunker(data, fileSize, ContentChunker.AVERAGE_SIZE);
+            byte[] content;
+            while ((content = chunker.next()) != null) {
+                ChunkIndex.Chunk chunk = upload.reference(sha256(content));
+                if (upload.claim(chunk)) {
+                    upload.store(chunk, content);
+                }
+            }
+            List<List<String>> chunkPaths = upload.finish();
+            updateLog("Déduplication " + fileName + ": " + upload.summary(fileSize));
+            return chunkPaths;
+        } catch (IOException e) {
+            upload.abort(e);
+            throw e;
+        }
+    }
+
+    // Blocs d'un fichier en cours d'envoi: références dans l'index, envoi des nouveaux blocs en
+    // parallèle (au plus CHUNKS_IN_FLIGHT à la fois), puis attente de tous les blocs du fichier.
+    // Chaque bloc va aux serveurs secondaires désignés par son empreinte (voir Placement): ajouter
+    // un serveur ne change pas l'emplacement des autres blocs.
+    private final class ChunkUpload {
+        private final Placement servers;
+        private final List<ChunkIndex.Chunk> references = new ArrayList<>();
+        // Blocs que cet envoi doit stocker
+        private final List<ChunkIndex.Chunk> claimed = new ArrayList<>();
+        private final List<CompletableFuture<Void>> stores = new ArrayList<>();
+        private final Semaphore inFlight = new Semaphore(CHUNKS_IN_FLIGHT);
+        private final AtomicLong storedBytes = new AtomicLong();
+        private long newBytes;
+
+        ChunkUpload(Placement servers) throws IOException {
+            if (servers.size() == 0) {
+                throw new IOException("Aucun serveur secondaire disponible");
+            }
+            this.servers = servers;
+        }
+
+        ChunkIndex.Chunk reference(byte[] digest) throws IOException {
+            String hash = HexFormat.of().formatHex(digest);
+            SecondaryServerInfo server = servers.route(hash, 1).get(0);
+            ChunkIndex.Chunk chunk = chunkIndex.reference(hash, server.getStoragePath() + "/" + ChunkIndex.chunkName(hash));
+            references.add(chunk);
+            return chunk;
+        }
+
+        // Vrai si le bloc est nouveau et doit être envoyé par cet envoi
+        boolean claim(ChunkIndex.Chunk chunk) {
+            if (!chunk.claimStore()) {
+                return false;
+            }
+            claimed.add(chunk);
+            return true;
+        }
+
+        void store(ChunkIndex.Chunk chunk, byte[] content) throws IOException {
+            // Copies sur les serveurs qui suivent celui désigné par l'empreinte
+            List<SecondaryServerInfo> copies = servers.route(chunk.getHash(), REPLICATION);
+            newBytes += content.length;
+            try {
+                if (!inFlight.tryAcquire(UPLOAD_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    throw new IOException("Délai dépassé en attendant les serveurs secondaires");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Envoi interrompu");
+            }
+            // Chaque bloc est compressé ou non selon son propre contenu
+            Codec codec = Codec.choose(content, 0, content.length);
+            String chunkName = ChunkIndex.chunkName(chunk.getHash()) + codec.getExtension();
+            List<String> paths = new ArrayList<>(copies.size());
+            List<CompletableFuture<Void>> sends = new ArrayList<>(copies.size());
+            List<CRC32C> checksums = new ArrayList<>(copies.size());
+            for (SecondaryServerInfo server : copies) {
+                paths.add(server.getStoragePath() + "/" + chunkName);
+                CRC32C checksum = new CRC32C();
+                checksums.add(checksum);
+                sends.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        storedBytes.addAndGet(sendPartitionToSecondary(server, chunkName, new ByteArrayInputStream(content), content.length, new byte[ChunkedOutputStream.DEFAULT_CHUNK_SIZE], codec, checksum));
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }, partitionTransfers));
+            }
+            // Le bloc n'est utilisable qu'une fois toutes ses copies écrites
+            stores.add(CompletableFuture.allOf(sends.toArray(new CompletableFuture<?>[0])).whenComplete((result, error) -> {
+                try {
+                    if (error == null) {
+                        chunkIndex.stored(chunk, paths, checksums.get(0).getValue());
+                    } else {
+                        chunkIndex.storeFailed(chunk, unwrap(error));
+                    }
+                } finally {
+                    inFlight.release();
+                }
+            }));
+        }
+
+        // Attend tous les blocs du fichier, y compris ceux qu'un autre envoi est en train de stocker
+        List<List<String>> finish() throws IOException {
+            List<CompletableFuture<Void>> pending = new ArrayList<>(stores);
+            for (ChunkIndex.Chunk chunk : references) {
+                pending.add(chunk.getStored());
+            }
+            try {
+                CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).get(UPLOAD_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                throw new IOException("Délai dépassé en attendant les serveurs secondaires");
+            } catch (ExecutionException e) {
+                throw unwrap(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Envoi interrompu");
+            }
+
+            List<List<String>> chunkPaths = new ArrayList<>(references.size());
+            for (ChunkIndex.Chunk chunk : references) {
+                chunkPaths.add(chunk.getPaths());
+            }
+            return chunkPaths;
+        }
+
+        // Échec: les blocs réservés mais pas stockés sont abandonnés, les références libérées
+        void abort(IOException cause) {
+            // Laisser finir les envois en cours avant de libérer les blocs qu'ils stockent
+            try {
+                CompletableFuture.allOf(stores.toArray(new CompletableFuture<?>[0])).get(UPLOAD_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (Exception ignored) {
+                // Les erreurs d'envoi sont déjà dans l'index ou dans l'exception en cours
+            }
+            for (ChunkIndex.Chunk chunk : claimed) {
+                if (!chunk.getStored().isDone()) {
+                    chunkIndex.storeFailed(chunk, cause);
+                }
+            }
+            for (ChunkIndex.Chunk chunk : references) {
+                releaseChunk(chunk);
+            }
+        }
+
+        String summary(long fileSize) {
+            return references.size() + " blocs, " + claimed.size() + " nouveaux ("
+                    + newBytes + " octets envoyés sur " + fileSize + ", " + storedBytes.get() + " stockés)";
+        }
+    }
+
+    private static byte[] sha256(byte[] content) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(content);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static IOException unwrap(Throwable e) {
+        Throwable cause = e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause();
+        return cause instanceof IOException ? (IOException) cause : new IOException(cause);
+    }
+
+    // Diviser le fichier en partitions et les distribuer, en lisant les données au fil de l'eau.
+    // Le fichier va sur PLACEMENT_TARGETS serveurs secondaires choisis d'après son nom: chaque
+    // fichier n'occupe qu'une partie des serveurs, et en ajouter augmente le débit total.
+    // Toutes les partitions partent en parallèle: chaque serveur secondaire a sa connexion et son
+    // thread d'envoi, alimenté par un PartitionPipe. Les accusés de réception sont attendus ensemble,
+    // la durée d'un envoi est donc celle du serveur le plus lent plutôt que la somme.
+    private List<List<String>> distributeFile(String fileName, long fileSize, InputStream data, Placement placement, Map<String, Long> checksums) throws IOException {
+        List<SecondaryServerInfo> servers = placement.route(fileName, PLACEMENT_TARGETS);
+        int numPartitions = servers.size();
+        if (numPartitions == 0) {
+            throw new IOException("Aucun serveur secondaire disponible");
+        }
+        long partitionSize = (fileSize + numPartitions - 1) / numPartitions;
+        int numCopies = Math.min(REPLICATION, numPartitions);
+
+        // Le codec est choisi pour tout le fichier d'après son début, avant de nommer les partitions
+        byte[] sample = data.readNBytes((int) Math.min(fileSize, COMPRESSION_SAMPLE_SIZE));
+        Codec codec = Codec.choose(sample, 0, sample.length);
+        data = new SequenceInputStream(new ByteArrayInputStream(sample), data);
+        String extension = codec.getExtension();
+
+        // Partition i sur le i-ème serveur choisi, ses copies sur les suivants
+        List<List<String>> partitionPaths = new ArrayList<>(numPartitions);
+        List<List<PartitionPipe>> pipes = new ArrayList<>(numPartitions);
+        List<List<CompletableFuture<Long>>> acks = new ArrayList<>(numPartitions);
+        for (int i = 0; i < numPartitions; i++) {
+            long length = Math.max(0, Math.min(partitionSize, fileSize - i * partitionSize));
+            String partitionName = partitionBaseName(fileName) + ".part" + (i+1) + extension;
+            List<String> paths = new ArrayList<>(numCopies);
+            List<PartitionPipe> copyPipes = new ArrayList<>(numCopies);
+            List<CompletableFuture<Long>> copyAcks = new ArrayList<>(numCopies);
+            for (int j = 0; j < numCopies; j++) {
+                SecondaryServerInfo server = servers.get((i + j) % numPartitions);
+                PartitionPipe pipe = new PartitionPipe(PARTITION_PIPE_CHUNKS);
+                copyPipes.add(pipe);
+                copyAcks.add(startPartitionSender(server, partitionName, pipe, length, codec));
+                paths.add(server.getStoragePath() + "/" + partitionName);
+            }
+            partitionPaths.add(paths);
+            pipes.add(copyPipes);
+            acks.add(copyAcks);
+        }
+
+        List<CompletableFuture<Long>> allAcks = new ArrayList<>();
+        acks.forEach(allAcks::addAll);
+        try {
+            for (int i = 0; i < numPartitions; i++) {
+                long length = Math.max(0, Math.min(partitionSize, fileSize - i * partitionSize));
+                feedPartition(data, pipes.get(i), acks.get(i), length);
+            }
+            // Tous les accusés de réception sont attendus ensemble, avec un délai global
+            CompletableFuture.allOf(allAcks.toArray(new CompletableFuture<?>[0])).get(UPLOAD_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            // Toutes les copies d'une partition ont le même contenu, donc le même CRC32C
+            for (int i = 0; i < numPartitions; i++) {
+                checksums.put(partitionName(partitionPaths.get(i).get(0)), acks.get(i).get(0).join());
+            }
+        } catch (TimeoutException e) {
+            throw new IOException("Délai dépassé en attendant les serveurs secondaires");
+        } catch (ExecutionException | CompletionException e) {
+            throw unwrap(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Envoi interrompu");
+        } finally {
+            // Sans effet si tout s'est bien passé; sinon les threads d'envoi encore bloqués s'arrêtent
+            for (List<PartitionPipe> copyPipes : pipes) {
+                copyPipes.forEach(PartitionPipe::abort);
+            }
+        }
+        return partitionPaths;
+    }
+
+    // Code le fichier en k partitions de données et m de parité (Reed-Solomon), chacune sur un
+    // serveur secondaire différent: le fichier reste lisible tant que k partitions le sont, pour
+    // (k+m)/k fois sa taille au lieu de plusieurs copies complètes. Comme pour distributeFile, les
+    // partitions partent en parallèle, bande par bande, au fil de la lecture.
+    private List<List<String>> storeShards(String fileName, long fileSize, InputStream data, Placement placement, Map<String, Long> checksums) throws IOException {
+        ReedSolomon code = ERASURE_CODE;
+        int numShards = code.getTotalShards();
+        if (placement.size() < numShards) {
+            throw new IOException("Codage " + code.getDataShards() + "+" + code.getParityShards() + ": " + numShards
+                    + " serveurs secondaires nécessaires, " + placement.size() + " disponible(s)");
+        }
+
+        byte[] sample = data.readNBytes((int) Math.min(fileSize, COMPRESSION_SAMPLE_SIZE));
+        Codec codec = Codec.choose(sample, 0, sample.length);
+        data = new SequenceInputStream(new ByteArrayInputStream(sample), data);
+
+        // Serveurs choisis d'après le nom du fichier: les partitions de données (lues en priorité)
+        // sont réparties entre tous les serveurs
+        List<SecondaryServerInfo> servers = placement.route(fileName, numShards);
+        long shardLength = code.shardLength(fileSize);
+        List<List<String>> shardPaths = new ArrayList<>(numShards);
+        List<PartitionPipe> pipes = new ArrayList<>(numShards);
+        List<CompletableFuture<Long>> acks = new ArrayList<>(numShards);
+        for (int i = 0; i < numShards; i++) {
+            SecondaryServerInfo server = servers.get(i);
+            String shardName = code.shardName(partitionBaseName(fileName), i) + codec.getExtension();
+            PartitionPipe pipe = new PartitionPipe(PARTITION_PIPE_CHUNKS);
+            pipes.add(pipe);
+            acks.add(startPartitionSender(server, shardName, pipe, shardLength, codec));
+            shardPaths.add(List.of(server.getStoragePath() + "/" + shardName));
+        }
+
+        try {
+            byte[] stripe = new byte[code.getDataShards() * ReedSolomon.BLOCK_SIZE];
+            long stripes = code.stripeCount(fileSize);
+            for (long s = 0; s < stripes; s++) {
+                int stripeLength = code.stripeLength(fileSize, s);
+                int filled = 0;
+                while (filled < stripeLength) {
+                    int n = data.read(stripe, filled, stripeLength - filled);
+                    if (n < 0) {
+                        throw new EOFException("Fin de fichier inattendue (" + (fileSize - s * stripe.length - filled) + " octets manquants)");
+                    }
+                    filled += n;
+                }
+                byte[][] blocks = code.encode(stripe, stripeLength);
+                for (int i = 0; i < numShards; i++) {
+                    feedPipe(pipes.get(i), blocks[i], acks.get(i));
+                }
+            }
+            for (int i = 0; i < numShards; i++) {
+                feedPipe(pipes.get(i), null, acks.get(i));
+            }
+            CompletableFuture.allOf(acks.toArray(new CompletableFuture<?>[0])).get(UPLOAD_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            for (int i = 0; i < numShards; i++) {
+                checksums.put(partitionName(shardPaths.get(i).get(0)), acks.get(i).join());
+            }
+        } catch (TimeoutException e) {
+            throw new IOException("Délai dépassé en attendant les serveurs secondaires");
+        } catch (ExecutionException | CompletionException e) {
+            throw unwrap(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Envoi interrompu");
+        } finally {
+            for (PartitionPipe pipe : pipes) {
+                pipe.abort();
+            }
+        }
+        return shardPaths;
+    }
+
+    // Passe un bloc (ou la fin, si block est null) au thread d'envoi de la partition. Un envoi qui
+    // échoue interrompt le tuyau: c'est alors l'erreur du serveur secondaire qui est remontée.
+    private static void feedPipe(PartitionPipe pipe, byte[] block, CompletableFuture<?> ack) throws IOException {
+        try {
+            if (block == null) {
+                pipe.finish(UPLOAD_TIMEOUT_MS);
+            } else {
+                pipe.feed(block, UPLOAD_TIMEOUT_MS);
+            }
+        } catch (IOException e) {
+            if (!ack.isCompletedExceptionally()) {
+                throw e;
+            }
+            ack.join();
+        }
+    }
+
+    // Envoie une partition lue dans pipe. La connexion et la négociation commencent tout de suite,
+    // avant que les premières données n'arrivent. Le résultat est le CRC32C de la partition stockée.
+    private CompletableFuture<Long> startPartitionSender(SecondaryServerInfo server, String partitionName, PartitionPipe pipe, long length, Codec codec) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                CRC32C checksum = new CRC32C();
+                sendPartitionToSecondary(server, partitionName, pipe, length, new byte[ChunkedOutputStream.DEFAULT_CHUNK_SIZE], codec, checksum);
+                return checksum.getValue();
+            } catch (IOException e) {
+                pipe.abort();
+                throw new CompletionException(e);
+            }
+        }, partitionTransfers);
+    }
+
+    // Lire exactement length octets du fichier reçu et les passer aux threads d'envoi des copies de la partition
+    private static void feedPartition(InputStream data, List<PartitionPipe> pipes, List<? extends CompletableFuture<?>> acks, long length) throws IOException {
+        long remaining = length;
+        while (remaining > 0) {
+            byte[] chunk = new byte[(int) Math.min(ChunkedOutputStream.DEFAULT_CHUNK_SIZE, remaining)];
+            int filled = 0;
+            while (filled < chunk.length) {
+                int n = data.read(chunk, filled, chunk.length - filled);
+                if (n < 0) {
+                    throw new EOFException("Fin de fichier inattendue (" + (remaining - filled) + " octets manquants)");
+                }
+                filled += n;
+            }
+            for (int i = 0; i < pipes.size(); i++) {
+                feedPipe(pipes.get(i), chunk, acks.get(i));
+            }
+            remaining -= filled;
+        }
+        for (int i = 0; i < pipes.size(); i++) {
+            feedPipe(pipes.get(i), null, acks.get(i));
+        }
+    }
+
+    private void saveToStorage(String fileName, long fileSize, List<List<String>> replicas, Map<String, Long> checksums) throws IOException {
+        // Retourne une fois l'enregistrement écrit et synchronisé dans le journal
+        List<Long> partitionChecksums = new ArrayList<>(replicas.size());
+        for (List<String> copies : replicas) {
+            ChunkIndex.Chunk chunk = ChunkIndex.isChunk(copies.get(0)) ? chunkIndex.find(copies.get(0)) : null;
+            partitionChecksums.add(chunk != null ? chunk.getChecksum()
+                    : checksums.getOrDefault(partitionName(copies.get(0)), Catalog.NO_CHECKSUM));
+        }
+        Catalog.Entry entry;
+        Catalog.Entry previous;
+        relocation.readLock().lock();
+        try {
+            entry = Catalog.Entry.withReplicas(fileName, fileSize, currentLocations(replicas), partitionChecksums);
+            previous = catalogJournal.put(entry);
+        } finally {
+            relocation.readLock().unlock();
+        }
+        if (previous != null) {
+            // Ancienne version: ses blocs perdent une référence, ses copies non réutilisées sont supprimées
+            evictFromCache(previous);
+            List<String> paths = entry.getAllPaths();
+            for (List<String> copies : previous.getReplicas()) {
+                if (ChunkIndex.isChunk(copies.get(0))) {
+                    releaseChunk(chunkIndex.find(copies.get(0)));
+                    continue;
+                }
+                for (String partitionPath : copies) {
+                    if (!paths.contains(partitionPath)) {
+                        deletePartition(partitionPath);
+                    }
+                }
+            }
+        }
+    }
+
+    // Emplacements actuels des blocs, qui ont pu être déplacés par le rééquilibrage depuis que
+    // replicas a été lu; les autres partitions ne changent pas
+    private List<List<String>> currentLocations(List<List<String>> replicas) {
+        List<List<String>> current = new ArrayList<>(replicas.size());
+        for (List<String> copies : replicas) {
+            ChunkIndex.Chunk chunk = ChunkIndex.isChunk(copies.get(0)) ? chunkIndex.find(copies.get(0)) : null;
+            current.add(chunk != null ? chunk.getPaths() : copies);
+        }
+        return current;
+    }
+
+    private void releaseChunks(List<List<String>> replicas) {
+        for (List<String> copies : replicas) {
+            if (ChunkIndex.isChunk(copies.get(0))) {
+                releaseChunk(chunkIndex.find(copies.get(0)));
+            }
+        }
+    }
+
+    // Retire une référence au bloc et le supprime du serveur secondaire s'il n'est plus utilisé
+    private void releaseChunk(ChunkIndex.Chunk chunk) {
+        if (chunk == null || !chunkIndex.release(chunk)) {
+            return;
+        }
+        readCache.invalidate(partitionName(chunk.getPath()));
+        try {
+            chunk.getPaths().forEach(this::deletePartition);
+        } finally {
+            chunkIndex.deleted(chunk);
+        }
+    }
+
+    private void updateLog(String message) {
+        SwingUtilities.invokeLater(() -> {
+            serverLog.append(message + "\n");
+        });
+    }
+
+    private void deleteFile(String fileName, ObjectOutputStream out) {
+        try {
+            if (removeFile(fileName)) {
                 out.writeObject("SUCCESS");
             } else {
                 out.writeObject("ERROR: Fichier non trouvé");
@@ -279,8 +2116,416 @@ private void sendPartitionToSecondary(SecondaryServerInfo server, String partiti
             }
         }
     }
+
+    private boolean removeFile(String fileName) throws IOException {
+        Catalog.Entry entry;
+        relocation.readLock().lock();
+        try {
+            entry = catalogJournal.remove(fileName);
+        } finally {
+            relocation.readLock().unlock();
+        }
+        if (entry == null) {
+            return false;
+        }
+        corruptDownloads.remove(fileName);
+        evictFromCache(entry);
+
+        // Delete corresponding files from secondary servers (les blocs partagés restent)
+        for (List<String> copies : entry.getReplicas()) {
+            if (ChunkIndex.isChunk(copies.get(0))) {
+                releaseChunk(chunkIndex.find(copies.get(0)));
+            } else {
+                copies.forEach(this::deletePartition);
+            }
+        }
+        updateLog("Fichier supprimé du catalogue et des serveurs secondaires: " + fileName);
+        return true;
+    }
     
 
+    // Suppression par le serveur secondaire qui héberge la partition; à défaut, sur le disque local.
+    // Le fichier est déjà retiré du catalogue: une partition restante est seulement signalée. Sans
+    // serveur enregistré ni fichier local, ou si le serveur est arrêté, la suppression attend son retour.
+    private void deletePartition(String partitionPath) {
+        SecondaryServerInfo server = findServer(partitionPath);
+        corruptCopies.remove(partitionPath);
+        try {
+            if (server == null ? !Files.exists(Paths.get(partitionPath)) : !membership.isAlive(server)) {
+                pendingDeletes.add(partitionPath);
+                updateLog("Suppression de la partition " + partitionPath + " reportée: son serveur secondaire n'est pas disponible");
+                return;
+            }
+            if (server == null || server.getProtocolVersion() == 0) {
+                Files.deleteIfExists(Paths.get(partitionPath));  // Delete the partition file
+                return;
+            }
+            secondaryConnections.execute(server, (int) UPLOAD_TIMEOUT_MS, connection -> {
+                Protocol.writeFrame(connection.getOut(), Protocol.DELETE_PARTITION, header -> header.writeUTF(partitionName(partitionPath)));
+                connection.getOut().flush();
+                return Protocol.readResponse(connection.getIn());
+            });
+        } catch (IOException e) {
+            updateLog("Erreur lors de la suppression de la partition " + partitionPath + ": " + e.getMessage());
+        }
+    }
+
+    // Suppressions reportées des partitions dont le serveur est revenu (voir deletePartition)
+    private void retryDeletes() {
+        for (String partitionPath : new ArrayList<>(pendingDeletes)) {
+            SecondaryServerInfo server = findServer(partitionPath);
+            if (server != null && membership.isAlive(server) && pendingDeletes.remove(partitionPath)) {
+                deletePartition(partitionPath);
+            }
+        }
+    }
+
+    // Déplacement en arrière-plan des partitions existantes vers la répartition courante (voir
+    // Placement) après l'enregistrement d'un serveur secondaire: sans lui, seuls les fichiers
+    // envoyés ensuite utiliseraient le nouveau serveur.
+    //
+    // Chaque partition (ou bloc) est d'abord copiée sur ses nouveaux serveurs depuis une de ses
+    // copies actuelles, telle qu'elle est stockée (sans décompression) et à débit limité. Le
+    // catalogue est ensuite modifié en une fois par fichier, sous le verrou relocation: un envoi ou
+    // une suppression du même fichier entre-temps l'emporte et les copies faites sont abandonnées.
+    // Les anciennes copies ne sont supprimées que REBALANCE_GRACE_MS plus tard, le temps que les
+    // téléchargements déjà commencés les finissent. Un arrêt en cours de route laisse au pire des
+    // copies en trop, jamais un fichier incomplet.
+    //
+    // Une partition dont une copie est sur un serveur qui ne s'est pas (encore) enregistré ou ne
+    // répond plus depuis moins de REBALANCE_DOWN_GRACE_MS ne bouge pas, et le nombre de partitions
+    // d'un fichier reste celui choisi à l'envoi. Au-delà, la copie est perdue: un passage lancé
+    // REBALANCE_DOWN_GRACE_MS après l'arrêt du serveur la refait depuis les copies restantes, sur
+    // les serveurs en vie choisis par Placement. Une partition sans copie restante (partition
+    // "erasure", ou backup.replication à 1) ne peut pas être refaite et est seulement signalée.
+    private final class Rebalancer {
+        private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "reequilibrage");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private final Throttle throttle = new Throttle(REBALANCE_BANDWIDTH);
+        private ScheduledFuture<?> next;
+        private ScheduledFuture<?> repair;
+        private int movedCopies;
+        private long movedBytes;
+        private int unrecoverable;
+
+        // Les serveurs qui s'enregistrent ensemble (au démarrage) ne déclenchent qu'un passage
+        synchronized void schedule() {
+            if (next != null) {
+                next.cancel(false);
+            }
+            next = scheduler.schedule(this::run, REBALANCE_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+
+        // Un serveur vient d'être considéré arrêté: passage quand ses copies seront perdues
+        synchronized void scheduleRepair() {
+            if (repair != null) {
+                repair.cancel(false);
+            }
+            repair = scheduler.schedule(this::run, REBALANCE_DOWN_GRACE_MS, TimeUnit.MILLISECONDS);
+        }
+
+        private void run() {
+            try {
+                rebalance(membership.getPlacement());
+            } catch (RuntimeException e) {
+                updateLog("Erreur de rééquilibrage: " + e);
+            }
+        }
+
+        private void rebalance(Placement target) {
+            long start = System.currentTimeMillis();
+            movedCopies = 0;
+            movedBytes = 0;
+            unrecoverable = 0;
+            updateLog("Rééquilibrage vers " + target.size() + " serveur(s) secondaire(s): " + target.describe());
+            int files = 0;
+            for (Catalog.Entry entry : new ArrayList<>(catalog.entries())) {
+                if (!entry.getReplicas().isEmpty() && !ChunkIndex.isChunk(entry.getReplicas(0).get(0)) && rebalanceFile(entry, target)) {
+                    files++;
+                }
+            }
+            int chunks = rebalanceChunks(target);
+            updateLog("Rééquilibrage terminé: " + files + " fichier(s) et " + chunks + " bloc(s) déplacés, "
+                    + movedCopies + " copies (" + movedBytes + " octets) en " + (System.currentTimeMillis() - start) + " ms"
+                    + (unrecoverable > 0 ? ", " + unrecoverable + " partition(s) sans copie restante" : ""));
+        }
+
+        // Partitions d'un fichier "stripe" ou "erasure": mêmes serveurs qu'un envoi du fichier
+        // aujourd'hui (partition i sur le i-ème serveur choisi, ses copies sur les suivants). S'il
+        // reste moins de serveurs que de partitions, seules les copies perdues sont refaites.
+        private boolean rebalanceFile(Catalog.Entry entry, Placement target) {
+            List<List<String>> replicas = entry.getReplicas();
+            int numPartitions = replicas.size();
+            List<SecondaryServerInfo> servers = target.select(entry.getFileName(), numPartitions);
+            boolean repairOnly = servers.size() < numPartitions;
+            List<List<String>> moved = new ArrayList<>(numPartitions);
+            List<String> created = new ArrayList<>();
+            boolean changed = false;
+            try {
+                for (int i = 0; i < numPartitions; i++) {
+                    List<String> copies = replicas.get(i);
+                    if (copies.size() > servers.size()) {
+                        return false;
+                    }
+                    List<SecondaryServerInfo> desired = repairOnly ? replaceLost(copies, servers, i) : new ArrayList<>(copies.size());
+                    for (int j = 0; !repairOnly && j < copies.size(); j++) {
+                        desired.add(servers.get((i + j) % numPartitions));
+                    }
+                    List<String> paths = desired == null ? null : relocate(copies, entry.getChecksum(i), desired, created);
+                    changed |= paths != null;
+                    moved.add(paths != null ? paths : copies);
+                }
+            } catch (IOException e) {
+                updateLog("Rééquilibrage de " + entry.getFileName() + " impossible: " + e.getMessage());
+                discard(entry.getFileName(), created);
+                return false;
+            }
+            if (!changed) {
+                return false;
+            }
+
+            boolean replaced;
+            try {
+                replaced = replace(entry, moved);
+            } catch (IOException e) {
+                replaced = false;
+                updateLog("Rééquilibrage de " + entry.getFileName() + ": erreur d'écriture du catalogue: " + e.getMessage());
+            }
+            if (!replaced) {
+                discard(entry.getFileName(), created);
+                return false;
+            }
+            List<String> obsolete = new ArrayList<>(entry.getAllPaths());
+            for (List<String> paths : moved) {
+                obsolete.removeAll(paths);
+            }
+            retire(entry.getFileName(), obsolete);
+            return true;
+        }
+
+        // Serveurs des copies restantes, puis, à la place des copies perdues, les serveurs de
+        // servers à partir du first-ième qui n'en ont pas. Null si une copie est sur un serveur
+        // inconnu (relocate ne la déplacerait pas).
+        private List<SecondaryServerInfo> replaceLost(List<String> copies, List<SecondaryServerInfo> servers, int first) {
+            List<SecondaryServerInfo> desired = new ArrayList<>(copies.size());
+            int lost = 0;
+            for (String path : copies) {
+                SecondaryServerInfo server = findServer(path);
+                if (server == null) {
+                    return null;
+                }
+                if (membership.isDownFor(server, REBALANCE_DOWN_GRACE_MS)) {
+                    lost++;
+                } else {
+                    desired.add(server);
+                }
+            }
+            for (int j = 0; lost > 0 && j < servers.size(); j++) {
+                SecondaryServerInfo server = servers.get((first + j) % servers.size());
+                if (!desired.contains(server)) {
+                    desired.add(server);
+                    lost--;
+                }
+            }
+            return desired;
+        }
+
+        // Blocs: chacun sur les serveurs désignés par son empreinte, comme un nouveau bloc. Les
+        // fichiers qui contiennent un bloc déplacé sont ensuite mis à jour dans le catalogue.
+        private int rebalanceChunks(Placement target) {
+            int chunks = 0;
+            List<String> obsolete = new ArrayList<>();
+            for (ChunkIndex.Chunk chunk : chunkIndex.storedChunks()) {
+                List<String> copies = chunk.getPaths();
+                List<SecondaryServerInfo> desired = target.select(chunk.getHash(), copies.size());
+                if (desired.size() < copies.size()) {
+                    continue;
+                }
+                List<String> created = new ArrayList<>();
+                List<String> paths;
+                try {
+                    paths = relocate(copies, chunk.getChecksum(), desired, created);
+                } catch (IOException e) {
+                    updateLog("Rééquilibrage du bloc " + chunk.getHash() + " impossible: " + e.getMessage());
+                    discard(null, created);
+                    continue;
+                }
+                if (paths == null) {
+                    continue;
+                }
+                boolean moved;
+                relocation.writeLock().lock();
+                try {
+                    moved = chunkIndex.move(chunk, copies, paths);
+                } finally {
+                    relocation.writeLock().unlock();
+                }
+                if (!moved) {
+                    // Bloc supprimé entre-temps
+                    discard(null, created);
+                    continue;
+                }
+                chunks++;
+                for (String path : copies) {
+                    if (!paths.contains(path)) {
+                        obsolete.add(path);
+                    }
+                }
+            }
+            if (chunks == 0) {
+                return 0;
+            }
+
+            try {
+                for (Catalog.Entry entry : new ArrayList<>(catalog.entries())) {
+                    List<List<String>> current = currentLocations(entry.getReplicas());
+                    if (!current.equals(entry.getReplicas())) {
+                        replace(entry, current);
+                    }
+                }
+            } catch (IOException e) {
+                // Des fichiers désignent encore les anciennes copies: elles restent
+                updateLog("Rééquilibrage des blocs: erreur d'écriture du catalogue: " + e.getMessage());
+                return chunks;
+            }
+            retire(null, obsolete);
+            return chunks;
+        }
+
+        // Remplace l'entrée du catalogue si le fichier n'a pas été renvoyé ou supprimé entre-temps
+        private boolean replace(Catalog.Entry entry, List<List<String>> replicas) throws IOException {
+            relocation.writeLock().lock();
+            try {
+                if (catalog.get(entry.getFileName()) != entry) {
+                    return false;
+                }
+                catalogJournal.put(entry.relocated(replicas));
+                return true;
+            } finally {
+                relocation.writeLock().unlock();
+            }
+        }
+
+        // Copie la partition sur les serveurs de desired qui n'en ont pas, depuis ses copies
+        // restantes (celles des serveurs arrêtés depuis REBALANCE_DOWN_GRACE_MS sont perdues).
+        // Retourne ses chemins dans l'ordre de desired, ou null si elle est déjà au bon endroit ou
+        // ne doit pas bouger. Les copies faites sont ajoutées à created.
+        private List<String> relocate(List<String> copies, long checksum, List<SecondaryServerInfo> desired, List<String> created) throws IOException {
+            List<SecondaryServerInfo> current = new ArrayList<>(copies.size());
+            List<String> surviving = new ArrayList<>(copies.size());
+            for (String path : copies) {
+                SecondaryServerInfo server = findServer(path);
+                if (server != null && membership.isDownFor(server, REBALANCE_DOWN_GRACE_MS)) {
+                    continue;
+                }
+                if (server == null || !membership.isAlive(server)) {
+                    return null;
+                }
+                current.add(server);
+                surviving.add(path);
+            }
+            if (surviving.isEmpty()) {
+                unrecoverable++;
+                return null;
+            }
+            if (surviving.size() == copies.size() && new HashSet<>(current).equals(new HashSet<>(desired))) {
+                return null;
+            }
+            String partitionName = partitionName(copies.get(0));
+            List<String> paths = new ArrayList<>(desired.size());
+            for (SecondaryServerInfo server : desired) {
+                int existing = current.indexOf(server);
+                if (existing >= 0) {
+                    paths.add(surviving.get(existing));
+                    continue;
+                }
+                String path = server.getStoragePath() + "/" + partitionName;
+                created.add(path);
+                copyPartition(surviving, checksum, server, partitionName);
+                paths.add(path);
+            }
+            return paths;
+        }
+
+        // Depuis la première copie lisible et intacte. La copie faite depuis une copie corrompue
+        // (CRC32C différent de checksum) est remplacée par la suivante, ou supprimée par discard.
+        private void copyPartition(List<String> sources, long checksum, SecondaryServerInfo target, String partitionName) throws IOException {
+            IOException failure = new IOException("Toutes les copies de la partition sont corrompues: " + partitionName);
+            for (String source : sources) {
+                if (corruptCopies.contains(source)) {
+                    continue;
+                }
+                try {
+                    CRC32C copied = new CRC32C();
+                    movedBytes += copyPartition(source, target, partitionName, copied);
+                    if (checksum != Catalog.NO_CHECKSUM && copied.getValue() != checksum) {
+                        corruptionFound(source);
+                        throw new CorruptPartitionException(partitionName);
+                    }
+                    movedCopies++;
+                    return;
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            throw failure;
+        }
+
+        private long copyPartition(String sourcePath, SecondaryServerInfo target, String partitionName, CRC32C checksum) throws IOException {
+            SecondaryServerInfo source = findServer(sourcePath);
+            byte[] buffer = new byte[ChunkedOutputStream.DEFAULT_CHUNK_SIZE];
+            if (source.getProtocolVersion() == 0) {
+                Path local = Paths.get(sourcePath);
+                try (InputStream in = throttle.wrap(Files.newInputStream(local))) {
+                    return sendPartitionToSecondary(target, partitionName, in, Files.size(local), buffer, Codec.NONE, checksum);
+                }
+            }
+            // Si l'envoi échoue, la connexion de lecture, avec ses données non lues, est fermée
+            return secondaryConnections.execute(source, (int) DOWNLOAD_TIMEOUT_MS, connection -> {
+                Protocol.writeFrame(connection.getOut(), Protocol.RETRIEVE_PARTITION, header -> {
+                    header.writeUTF(partitionName);
+                    header.writeLong(0);
+                    header.writeLong(-1);
+                });
+                connection.getOut().flush();
+                long length = Protocol.readResponse(connection.getIn()).header.readLong();
+                return sendPartitionToSecondary(target, partitionName, throttle.wrap(connection.getIn()), length, buffer, Codec.NONE, checksum);
+            });
+        }
+
+        // Copies faites pour un déplacement abandonné: supprimées si rien ne les utilise. fileName:
+        // le fichier dont viennent les partitions, null pour des blocs
+        private void discard(String fileName, List<String> paths) {
+            for (String path : paths) {
+                if (!isReferenced(fileName, path)) {
+                    deletePartition(path);
+                }
+            }
+        }
+
+        // Anciennes copies, supprimées après le délai de grâce si rien ne les utilise à nouveau
+        private void retire(String fileName, List<String> paths) {
+            if (paths.isEmpty()) {
+                return;
+            }
+            scheduler.schedule(() -> discard(fileName, paths), REBALANCE_GRACE_MS, TimeUnit.MILLISECONDS);
+        }
+
+        // Une partition ordinaire porte le nom de son fichier (voir partitionBaseName): seule
+        // l'entrée de ce fichier peut l'utiliser, y compris s'il a été renvoyé entre-temps
+        private boolean isReferenced(String fileName, String path) {
+            if (ChunkIndex.isChunk(path)) {
+                ChunkIndex.Chunk chunk = chunkIndex.find(path);
+                return chunk != null && chunk.getPaths().contains(path);
+            }
+            Catalog.Entry entry = fileName == null ? null : catalog.get(fileName);
+            return entry != null && entry.getAllPaths().contains(path);
+        }
+    }
+
     public static void main(String[] args) {
         SwingUtilities.invokeLater(() -> {
             new MainServer().setVisible(true);
@@ -0,0 +1,303 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+// Serveurs secondaires connus du serveur principal, et leur état.
+//
+// Un serveur qui s'enregistre à nouveau avec la même adresse (ip:port), après un redémarrage par
+// exemple, garde son ID. Toutes les HEARTBEAT_INTERVAL_MS, chaque serveur reçoit un HEARTBEAT
+// (un PING pour les serveurs plus anciens) qui rapporte son espace libre et ses transferts en
+// attente; la durée de l'échange donne sa latence récente (moyenne glissante). Après MAX_MISSED
+// échecs de suite, le serveur est considéré comme arrêté: il sort de la répartition (voir
+// Placement) jusqu'à ce qu'un heartbeat réussisse à nouveau. Les serveurs de l'ancien protocole,
+// sans heartbeat, sont toujours considérés en vie.
+//
+// Un serveur en vie mais surchargé (trop de transferts en attente, latence trop élevée, disque
+// presque plein) reste dans la répartition, mais les envois l'évitent quand d'autres serveurs
+// peuvent le remplacer, et les téléchargements lisent d'abord les copies des serveurs les moins
+// chargés.
+//
+// Quand un serveur arrêté redevient disponible (heartbeat ou nouvel enregistrement), onRevived est
+// appelé: les partitions envoyées ailleurs pendant son absence peuvent revenir à leur place. Quand
+// un serveur est considéré arrêté, onDown est appelé: ses copies seront refaites ailleurs s'il ne
+// revient pas (voir isDownFor). Les partitions trouvées corrompues par un serveur (voir Scrubber)
+// sont passées à onCorruption.
+//
+// Configuration (propriétés système):
+//   backup.heartbeat.interval   intervalle entre deux heartbeats en ms (défaut: 2000)
+//   backup.heartbeat.maxMissed  échecs de suite avant de considérer un serveur arrêté (défaut: 3)
+//   backup.heartbeat.maxPending transferts en attente au-delà desquels un serveur est surchargé (défaut: 32)
+//   backup.heartbeat.maxLatency latence en ms au-delà de laquelle un serveur est surchargé (défaut: 500)
+//   backup.heartbeat.minFree    espace libre en octets en dessous duquel un serveur est surchargé (défaut: 1 Gio)
+public class Membership {
+    private static final long HEARTBEAT_INTERVAL_MS = Long.getLong("backup.heartbeat.interval", 2000);
+    private static final int MAX_MISSED = Integer.getInteger("backup.heartbeat.maxMissed", 3);
+    private static final int MAX_PENDING = Integer.getInteger("backup.heartbeat.maxPending", 32);
+    private static final double MAX_LATENCY_MS = Long.getLong("backup.heartbeat.maxLatency", 500);
+    private static final long MIN_FREE_SPACE = Long.getLong("backup.heartbeat.minFree", 1L << 30);
+    // Poids de la dernière mesure dans la latence moyenne
+    private static final double LATENCY_WEIGHT = 0.3;
+
+    // État d'un serveur, mis à jour par les heartbeats
+    private static final class Member {
+        private final SecondaryServerInfo server;
+        private final AtomicBoolean inProgress = new AtomicBoolean();
+        private volatile boolean alive = true;
+        // Date (ms) à laquelle le serveur a été considéré arrêté
+        private volatile long downSince;
+        private volatile long freeSpace = -1;
+        private volatile int pending;
+        private volatile double latencyMs;
+        private int missed;
+
+        Member(SecondaryServerInfo server) {
+            this.server = server;
+        }
+
+        boolean isOverloaded() {
+            return pending > MAX_PENDING || latencyMs > MAX_LATENCY_MS || (freeSpace >= 0 && freeSpace < MIN_FREE_SPACE);
+        }
+
+        // Plus petit = à lire en premier
+        double load() {
+            return (latencyMs + 1) * (pending + 1);
+        }
+    }
+
+    private final SecondaryConnectionPool connections;
+    private final Consumer<String> log;
+    private final Runnable onRevived;
+    private final Consumer<SecondaryServerInfo> onDown;
+    private final BiConsumer<SecondaryServerInfo, List<String>> onCorruption;
+    private final Map<String, Member> members = new LinkedHashMap<>();
+    private int nextId = 1;
+    // Copies en lecture seule, remplacées à chaque changement
+    private volatile List<SecondaryServerInfo> servers = List.of();
+    private volatile Placement placement = new Placement(List.of());
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "heartbeats");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ExecutorService heartbeats = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public Membership(SecondaryConnectionPool connections, Consumer<String> log, Runnable onRevived,
+                      Consumer<SecondaryServerInfo> onDown, BiConsumer<SecondaryServerInfo, List<String>> onCorruption) {
+        this.connections = connections;
+        this.log = log;
+        this.onRevived = onRevived;
+        this.onDown = onDown;
+        this.onCorruption = onCorruption;
+        scheduler.scheduleWithFixedDelay(this::sendHeartbeats, HEARTBEAT_INTERVAL_MS, HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // Retourne le serveur enregistré (avec son ID): celui déjà connu à la même adresse, mis à jour,
+    // ou server s'il est nouveau
+    public SecondaryServerInfo register(SecondaryServerInfo server) {
+        Member member;
+        boolean revived = false;
+        synchronized (this) {
+            member = members.get(key(server));
+            if (member == null) {
+                server.setId(nextId++);
+                member = new Member(server);
+                members.put(key(server), member);
+            } else {
+                SecondaryServerInfo known = member.server;
+                known.setStoragePath(server.getStoragePath());
+                known.setCapacity(server.getCapacity());
+                known.setProtocolVersion(server.getProtocolVersion());
+                member.missed = 0;
+                revived = !member.alive;
+                member.alive = true;
+                // Les connexions ouvertes avant le redémarrage du serveur ne servent plus
+                connections.evict(known);
+            }
+            update();
+        }
+        if (revived) {
+            onRevived.run();
+        }
+        return member.server;
+    }
+
+    // Tous les serveurs enregistrés, en vie ou non: les partitions déjà stockées y sont cherchées
+    public List<SecondaryServerInfo> getServers() {
+        return servers;
+    }
+
+    // Répartition entre les serveurs en vie
+    public Placement getPlacement() {
+        return placement;
+    }
+
+    public boolean isAlive(SecondaryServerInfo server) {
+        Member member = member(server);
+        return member == null || member.alive;
+    }
+
+    // Vrai si le serveur est enregistré et arrêté depuis au moins durationMs
+    public boolean isDownFor(SecondaryServerInfo server, long durationMs) {
+        Member member = member(server);
+        return member != null && !member.alive && System.currentTimeMillis() - member.downSince >= durationMs;
+    }
+
+    // Serveurs en vie d'abord, les moins chargés en premier; les autres à la fin, dans le même ordre
+    public List<SecondaryServerInfo> byLoad(List<SecondaryServerInfo> candidates) {
+        List<SecondaryServerInfo> sorted = new ArrayList<>(candidates);
+        sorted.sort(Comparator.comparing((SecondaryServerInfo server) -> !isAlive(server))
+                .thenComparingDouble(server -> {
+                    Member member = member(server);
+                    return member == null ? 0 : member.load();
+                }));
+        return sorted;
+    }
+
+    public synchronized String describe() {
+        int alive = 0;
+        int overloaded = 0;
+        for (Member member : members.values()) {
+            if (member.alive) {
+                alive++;
+                if (member.isOverloaded()) {
+                    overloaded++;
+                }
+            }
+        }
+        return "serveurs secondaires: " + alive + "/" + members.size() + " en vie"
+                + (overloaded > 0 ? " (" + overloaded + " surchargé(s))" : "");
+    }
+
+    // État détaillé d'un serveur, pour le journal
+    public String describe(SecondaryServerInfo server) {
+        Member member = member(server);
+        if (member == null) {
+            return "ID=" + server.getId() + " inconnu";
+        }
+        return "ID=" + server.getId() + (member.alive ? "" : " arrêté")
+                + (member.freeSpace >= 0 ? ", libre: " + member.freeSpace + " octets" : "")
+                + ", en attente: " + member.pending + ", latence: " + Math.round(member.latencyMs) + " ms";
+    }
+
+    private synchronized Member member(SecondaryServerInfo server) {
+        Member member = members.get(key(server));
+        return member != null && member.server == server ? member : null;
+    }
+
+    // Appelé avec le verrou
+    private void update() {
+        List<SecondaryServerInfo> all = new ArrayList<>(members.size());
+        List<SecondaryServerInfo> alive = new ArrayList<>(members.size());
+        for (Member member : members.values()) {
+            all.add(member.server);
+            if (member.alive) {
+                alive.add(member.server);
+            }
+        }
+        servers = List.copyOf(all);
+        placement = new Placement(alive, server -> {
+            Member member = member(server);
+            return member == null || !member.isOverloaded();
+        });
+    }
+
+    private void sendHeartbeats() {
+        List<Member> current;
+        synchronized (this) {
+            current = new ArrayList<>(members.values());
+        }
+        for (Member member : current) {
+            // Un heartbeat encore en attente (serveur qui ne répond pas) n'est pas doublé
+            if (member.server.getProtocolVersion() > 0 && member.inProgress.compareAndSet(false, true)) {
+                heartbeats.execute(() -> {
+                    try {
+                        heartbeat(member);
+                    } finally {
+                        member.inProgress.set(false);
+                    }
+                });
+            }
+        }
+    }
+
+    private void heartbeat(Member member) {
+        SecondaryServerInfo server = member.server;
+        int timeoutMs = (int) Math.max(1000, HEARTBEAT_INTERVAL_MS);
+        long start = System.nanoTime();
+        try {
+            List<String> corrupted = new ArrayList<>();
+            long[] status = connections.execute(server, timeoutMs, connection -> {
+                if (server.getProtocolVersion() < Protocol.VERSION_HEARTBEAT) {
+                    connection.ping(timeoutMs);
+                    return new long[] { -1, 0 };
+                }
+                Protocol.writeFrame(connection.getOut(), Protocol.HEARTBEAT, null);
+                connection.getOut().flush();
+                DataInputStream response = Protocol.readResponse(connection.getIn()).header;
+                long[] values = { response.readLong(), response.readInt() };
+                if (response.available() > 0) {
+                    int count = response.readInt();
+                    for (int i = 0; i < count; i++) {
+                        corrupted.add(response.readUTF());
+                    }
+                }
+                return values;
+            });
+            if (!corrupted.isEmpty()) {
+                onCorruption.accept(server, corrupted);
+            }
+            double latencyMs = (System.nanoTime() - start) / 1e6;
+            boolean revived;
+            synchronized (this) {
+                member.freeSpace = status[0];
+                member.pending = (int) status[1];
+                member.latencyMs = member.latencyMs == 0 ? latencyMs
+                        : LATENCY_WEIGHT * latencyMs + (1 - LATENCY_WEIGHT) * member.latencyMs;
+                member.missed = 0;
+                revived = !member.alive;
+                member.alive = true;
+                if (revived) {
+                    update();
+                }
+            }
+            if (revived) {
+                log.accept("Serveur secondaire de nouveau disponible: " + describe(server));
+                onRevived.run();
+            }
+        } catch (IOException e) {
+            boolean died;
+            synchronized (this) {
+                died = member.alive && ++member.missed >= MAX_MISSED;
+                if (died) {
+                    member.alive = false;
+                    member.downSince = System.currentTimeMillis();
+                    update();
+                }
+            }
+            if (died) {
+                connections.evict(server);
+                log.accept("Serveur secondaire ID=" + server.getId() + " ne répond plus (" + e.getMessage()
+                        + "): il ne reçoit plus de partitions");
+                onDown.accept(server);
+            }
+        }
+    }
+
+    private static String key(SecondaryServerInfo server) {
+        return server.getIp() + ":" + server.getPort();
+    }
+}
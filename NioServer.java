@@ -0,0 +1,367 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+// Serveur non bloquant (ServerSocketChannel + Selector), utilisé quand backup.server.nio=true.
+//
+// Quelques threads d'E/S (backup.server.ioThreads, défaut 2) gèrent l'acceptation, la négociation
+// du protocole et la lecture des trames. Une connexion inactive ne coûte donc aucun thread.
+// Dès qu'une trame complète est reçue, la connexion quitte le sélecteur et passe en mode bloquant
+// dans le WorkerPool, qui traite la commande et les transferts associés (lecture des blocs,
+// transferTo vers le canal). Ensuite la connexion revient au sélecteur avec les octets déjà lus.
+// Les connexions de l'ancien protocole (sérialisation Java) sont entièrement traitées par un worker.
+public class NioServer {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    public interface Handler {
+        // Connexion à l'ancien protocole, traitée jusqu'à sa fermeture
+        void handleLegacy(Socket socket, InputStream in) throws Exception;
+
+        // Traite une trame; le contenu éventuel se lit dans in. Retourne false pour fermer la connexion.
+        boolean handleFrame(Socket socket, Protocol.Frame frame, DataInputStream in, DataOutputStream out, int version) throws IOException;
+    }
+
+    private final int port;
+    private final Handler handler;
+    private final WorkerPool workers;
+    private final Consumer<String> log;
+    private final IoLoop[] loops;
+    private ServerSocketChannel serverChannel;
+    private int nextLoop;
+
+    public NioServer(int port, Handler handler, WorkerPool workers, Consumer<String> log) {
+        this(port, handler, workers, Integer.getInteger("backup.server.ioThreads", 2), log);
+    }
+
+    public NioServer(int port, Handler handler, WorkerPool workers, int ioThreads, Consumer<String> log) {
+        this.port = port;
+        this.handler = handler;
+        this.workers = workers;
+        this.log = log;
+        this.loops = new IoLoop[Math.max(1, ioThreads)];
+    }
+
+    public void start() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new IoLoop(Selector.open());
+        }
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "nio-" + port + "-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public boolean isRunning() {
+        return serverChannel != null && serverChannel.isOpen();
+    }
+
+    // État d'une connexion tant qu'elle est gérée par le sélecteur
+    private static final class Connection {
+        final SocketChannel channel;
+        final IoLoop loop;
+        int version;
+        // Octets d'une trame incomplète, en attente de la suite
+        ByteBuffer partial;
+        // Réponse de négociation pas encore entièrement écrite
+        ByteBuffer pendingWrite;
+        boolean closeAfterWrite;
+
+        Connection(SocketChannel channel, IoLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+        }
+    }
+
+    private final class IoLoop implements Runnable {
+        final Selector selector;
+        // Tampon de lecture direct partagé par toutes les connexions de cette boucle
+        final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        final List<Runnable> dispatches = new ArrayList<>();
+
+        IoLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            Connection connection = (Connection) key.attachment();
+                            try {
+                                if (key.isWritable()) {
+                                    flushPendingWrite(connection, key);
+                                }
+                                if (key.isValid() && key.isReadable()) {
+                                    read(connection, key);
+                                }
+                            } catch (IOException e) {
+                                close(connection.channel);
+                            }
+                        }
+                    }
+
+                    // Les connexions confiées aux workers quittent le sélecteur après l'itération
+                    if (!dispatches.isEmpty()) {
+                        selector.selectNow();
+                        for (Runnable dispatch : dispatches) {
+                            dispatch.run();
+                        }
+                        dispatches.clear();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    log.accept("Erreur de la boucle NIO: " + e.getMessage());
+                }
+            }
+        }
+
+        private void accept() throws IOException {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                IoLoop target = loops[nextLoop++ % loops.length];
+                SocketChannel accepted = channel;
+                if (target == this) {
+                    register(new Connection(accepted, this), null);
+                } else {
+                    target.execute(() -> target.register(new Connection(accepted, target), null));
+                }
+            }
+        }
+
+        // (Ré)inscrit la connexion; rest contient les octets déjà reçus et pas encore traités
+        void register(Connection connection, byte[] rest) {
+            try {
+                SelectionKey key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                if (rest != null && rest.length > 0) {
+                    process(connection, key, ByteBuffer.wrap(rest));
+                }
+            } catch (IOException e) {
+                close(connection.channel);
+            }
+        }
+
+        private void read(Connection connection, SelectionKey key) throws IOException {
+            readBuffer.clear();
+            int n = connection.channel.read(readBuffer);
+            if (n < 0) {
+                key.cancel();
+                close(connection.channel);
+                return;
+            }
+            readBuffer.flip();
+
+            ByteBuffer data = readBuffer;
+            if (connection.partial != null) {
+                ByteBuffer combined = ByteBuffer.allocate(connection.partial.remaining() + readBuffer.remaining());
+                combined.put(connection.partial).put(readBuffer).flip();
+                connection.partial = null;
+                data = combined;
+            }
+            process(connection, key, data);
+        }
+
+        private void process(Connection connection, SelectionKey key, ByteBuffer data) throws IOException {
+            if (connection.version == 0) {
+                if (data.remaining() < 2) {
+                    keepPartial(connection, data);
+                    return;
+                }
+                int start = data.position();
+                if (data.get(start) == (byte) 0xAC && data.get(start + 1) == (byte) 0xED) {
+                    dispatchLegacy(connection, key, remaining(data));
+                    return;
+                }
+                if (data.remaining() < 5) {
+                    keepPartial(connection, data);
+                    return;
+                }
+                int magic = data.getInt();
+                int version = Math.min(data.get() & 0xFF, Protocol.VERSION);
+                if (magic != Protocol.MAGIC) {
+                    key.cancel();
+                    close(connection.channel);
+                    return;
+                }
+                ByteBuffer response = ByteBuffer.allocate(5).putInt(Protocol.MAGIC).put((byte) version);
+                response.flip();
+                connection.closeAfterWrite = version == 0;
+                write(connection, key, response);
+                if (version == 0) {
+                    return;
+                }
+                connection.version = version;
+            }
+
+            if (data.remaining() < 5) {
+                keepPartial(connection, data);
+                return;
+            }
+            int start = data.position();
+            byte opcode = data.get(start);
+            int length = data.getInt(start + 1);
+            if (length < 0 || length > Protocol.MAX_HEADER_SIZE) {
+                key.cancel();
+                close(connection.channel);
+                return;
+            }
+            if (data.remaining() < 5 + length) {
+                keepPartial(connection, data);
+                return;
+            }
+            data.position(start + 5);
+            byte[] header = new byte[length];
+            data.get(header);
+            dispatchFrame(connection, key, new Protocol.Frame(opcode, header), remaining(data));
+        }
+
+        private void keepPartial(Connection connection, ByteBuffer data) {
+            ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+            copy.put(data).flip();
+            connection.partial = copy;
+        }
+
+        private void write(Connection connection, SelectionKey key, ByteBuffer response) throws IOException {
+            connection.channel.write(response);
+            if (response.hasRemaining()) {
+                connection.pendingWrite = response;
+                key.interestOps(SelectionKey.OP_WRITE);
+            } else if (connection.closeAfterWrite) {
+                key.cancel();
+                close(connection.channel);
+            }
+        }
+
+        private void flushPendingWrite(Connection connection, SelectionKey key) throws IOException {
+            connection.channel.write(connection.pendingWrite);
+            if (!connection.pendingWrite.hasRemaining()) {
+                connection.pendingWrite = null;
+                if (connection.closeAfterWrite) {
+                    key.cancel();
+                    close(connection.channel);
+                } else {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            }
+        }
+
+        private void dispatchFrame(Connection connection, SelectionKey key, Protocol.Frame frame, byte[] rest) {
+            key.cancel();
+            dispatches.add(() -> submit(connection, () -> serveFrame(connection, frame, rest)));
+        }
+
+        private void dispatchLegacy(Connection connection, SelectionKey key, byte[] rest) {
+            key.cancel();
+            dispatches.add(() -> submit(connection, () -> serveLegacy(connection, rest)));
+        }
+
+        private void submit(Connection connection, Runnable task) {
+            if (!workers.submit(task)) {
+                rejected(connection);
+            }
+        }
+    }
+
+    private void serveFrame(Connection connection, Protocol.Frame frame, byte[] rest) {
+        SocketChannel channel = connection.channel;
+        try {
+            channel.configureBlocking(true);
+            ConnectionInputStream in = new ConnectionInputStream(Channels.newInputStream(channel), rest);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            boolean keepOpen = handler.handleFrame(channel.socket(), frame, new DataInputStream(in), out, connection.version);
+            out.flush();
+            if (!keepOpen) {
+                close(channel);
+                return;
+            }
+            // La connexion revient au sélecteur en attendant la prochaine commande
+            byte[] unread = in.takeBuffered();
+            channel.configureBlocking(false);
+            connection.loop.execute(() -> connection.loop.register(connection, unread));
+        } catch (IOException e) {
+            log.accept("Erreur de connexion: " + e.getMessage());
+            close(channel);
+        }
+    }
+
+    private void serveLegacy(Connection connection, byte[] rest) {
+        SocketChannel channel = connection.channel;
+        try {
+            channel.configureBlocking(true);
+            handler.handleLegacy(channel.socket(), new ConnectionInputStream(Channels.newInputStream(channel), rest));
+        } catch (Exception e) {
+            log.accept("Erreur de connexion: " + e.getMessage());
+        } finally {
+            close(channel);
+        }
+    }
+
+    // Pool saturé: réponse d'erreur immédiate (trame ERROR ou message sérialisé) puis fermeture
+    private void rejected(Connection connection) {
+        SocketChannel channel = connection.channel;
+        try {
+            channel.configureBlocking(true);
+            if (connection.version > 0) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+                Protocol.writeError(out, "Serveur occupé, réessayez plus tard");
+            } else {
+                ObjectOutputStream out = new ObjectOutputStream(Channels.newOutputStream(channel));
+                out.writeObject("ERROR: Serveur occupé, réessayez plus tard");
+                out.flush();
+            }
+        } catch (IOException e) {
+            // Le client est déjà parti
+        } finally {
+            close(channel);
+        }
+    }
+
+    private static byte[] remaining(ByteBuffer data) {
+        byte[] rest = new byte[data.remaining()];
+        data.get(rest);
+        return rest;
+    }
+
+    private static void close(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // Déjà fermée
+        }
+    }
+}
@@ -0,0 +1,117 @@
+import java.io.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Tuyau borné entre le thread qui lit le fichier reçu et le thread qui envoie une partition.
+// Le lecteur avance au rythme du serveur secondaire; au plus capacity blocs sont en mémoire.
+// Contrairement à PipedInputStream, il ne dépend pas des threads (utilisable depuis un pool).
+public class PartitionPipe extends InputStream {
+    private static final byte[] END = new byte[0];
+
+    private final BlockingQueue<byte[]> chunks;
+    private byte[] current;
+    private int position;
+    private volatile boolean aborted;
+    private volatile IOException failure;
+    private volatile long length = -1;
+
+    public PartitionPipe(int capacity) {
+        this.chunks = new ArrayBlockingQueue<>(capacity + 1);
+    }
+
+    // Côté écriture: ajoute un bloc, en attendant au plus timeoutMs qu'il y ait de la place
+    public void feed(byte[] chunk, long timeoutMs) throws IOException {
+        try {
+            while (!chunks.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+                if (aborted) {
+                    throw failure("Envoi de la partition interrompu");
+                }
+                timeoutMs -= 100;
+                if (timeoutMs <= 0) {
+                    throw new IOException("Délai dépassé: les données ne sont plus lues");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Envoi de la partition interrompu");
+        }
+    }
+
+    // Côté écriture: nombre d'octets qui vont suivre, avant le premier bloc
+    public void announce(long length) {
+        this.length = length;
+    }
+
+    // Longueur annoncée, -1 si elle ne l'a pas été; connue dès que des données ont été lues
+    public long getLength() {
+        return length;
+    }
+
+    // Côté écriture: fin de la partition
+    public void finish(long timeoutMs) throws IOException {
+        feed(END, timeoutMs);
+    }
+
+    // Abandon par l'un ou l'autre côté: les attentes en cours échouent
+    public void abort() {
+        aborted = true;
+    }
+
+    // Abandon sur erreur: l'autre côté reçoit cette erreur
+    public void fail(IOException cause) {
+        failure = cause;
+        aborted = true;
+    }
+
+    public boolean isAborted() {
+        return aborted;
+    }
+
+    private IOException failure(String message) {
+        IOException cause = failure;
+        return cause != null ? new IOException(cause.getMessage(), cause) : new IOException(message);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (current == null || position == current.length) {
+            if (current == END) {
+                return -1;
+            }
+            current = take();
+            position = 0;
+            if (current == END) {
+                return -1;
+            }
+        }
+        int n = Math.min(len, current.length - position);
+        System.arraycopy(current, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    private byte[] take() throws IOException {
+        try {
+            byte[] chunk;
+            while ((chunk = chunks.poll(100, TimeUnit.MILLISECONDS)) == null) {
+                if (aborted) {
+                    throw failure("Réception du fichier interrompue");
+                }
+            }
+            return chunk;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Réception du fichier interrompue");
+        }
+    }
+}
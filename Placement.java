@@ -0,0 +1,152 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+// Choix des serveurs secondaires d'un fichier ou d'un bloc par hachage cohérent.
+//
+// Chaque serveur occupe plusieurs points (noeuds virtuels) d'un anneau, en nombre proportionnel à
+// sa capacité. Une clé (nom de fichier, empreinte de bloc) est placée sur les serveurs rencontrés
+// en parcourant l'anneau à partir de sa propre position. Ajouter un serveur ne déplace que les clés
+// qui tombent sur ses points (environ 1/n d'entre elles), au lieu de changer la répartition de
+// tous les fichiers comme un modulo sur le nombre de serveurs.
+//
+// Les points dépendent de l'adresse du serveur (ip:port) et non de son ID: un serveur garde sa
+// place quel que soit l'ordre dans lequel les serveurs se sont enregistrés.
+//
+// Une instance ne change pas: une nouvelle est construite quand un serveur secondaire s'enregistre,
+// s'arrête ou redevient disponible (voir Membership).
+public class Placement {
+    // Noeuds virtuels d'un serveur de capacité moyenne (backup.placement.vnodes)
+    private static final int VIRTUAL_NODES = Integer.getInteger("backup.placement.vnodes", 128);
+    // Un serveur très grand ne prend pas plus de MAX_WEIGHT fois la part d'un serveur moyen
+    private static final double MAX_WEIGHT = 16;
+
+    private final List<SecondaryServerInfo> servers;
+    private final TreeMap<Long, SecondaryServerInfo> ring = new TreeMap<>();
+    // Serveurs à utiliser de préférence pour les envois (les autres sont surchargés)
+    private final Predicate<SecondaryServerInfo> available;
+
+    public Placement(List<SecondaryServerInfo> servers) {
+        this(servers, server -> true);
+    }
+
+    public Placement(List<SecondaryServerInfo> servers, Predicate<SecondaryServerInfo> available) {
+        this.servers = List.copyOf(servers);
+        this.available = available;
+        // Capacité inconnue (ancien serveur secondaire): comptée comme la moyenne des autres
+        long knownCapacity = 0;
+        int known = 0;
+        for (SecondaryServerInfo server : this.servers) {
+            if (server.getCapacity() > 0) {
+                knownCapacity += server.getCapacity();
+                known++;
+            }
+        }
+        double average = known == 0 ? 1 : (double) knownCapacity / known;
+        for (SecondaryServerInfo server : this.servers) {
+            double weight = server.getCapacity() > 0 ? Math.min(MAX_WEIGHT, server.getCapacity() / average) : 1;
+            int nodes = Math.max(1, (int) Math.round(VIRTUAL_NODES * weight));
+            String address = server.getIp() + ":" + server.getPort();
+            for (int node = 0; node < nodes; node++) {
+                ring.putIfAbsent(hash(address + "#" + node), server);
+            }
+        }
+    }
+
+    public List<SecondaryServerInfo> getServers() {
+        return servers;
+    }
+
+    public int size() {
+        return servers.size();
+    }
+
+    // count serveurs différents pour la clé (moins s'il n'y en a pas assez), dans l'ordre de
+    // l'anneau: le premier reçoit la partition principale, les suivants les copies
+    public List<SecondaryServerInfo> select(String key, int count) {
+        int wanted = Math.min(count, servers.size());
+        List<SecondaryServerInfo> selected = new ArrayList<>(wanted);
+        long position = hash(key);
+        collect(ring.tailMap(position, true).values(), selected, wanted);
+        collect(ring.headMap(position, false).values(), selected, wanted);
+        return selected;
+    }
+
+    // Comme select pour un envoi: un serveur indisponible (surchargé) est remplacé par le suivant
+    // sur l'anneau, et n'est utilisé que s'il n'y a pas assez d'autres serveurs. Le rééquilibrage
+    // ramène ensuite les partitions sur les serveurs de select.
+    public List<SecondaryServerInfo> route(String key, int count) {
+        List<SecondaryServerInfo> preferred = select(key, servers.size());
+        List<SecondaryServerInfo> routed = new ArrayList<>(Math.min(count, preferred.size()));
+        for (SecondaryServerInfo server : preferred) {
+            if (routed.size() < count && available.test(server)) {
+                routed.add(server);
+            }
+        }
+        for (SecondaryServerInfo server : preferred) {
+            if (routed.size() < count && !routed.contains(server)) {
+                routed.add(server);
+            }
+        }
+        return routed;
+    }
+
+    private static void collect(Collection<SecondaryServerInfo> nodes, List<SecondaryServerInfo> selected, int wanted) {
+        for (SecondaryServerInfo server : nodes) {
+            if (selected.size() == wanted) {
+                return;
+            }
+            if (!selected.contains(server)) {
+                selected.add(server);
+            }
+        }
+    }
+
+    // Part de l'anneau de chaque serveur, en pourcentage: "ID=1 34%, ID=2 33%, ..."
+    public String describe() {
+        Map<SecondaryServerInfo, Double> shares = new LinkedHashMap<>();
+        for (SecondaryServerInfo server : servers) {
+            shares.put(server, 0.0);
+        }
+        if (ring.isEmpty()) {
+            return "aucun serveur";
+        }
+        // Un point reçoit les clés situées entre le point précédent et lui
+        long previous = ring.lastKey();
+        for (Map.Entry<Long, SecondaryServerInfo> node : ring.entrySet()) {
+            double arc = unsigned(node.getKey() - previous);
+            shares.merge(node.getValue(), ring.size() == 1 ? 1.0 : arc / 0x1p64, Double::sum);
+            previous = node.getKey();
+        }
+        StringBuilder description = new StringBuilder();
+        for (Map.Entry<SecondaryServerInfo, Double> share : shares.entrySet()) {
+            if (description.length() > 0) {
+                description.append(", ");
+            }
+            description.append("ID=").append(share.getKey().getId()).append(' ')
+                    .append(Math.round(share.getValue() * 100)).append('%');
+        }
+        return description.toString();
+    }
+
+    private static double unsigned(long value) {
+        return value >= 0 ? value : value + 0x1p64;
+    }
+
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
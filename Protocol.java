@@ -0,0 +1,210 @@
+import java.io.*;
+import java.net.*;
+
+// Protocole binaire entre Client, MainServer et SecondaryServer.
+//
+// Négociation: le client envoie MAGIC + version, le serveur répond MAGIC + version retenue
+// (0 si aucune version commune). Un flux qui commence par l'entête de sérialisation Java
+// (0xACED) est traité avec l'ancien protocole ObjectInputStream/ObjectOutputStream.
+//
+// Trame: [opcode: 1 octet][longueur de l'entête: int][entête]. L'entête contient les champs
+// de la commande (DataOutput). Les données volumineuses suivent la trame, soit en blocs
+// (ChunkedOutputStream), soit brutes quand leur taille est annoncée dans l'entête.
+public final class Protocol {
+    public static final int MAGIC = 0x424B5550; // "BKUP"
+    public static final int VERSION = 7;
+    // Première version avec UPLOAD_MANIFEST
+    public static final int VERSION_MANIFEST = 2;
+    // Première version avec HEARTBEAT
+    public static final int VERSION_HEARTBEAT = 3;
+    // Première version avec la reprise des transferts (DOWNLOAD à partir d'une position, UPLOAD_RESUME)
+    public static final int VERSION_RESUME = 4;
+    // Première version avec les sommes de contrôle des partitions (STORE_PARTITION vérifiée,
+    // partitions corrompues dans HEARTBEAT)
+    public static final int VERSION_CHECKSUM = 5;
+    // Première version avec la liste des fichiers par pages (LIST_FILES avec paramètres)
+    public static final int VERSION_LIST = 6;
+    // Première version avec les envois et téléchargements groupés (BATCH_UPLOAD, BATCH_DOWNLOAD)
+    public static final int VERSION_BATCH = 7;
+
+    public static final int MAX_HEADER_SIZE = 16 * 1024 * 1024;
+    public static final int MAX_LIST_PAGE = 1000;
+    public static final int MAX_BATCH_FILES = 1000;
+    private static final int HANDSHAKE_TIMEOUT_MS = 5000;
+
+    // Enregistrement d'un serveur secondaire: ip, port, storagePath[, capacité en octets] -> OK(id)
+    public static final byte REGISTER = 0x01;
+    // Vérification qu'une connexion est toujours utilisable: PING() -> OK
+    public static final byte PING = 0x02;
+    // État d'un serveur secondaire: HEARTBEAT() -> OK(espace libre en octets, transferts en attente
+    // [, nombre de partitions corrompues, noms...])
+    public static final byte HEARTBEAT = 0x03;
+
+    // Commandes client: UPLOAD(nom, taille) + blocs -> OK
+    public static final byte UPLOAD = 0x10;
+    // DOWNLOAD(nom[, début, version]) -> OK(taille[, début retenu, version]) + contenu brut à partir
+    // du début retenu: la position demandée si le fichier est toujours dans la version indiquée
+    // (celle d'une réponse précédente), 0 sinon. Le début retenu peut précéder la position
+    // demandée quand les données déjà envoyées venaient d'une partition trouvée ensuite corrompue.
+    public static final byte DOWNLOAD = 0x11;
+    // LIST_FILES() -> OK(nombre, noms...)
+    // LIST_FILES(préfixe, début, nombre max, version connue) -> OK(version, modifiée[, total, nombre,
+    // (nom, taille, date d'envoi en ms ou 0)...]): les fichiers dont le nom commence par le préfixe,
+    // triés par nom, à partir du début-ième. Si la liste est toujours dans la version connue (celle
+    // d'une réponse précédente), modifiée est false et rien ne suit. Au plus MAX_LIST_PAGE fichiers.
+    public static final byte LIST_FILES = 0x12;
+    // DELETE(nom) -> OK
+    public static final byte DELETE = 0x13;
+    // Envoi incrémental: UPLOAD_MANIFEST(nom, taille, nombre de blocs) + blocs(empreinte SHA-256
+    // sur 32 octets et longueur de chaque bloc) -> OK(taille du masque, masque des blocs manquants)
+    // puis blocs(contenu des blocs manquants, dans l'ordre) -> OK. La première réponse se termine par
+    // l'identifiant de la session d'envoi (long), qui permet de reprendre après une coupure.
+    public static final byte UPLOAD_MANIFEST = 0x14;
+    // Reprise d'un envoi par manifeste interrompu: UPLOAD_RESUME(session) -> OK(taille du masque,
+    // masque des blocs encore manquants, session) puis blocs(contenu de ces blocs, dans l'ordre) -> OK
+    public static final byte UPLOAD_RESUME = 0x15;
+    // Envoi groupé: BATCH_UPLOAD(nombre, (nom, taille)...) + blocs de chaque fichier, l'un après
+    // l'autre -> OK(nombre, message d'erreur de chaque fichier ou "" s'il a été enregistré).
+    // Au plus MAX_BATCH_FILES fichiers.
+    public static final byte BATCH_UPLOAD = 0x16;
+    // Téléchargement groupé: BATCH_DOWNLOAD(nombre, noms...) -> pour chaque fichier, dans l'ordre,
+    // OK(taille, version) + contenu brut, ou ERROR(message). Au plus MAX_BATCH_FILES fichiers.
+    public static final byte BATCH_DOWNLOAD = 0x17;
+
+    // Commandes vers les serveurs secondaires: STORE_PARTITION(nom[, vérifiée]) + blocs [+ CRC32C des
+    // données (int) si vérifiée] -> OK. Le serveur secondaire refuse une partition vérifiée dont le
+    // contenu reçu ne correspond pas au CRC32C.
+    public static final byte STORE_PARTITION = 0x20;
+    // RETRIEVE_PARTITION(nom, début, longueur ou -1 jusqu'à la fin) -> OK(longueur) + contenu brut
+    public static final byte RETRIEVE_PARTITION = 0x21;
+    // DELETE_PARTITION(nom) -> OK(supprimée)
+    public static final byte DELETE_PARTITION = 0x22;
+
+    // Réponses
+    public static final byte OK = 0x40;
+    public static final byte ERROR = 0x41;
+
+    private Protocol() {
+    }
+
+    // Erreur renvoyée par le serveur (trame ERROR): la connexion reste utilisable et recommencer la
+    // même commande ne sert à rien, contrairement à une coupure
+    public static final class RemoteException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public RemoteException(String message) {
+            super(message);
+        }
+    }
+
+    public interface HeaderWriter {
+        void write(DataOutputStream header) throws IOException;
+    }
+
+    public static final class Frame {
+        public final byte opcode;
+        public final DataInputStream header;
+
+        Frame(byte opcode, byte[] header) {
+            this.opcode = opcode;
+            this.header = new DataInputStream(new ByteArrayInputStream(header));
+        }
+    }
+
+    public static void writeFrame(DataOutputStream out, byte opcode, HeaderWriter writer) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        if (writer != null) {
+            writer.write(new DataOutputStream(bytes));
+        }
+        out.writeByte(opcode);
+        out.writeInt(bytes.size());
+        bytes.writeTo(out);
+    }
+
+    public static void writeOk(DataOutputStream out, HeaderWriter writer) throws IOException {
+        writeFrame(out, OK, writer);
+        out.flush();
+    }
+
+    public static void writeError(DataOutputStream out, String message) throws IOException {
+        writeFrame(out, ERROR, header -> header.writeUTF(message == null ? "" : message));
+        out.flush();
+    }
+
+    // Retourne null si la connexion a été fermée proprement entre deux trames
+    public static Frame readFrame(DataInputStream in) throws IOException {
+        int opcode = in.read();
+        if (opcode < 0) {
+            return null;
+        }
+        int length = in.readInt();
+        if (length < 0 || length > MAX_HEADER_SIZE) {
+            throw new ProtocolException("Entête de trame invalide: " + length + " octets");
+        }
+        byte[] header = new byte[length];
+        in.readFully(header);
+        return new Frame((byte) opcode, header);
+    }
+
+    // Lit la réponse à une commande; une trame ERROR devient une IOException
+    public static Frame readResponse(DataInputStream in) throws IOException {
+        Frame frame = readFrame(in);
+        if (frame == null) {
+            throw new EOFException("Connexion fermée par le serveur");
+        }
+        if (frame.opcode == ERROR) {
+            throw new RemoteException(frame.header.readUTF());
+        }
+        if (frame.opcode != OK) {
+            throw new ProtocolException("Réponse inattendue: " + frame.opcode);
+        }
+        return frame;
+    }
+
+    // Vrai si le flux commence par l'entête de sérialisation Java (ancien protocole)
+    public static boolean isSerializationStream(BufferedInputStream in) throws IOException {
+        in.mark(2);
+        int b0 = in.read();
+        int b1 = in.read();
+        in.reset();
+        return b0 == 0xAC && b1 == 0xED;
+    }
+
+    // Côté client: lève ProtocolException si le serveur ne parle pas le protocole binaire
+    public static int clientHandshake(Socket socket, DataInputStream in, DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.flush();
+
+        int previousTimeout = socket.getSoTimeout();
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+        try {
+            int magic = in.readInt();
+            int version = in.readUnsignedByte();
+            if (magic != MAGIC || version == 0) {
+                throw new ProtocolException("Protocole binaire refusé par le serveur");
+            }
+            return version;
+        } catch (EOFException | SocketTimeoutException | SocketException e) {
+            throw new ProtocolException("Le serveur ne supporte pas le protocole binaire");
+        } finally {
+            socket.setSoTimeout(previousTimeout);
+        }
+    }
+
+    // Côté serveur: appelé quand le flux ne commence pas par l'entête de sérialisation
+    public static int serverHandshake(DataInputStream in, DataOutputStream out) throws IOException {
+        int magic = in.readInt();
+        if (magic != MAGIC) {
+            throw new ProtocolException("Entête de protocole inconnue: " + Integer.toHexString(magic));
+        }
+        int version = Math.min(in.readUnsignedByte(), VERSION);
+        out.writeInt(MAGIC);
+        out.writeByte(version);
+        out.flush();
+        if (version == 0) {
+            throw new ProtocolException("Aucune version de protocole commune");
+        }
+        return version;
+    }
+}
@@ -0,0 +1,150 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+// Cache du serveur principal pour les téléchargements: le contenu (décompressé) des partitions
+// récemment envoyées aux clients est gardé en mémoire, hors du tas Java, et les téléchargements
+// suivants du même fichier l'envoient directement sans le redemander aux serveurs secondaires.
+//
+// Au plus CAPACITY octets sont gardés; au-delà, les contenus les moins récemment lus sont retirés
+// (LRU). Un contenu de plus de MAX_ENTRY_SIZE octets n'est pas gardé: un gros fichier lu une fois
+// viderait le cache. La clé désigne un contenu qui ne change jamais (voir MainServer.cacheKey):
+// un fichier renvoyé ou supprimé ne peut donc pas être servi depuis le cache, invalidate ne fait
+// que libérer la mémoire plus tôt. Le contenu est copié une seule fois, directement dans un tampon
+// hors du tas alloué à sa taille: un contenu de taille inconnue n'est pas gardé.
+//
+// Configuration (propriétés système):
+//   backup.cache.size     taille du cache en octets (défaut: 0, pas de cache)
+//   backup.cache.maxEntry taille maximale d'un contenu gardé en octets (défaut: 16 Mio)
+public class ReadCache {
+    private static final long CAPACITY = Long.getLong("backup.cache.size", 0);
+    private static final long MAX_ENTRY_SIZE = Math.min(CAPACITY, Long.getLong("backup.cache.maxEntry", 16L * 1024 * 1024));
+
+    // Ordre d'accès: le premier est le moins récemment lu
+    private final LinkedHashMap<String, ByteBuffer> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long used;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public boolean isEnabled() {
+        return CAPACITY > 0;
+    }
+
+    // Contenu en lecture seule, ou null s'il n'est pas dans le cache
+    public synchronized ByteBuffer get(String key) {
+        if (!isEnabled()) {
+            return null;
+        }
+        ByteBuffer content = entries.get(key);
+        if (content == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return content.duplicate();
+    }
+
+    private void put(String key, ByteBuffer content) {
+        ByteBuffer readOnly = content.flip().asReadOnlyBuffer();
+        synchronized (this) {
+            ByteBuffer previous = entries.put(key, readOnly);
+            used += readOnly.capacity() - (previous != null ? previous.capacity() : 0);
+            Iterator<Map.Entry<String, ByteBuffer>> eldest = entries.entrySet().iterator();
+            while (used > CAPACITY && eldest.hasNext()) {
+                Map.Entry<String, ByteBuffer> entry = eldest.next();
+                used -= entry.getValue().capacity();
+                eldest.remove();
+                evictions++;
+            }
+        }
+    }
+
+    public synchronized void invalidate(String key) {
+        ByteBuffer removed = entries.remove(key);
+        if (removed != null) {
+            used -= removed.capacity();
+        }
+    }
+
+    // Canal qui écrit dans target et garde une copie de ce qui passe, ajoutée au cache par commit.
+    // Sans cache, ou si size (taille du contenu) est inconnue (-1) ou trop grande, target lui-même.
+    public WritableByteChannel capture(WritableByteChannel target, String key, long size) {
+        return capture(target, key, () -> size);
+    }
+
+    // Même chose, la taille n'étant demandée qu'à la première écriture (annoncée avec les données)
+    public WritableByteChannel capture(WritableByteChannel target, String key, LongSupplier size) {
+        if (!isEnabled()) {
+            return target;
+        }
+        return new Capture(target, key, size);
+    }
+
+    // Appelé une fois tout le contenu écrit sans erreur dans le canal retourné par capture
+    public void commit(WritableByteChannel channel) {
+        if (channel instanceof Capture) {
+            Capture capture = (Capture) channel;
+            // Contenu plus court que la taille annoncée: pas gardé
+            if (capture.copy != null && !capture.copy.hasRemaining()) {
+                put(capture.key, capture.copy);
+            }
+        }
+    }
+
+    public synchronized String describe() {
+        if (!isEnabled()) {
+            return "cache: désactivé";
+        }
+        return "cache: " + used / (1024 * 1024) + "/" + CAPACITY / (1024 * 1024) + " Mio, " + entries.size()
+                + " contenu(s), " + hits + " succès, " + misses + " échec(s), " + evictions + " retiré(s)";
+    }
+
+    private final class Capture implements WritableByteChannel {
+        private final WritableByteChannel target;
+        private final String key;
+        private LongSupplier size;
+        // Alloué à la première écriture; null si le contenu ne sera pas gardé (taille inconnue ou
+        // trop grande, ou contenu plus long qu'annoncé)
+        private ByteBuffer copy;
+
+        Capture(WritableByteChannel target, String key, LongSupplier size) {
+            this.target = target;
+            this.key = key;
+            this.size = size;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (size != null) {
+                long expected = size.getAsLong();
+                size = null;
+                if (expected >= 0 && expected <= MAX_ENTRY_SIZE) {
+                    copy = ByteBuffer.allocateDirect((int) expected);
+                }
+            }
+            ByteBuffer written = src.duplicate();
+            int n = target.write(src);
+            if (copy != null && n > copy.remaining()) {
+                copy = null;
+            } else if (copy != null) {
+                copy.put(written.limit(written.position() + n));
+            }
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return target.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            target.close();
+        }
+    }
+}
@@ -0,0 +1,232 @@
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Code correcteur Reed-Solomon systématique sur GF(2^8): k partitions de données + m de parité.
+// N'importe quelles k des k+m partitions suffisent pour reconstituer le fichier.
+//
+// Le fichier est découpé en bandes de k * BLOCK_SIZE octets; chaque bande donne un bloc par
+// partition (k blocs de données, m blocs de parité). La dernière bande est plus courte: ses
+// blocs font ceil(reste / k) octets, complétés par des zéros. Les partitions d'un fichier ont
+// donc toutes la même taille, calculée à partir de la taille du fichier.
+//
+// Les partitions s'appellent "<fichier>.rs<k>-<m>.<numéro>" (numéros 1 à k+m, les k premières
+// sont les données): k et m se retrouvent à partir des chemins du catalogue.
+public class ReedSolomon {
+    public static final int BLOCK_SIZE = 64 * 1024;
+
+    private static final Pattern SHARD_NAME = Pattern.compile("\\.rs(\\d+)-(\\d+)\\.(\\d+)$");
+
+    // Tables de GF(2^8), polynôme x^8 + x^4 + x^3 + x^2 + 1
+    private static final byte[] EXP = new byte[512];
+    private static final int[] LOG = new int[256];
+    private static final byte[][] MUL = new byte[256][256];
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = (byte) x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= 256) {
+                x ^= 0x11D;
+            }
+        }
+        for (int i = 255; i < EXP.length; i++) {
+            EXP[i] = EXP[i - 255];
+        }
+        for (int a = 1; a < 256; a++) {
+            for (int b = 1; b < 256; b++) {
+                MUL[a][b] = EXP[LOG[a] + LOG[b]];
+            }
+        }
+    }
+
+    private final int dataShards;
+    private final int parityShards;
+    // (k+m) x k: identité sur les k premières lignes, coefficients de parité ensuite
+    private final byte[][] matrix;
+
+    public ReedSolomon(int dataShards, int parityShards) {
+        if (dataShards < 1 || parityShards < 0 || dataShards + parityShards > 255) {
+            throw new IllegalArgumentException("Codage " + dataShards + "+" + parityShards + " invalide");
+        }
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+        // Vandermonde (toute sous-matrice k x k est inversible), rendue systématique
+        byte[][] vandermonde = new byte[dataShards + parityShards][dataShards];
+        for (int row = 0; row < vandermonde.length; row++) {
+            for (int column = 0; column < dataShards; column++) {
+                vandermonde[row][column] = power(row, column);
+            }
+        }
+        byte[][] top = new byte[dataShards][];
+        System.arraycopy(vandermonde, 0, top, 0, dataShards);
+        this.matrix = multiply(vandermonde, invert(top));
+    }
+
+    public int getDataShards() { return dataShards; }
+    public int getParityShards() { return parityShards; }
+    public int getTotalShards() { return dataShards + parityShards; }
+
+    // Nom de la partition index (à partir de 0)
+    public String shardName(String fileName, int index) {
+        return fileName + ".rs" + dataShards + "-" + parityShards + "." + (index + 1);
+    }
+
+    // Codage des partitions d'après le chemin de l'une d'elles, ou null si ce n'en est pas une
+    public static ReedSolomon fromShardPath(String partitionPath) {
+        Matcher matcher = SHARD_NAME.matcher(Codec.strip(partitionPath));
+        if (!matcher.find()) {
+            return null;
+        }
+        return new ReedSolomon(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)));
+    }
+
+    public long stripeCount(long fileSize) {
+        long stripeSize = (long) dataShards * BLOCK_SIZE;
+        return (fileSize + stripeSize - 1) / stripeSize;
+    }
+
+    // Octets du fichier dans la bande stripe
+    public int stripeLength(long fileSize, long stripe) {
+        long stripeSize = (long) dataShards * BLOCK_SIZE;
+        return (int) Math.min(stripeSize, fileSize - stripe * stripeSize);
+    }
+
+    // Taille des blocs d'une bande de stripeLength octets
+    public int blockSize(int stripeLength) {
+        return (stripeLength + dataShards - 1) / dataShards;
+    }
+
+    public long shardLength(long fileSize) {
+        long stripes = stripeCount(fileSize);
+        return stripes == 0 ? 0 : (stripes - 1) * BLOCK_SIZE + blockSize(stripeLength(fileSize, stripes - 1));
+    }
+
+    // Découpe une bande en k blocs de données et calcule les m blocs de parité
+    public byte[][] encode(byte[] stripe, int stripeLength) {
+        int blockSize = blockSize(stripeLength);
+        byte[][] shards = new byte[getTotalShards()][blockSize];
+        for (int i = 0; i < dataShards; i++) {
+            int offset = i * blockSize;
+            int length = Math.max(0, Math.min(blockSize, stripeLength - offset));
+            System.arraycopy(stripe, offset, shards[i], 0, length);
+        }
+        for (int p = 0; p < parityShards; p++) {
+            combine(matrix[dataShards + p], shards, shards[dataShards + p], blockSize);
+        }
+        return shards;
+    }
+
+    // Reconstitue les blocs de données d'une bande à partir d'au moins k blocs (les absents sont
+    // null). Retourne les k blocs de données; les blocs présents ne sont pas copiés.
+    public byte[][] decode(byte[][] shards, int blockSize) throws IOException {
+        byte[][] data = new byte[dataShards][];
+        boolean complete = true;
+        for (int i = 0; i < dataShards; i++) {
+            data[i] = shards[i];
+            complete &= shards[i] != null;
+        }
+        if (complete) {
+            return data;
+        }
+
+        // Lignes de la matrice correspondant à k blocs présents, puis inversion
+        byte[][] rows = new byte[dataShards][];
+        byte[][] inputs = new byte[dataShards][];
+        int found = 0;
+        for (int i = 0; i < shards.length && found < dataShards; i++) {
+            if (shards[i] != null) {
+                rows[found] = matrix[i];
+                inputs[found] = shards[i];
+                found++;
+            }
+        }
+        if (found < dataShards) {
+            throw new IOException("Partitions insuffisantes: " + found + " sur " + dataShards + " nécessaires");
+        }
+        byte[][] decoding = invert(rows);
+        for (int i = 0; i < dataShards; i++) {
+            if (data[i] == null) {
+                data[i] = new byte[blockSize];
+                combine(decoding[i], inputs, data[i], blockSize);
+            }
+        }
+        return data;
+    }
+
+    // output = somme des coefficients[j] * inputs[j] (les k premières entrées)
+    private void combine(byte[] coefficients, byte[][] inputs, byte[] output, int length) {
+        for (int j = 0; j < dataShards; j++) {
+            byte[] table = MUL[coefficients[j] & 0xFF];
+            byte[] input = inputs[j];
+            for (int i = 0; i < length; i++) {
+                output[i] ^= table[input[i] & 0xFF];
+            }
+        }
+    }
+
+    private static byte power(int base, int exponent) {
+        if (exponent == 0) {
+            return 1;
+        }
+        if (base == 0) {
+            return 0;
+        }
+        return EXP[(LOG[base] * exponent) % 255];
+    }
+
+    private static byte[][] multiply(byte[][] left, byte[][] right) {
+        byte[][] result = new byte[left.length][right[0].length];
+        for (int row = 0; row < left.length; row++) {
+            for (int column = 0; column < right[0].length; column++) {
+                int value = 0;
+                for (int i = 0; i < right.length; i++) {
+                    value ^= MUL[left[row][i] & 0xFF][right[i][column] & 0xFF];
+                }
+                result[row][column] = (byte) value;
+            }
+        }
+        return result;
+    }
+
+    // Inversion par élimination de Gauss-Jordan
+    private static byte[][] invert(byte[][] source) {
+        int size = source.length;
+        byte[][] work = new byte[size][2 * size];
+        for (int row = 0; row < size; row++) {
+            System.arraycopy(source[row], 0, work[row], 0, size);
+            work[row][size + row] = 1;
+        }
+        for (int column = 0; column < size; column++) {
+            int pivot = column;
+            while (pivot < size && work[pivot][column] == 0) {
+                pivot++;
+            }
+            if (pivot == size) {
+                throw new IllegalArgumentException("Matrice singulière");
+            }
+            byte[] swap = work[pivot];
+            work[pivot] = work[column];
+            work[column] = swap;
+
+            byte[] scale = MUL[EXP[255 - LOG[work[column][column] & 0xFF]] & 0xFF];
+            for (int i = 0; i < 2 * size; i++) {
+                work[column][i] = scale[work[column][i] & 0xFF];
+            }
+            for (int row = 0; row < size; row++) {
+                if (row != column && work[row][column] != 0) {
+                    byte[] factor = MUL[work[row][column] & 0xFF];
+                    for (int i = 0; i < 2 * size; i++) {
+                        work[row][i] ^= factor[work[column][i] & 0xFF];
+                    }
+                }
+            }
+        }
+        byte[][] inverse = new byte[size][size];
+        for (int row = 0; row < size; row++) {
+            System.arraycopy(work[row], size, inverse[row], 0, size);
+        }
+        return inverse;
+    }
+}
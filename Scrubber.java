@@ -0,0 +1,145 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+
+// Vérification en arrière-plan des partitions d'un serveur secondaire ("scrubbing"): toutes les
+// INTERVAL_MS, chaque partition est relue et comparée au CRC32C calculé à sa réception, à au plus
+// BANDWIDTH octets par seconde pour ne pas ralentir les transferts. Une partition corrompue (disque
+// défectueux, fichier modifié) n'est plus envoyée et est signalée au serveur principal par
+// HEARTBEAT: il lit alors une autre copie.
+//
+// Le CRC32C d'une partition stockée dans son propre fichier est dans le fichier voisin
+// "<partition>.crc32c" (8 chiffres hexadécimaux); celui d'une partition stockée dans un segment est
+// dans son enregistrement (voir SegmentStore). Les partitions sans CRC32C ne sont pas vérifiées.
+//
+// Configuration (propriétés système):
+//   backup.scrub.interval  intervalle entre deux vérifications en ms (défaut: 24 h, 0 = jamais)
+//   backup.scrub.bandwidth débit maximal de la vérification en octets/s (défaut: 10 Mio/s, 0 = sans limite)
+public class Scrubber {
+    private static final long INTERVAL_MS = Long.getLong("backup.scrub.interval", 24L * 60 * 60 * 1000);
+    private static final long BANDWIDTH = Long.getLong("backup.scrub.bandwidth", 10L * 1024 * 1024);
+    private static final String CHECKSUM_SUFFIX = ".crc32c";
+
+    private final File storage;
+    // null si le serveur n'a pas de segments
+    private final SegmentStore segments;
+    private final Consumer<String> log;
+    private final Throttle throttle = new Throttle(BANDWIDTH);
+    // Partitions trouvées corrompues, jusqu'à ce qu'elles soient réécrites ou supprimées
+    private final Set<String> corrupted = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "verification-partitions");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public Scrubber(File storage, SegmentStore segments, Consumer<String> log) {
+        this.storage = storage;
+        this.segments = segments;
+        this.log = log;
+    }
+
+    public void start() {
+        if (INTERVAL_MS > 0) {
+            scheduler.scheduleWithFixedDelay(this::scrub, INTERVAL_MS, INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public boolean isCorrupted(String partitionName) {
+        return corrupted.contains(partitionName);
+    }
+
+    public List<String> corrupted() {
+        return new ArrayList<>(corrupted);
+    }
+
+    // La partition a été réécrite ou supprimée
+    public void forget(String partitionName) {
+        corrupted.remove(partitionName);
+    }
+
+    public static boolean isChecksumFile(String fileName) {
+        return fileName.endsWith(CHECKSUM_SUFFIX);
+    }
+
+    public static File checksumFile(File partition) {
+        return new File(partition.getParentFile(), partition.getName() + CHECKSUM_SUFFIX);
+    }
+
+    public static void writeChecksum(File partition, int crc) throws IOException {
+        Files.write(checksumFile(partition).toPath(), String.format("%08x", crc).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    // null si la partition n'a pas de CRC32C lisible
+    private static Integer readChecksum(File partition) {
+        try {
+            String text = new String(Files.readAllBytes(checksumFile(partition).toPath()), StandardCharsets.US_ASCII).trim();
+            return (int) Long.parseLong(text, 16);
+        } catch (IOException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private void scrub() {
+        long start = System.currentTimeMillis();
+        int checked = 0;
+        int found = 0;
+        try {
+            if (segments != null) {
+                for (String name : segments.names()) {
+                    checked++;
+                    if (!segments.verify(name, throttle)) {
+                        found += report(name);
+                    }
+                }
+            }
+            File[] checksumFiles = storage.listFiles((dir, name) -> isChecksumFile(name));
+            for (File checksumFile : checksumFiles == null ? new File[0] : checksumFiles) {
+                String name = checksumFile.getName();
+                File partition = new File(storage, name.substring(0, name.length() - CHECKSUM_SUFFIX.length()));
+                Integer expected = readChecksum(partition);
+                long modified = partition.lastModified();
+                if (expected == null || !partition.isFile()) {
+                    continue;
+                }
+                checked++;
+                CRC32C crc = new CRC32C();
+                try (InputStream in = new CheckedInputStream(throttle.wrap(new FileInputStream(partition)), crc)) {
+                    in.transferTo(OutputStream.nullOutputStream());
+                } catch (FileNotFoundException e) {
+                    // Supprimée pendant la vérification
+                    continue;
+                }
+                // Une partition réécrite pendant la vérification n'est pas signalée
+                if ((int) crc.getValue() != expected && partition.lastModified() == modified
+                        && expected.equals(readChecksum(partition))) {
+                    found += report(partition.getName());
+                }
+            }
+        } catch (IOException e) {
+            log.accept("Erreur de vérification des partitions: " + e.getMessage());
+            return;
+        }
+        log.accept("Vérification des partitions terminée: " + checked + " vérifiée(s), " + found
+                + " corrompue(s), " + corrupted.size() + " au total, en " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    // Retourne 1 si la partition n'était pas déjà connue comme corrompue
+    private int report(String partitionName) {
+        if (!corrupted.add(partitionName)) {
+            return 0;
+        }
+        log.accept("Partition corrompue (CRC32C différent): " + partitionName);
+        return 1;
+    }
+}
@@ -0,0 +1,61 @@
+import java.io.*;
+import java.net.*;
+
+// Connexion du serveur principal vers un serveur secondaire en protocole binaire.
+// Les commandes se suivent sur la même connexion; voir SecondaryConnectionPool.
+public class SecondaryConnection implements Closeable {
+    private final SecondaryServerInfo server;
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    public SecondaryConnection(SecondaryServerInfo server, int timeoutMs) throws IOException {
+        this.server = server;
+        this.socket = new Socket();
+        try {
+            // Sans délai de connexion, un serveur secondaire disparu du réseau bloquerait l'appelant
+            socket.connect(new InetSocketAddress(server.getIp(), server.getPort()), timeoutMs);
+            socket.setSoTimeout(timeoutMs);
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            Protocol.clientHandshake(socket, in, out);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    public SecondaryServerInfo getServer() { return server; }
+    public DataInputStream getIn() { return in; }
+    public DataOutputStream getOut() { return out; }
+    public long getLastUsed() { return lastUsed; }
+
+    public void setTimeout(int timeoutMs) throws SocketException {
+        socket.setSoTimeout(timeoutMs);
+    }
+
+    public void touch() {
+        lastUsed = System.currentTimeMillis();
+    }
+
+    public boolean isClosed() {
+        return socket.isClosed();
+    }
+
+    // Aller-retour PING: échoue si le serveur secondaire a fermé la connexion ou ne répond plus.
+    // Ne compte pas comme une utilisation: une connexion seulement vérifiée finit par expirer.
+    public void ping(int timeoutMs) throws IOException {
+        setTimeout(timeoutMs);
+        Protocol.writeFrame(out, Protocol.PING, null);
+        out.flush();
+        Protocol.readResponse(in);
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
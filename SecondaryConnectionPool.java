@@ -0,0 +1,176 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+// Connexions persistantes du serveur principal vers chaque serveur secondaire.
+//
+// Une connexion sert une commande à la fois (les commandes se suivent sur la même socket);
+// plusieurs envois simultanés vers le même serveur utilisent plusieurs connexions. Après usage,
+// une connexion revient au pool, jusqu'à maxIdle connexions inactives par serveur.
+//
+// Une connexion inactive depuis plus de VALIDATE_AFTER_IDLE_MS est vérifiée par un PING avant
+// d'être réutilisée; une connexion en erreur est fermée et la suivante est ouverte à nouveau.
+// En arrière-plan, les connexions inactives sont vérifiées régulièrement et fermées au-delà
+// de idleTimeoutMs.
+//
+// Configuration (propriétés système):
+//   backup.secondary.pool.maxIdle      connexions inactives gardées par serveur (défaut: 8)
+//   backup.secondary.pool.idleTimeout  durée maximale d'inactivité en ms (défaut: 60000)
+public class SecondaryConnectionPool {
+    private static final long VALIDATE_AFTER_IDLE_MS = 2000;
+    private static final int PING_TIMEOUT_MS = 2000;
+    private static final long HEALTH_CHECK_INTERVAL_MS = 10000;
+
+    public interface Exchange<T> {
+        T run(SecondaryConnection connection) throws IOException;
+    }
+
+    private final int maxIdle;
+    private final long idleTimeoutMs;
+    private final Consumer<String> log;
+    private final Map<String, Deque<SecondaryConnection>> idle = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService healthChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "verification-connexions");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+
+    public SecondaryConnectionPool(Consumer<String> log) {
+        this(Integer.getInteger("backup.secondary.pool.maxIdle", 8),
+             Long.getLong("backup.secondary.pool.idleTimeout", 60000),
+             log);
+    }
+
+    public SecondaryConnectionPool(int maxIdle, long idleTimeoutMs, Consumer<String> log) {
+        this.maxIdle = maxIdle;
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.log = log;
+        healthChecker.scheduleWithFixedDelay(this::checkIdleConnections,
+                HEALTH_CHECK_INTERVAL_MS, HEALTH_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // Exécute un échange sur une connexion du pool. Si l'échange échoue, la connexion est fermée
+    // (son état est inconnu); sinon elle est rendue au pool.
+    public <T> T execute(SecondaryServerInfo server, int timeoutMs, Exchange<T> exchange) throws IOException {
+        SecondaryConnection connection = acquire(server, timeoutMs);
+        boolean completed = false;
+        try {
+            T result = exchange.run(connection);
+            completed = true;
+            return result;
+        } finally {
+            if (completed) {
+                release(connection);
+            } else {
+                discard(connection);
+            }
+        }
+    }
+
+    public SecondaryConnection acquire(SecondaryServerInfo server, int timeoutMs) throws IOException {
+        Deque<SecondaryConnection> connections = idle.get(key(server));
+        SecondaryConnection connection;
+        while (connections != null && (connection = connections.pollFirst()) != null) {
+            if (isUsable(connection)) {
+                connection.setTimeout(timeoutMs);
+                reused.incrementAndGet();
+                return connection;
+            }
+            discard(connection);
+        }
+        connection = new SecondaryConnection(server, timeoutMs);
+        opened.incrementAndGet();
+        return connection;
+    }
+
+    public void release(SecondaryConnection connection) {
+        connection.touch();
+        Deque<SecondaryConnection> connections = idle.computeIfAbsent(key(connection.getServer()), k -> new ConcurrentLinkedDeque<>());
+        if (connection.isClosed() || connections.size() >= maxIdle) {
+            discard(connection);
+            return;
+        }
+        // La plus récente est réutilisée en premier: les plus anciennes finissent par expirer
+        connections.offerFirst(connection);
+    }
+
+    public void discard(SecondaryConnection connection) {
+        discarded.incrementAndGet();
+        try {
+            connection.close();
+        } catch (IOException ignored) {
+            // Déjà fermée
+        }
+    }
+
+    // Ferme toutes les connexions inactives vers un serveur (par exemple quand il n'est plus joignable)
+    public void evict(SecondaryServerInfo server) {
+        Deque<SecondaryConnection> connections = idle.remove(key(server));
+        if (connections != null) {
+            SecondaryConnection connection;
+            while ((connection = connections.pollFirst()) != null) {
+                discard(connection);
+            }
+        }
+    }
+
+    private boolean isUsable(SecondaryConnection connection) {
+        if (connection.isClosed()) {
+            return false;
+        }
+        if (System.currentTimeMillis() - connection.getLastUsed() < VALIDATE_AFTER_IDLE_MS) {
+            return true;
+        }
+        try {
+            connection.ping(PING_TIMEOUT_MS);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void checkIdleConnections() {
+        long now = System.currentTimeMillis();
+        for (Deque<SecondaryConnection> connections : idle.values()) {
+            for (SecondaryConnection connection : new ArrayList<>(connections)) {
+                // Une connexion empruntée entre-temps n'est plus dans la file: on la laisse
+                if (!connections.remove(connection)) {
+                    continue;
+                }
+                if (now - connection.getLastUsed() > idleTimeoutMs) {
+                    discard(connection);
+                    continue;
+                }
+                try {
+                    connection.ping(PING_TIMEOUT_MS);
+                    connections.offerLast(connection);
+                } catch (IOException e) {
+                    log.accept("Connexion au serveur secondaire " + connection.getServer().getId() + " perdue: " + e.getMessage());
+                    discard(connection);
+                }
+            }
+        }
+    }
+
+    private static String key(SecondaryServerInfo server) {
+        return server.getIp() + ":" + server.getPort();
+    }
+
+    public String metrics() {
+        int idleCount = 0;
+        for (Deque<SecondaryConnection> connections : idle.values()) {
+            idleCount += connections.size();
+        }
+        return "connexions secondaires - inactives: " + idleCount
+                + ", ouvertes: " + opened.get()
+                + ", réutilisées: " + reused.get()
+                + ", fermées: " + discarded.get();
+    }
+}
@@ -1,9 +1,23 @@
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import javax.swing.*;
 import java.awt.*;
 import java.io.*;
 import java.net.*;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
 
 public class SecondaryServer extends JFrame {
     private int port;
@@ -11,17 +25,39 @@ public class SecondaryServer extends JFrame {
     private String mainServerIp;
     private int mainServerPort;
     private ServerSocket serverSocket;
+    private NioServer nioServer;
+    private WorkerPool connectionPool;
+    // Partitions en cours de réception ou d'envoi, rapportées par HEARTBEAT
+    private final AtomicInteger transfers = new AtomicInteger();
+    // Petites partitions (voir SegmentStore); null si les segments n'ont pas pu être chargés
+    private SegmentStore segments;
+    private Scrubber scrubber;
     private JTextArea logArea;
 
+    private static final int MAX_REPORTED_CORRUPTIONS = 1000;
+    // Sans heartbeat du serveur principal pendant ce délai (backup.secondary.reregisterAfter, en ms),
+    // le serveur s'enregistre à nouveau: le serveur principal ne garde pas la liste des serveurs
+    // secondaires d'un démarrage à l'autre
+    private static final long REREGISTER_AFTER_MS = Long.getLong("backup.secondary.reregisterAfter", 10000);
+    // Dernier enregistrement ou heartbeat reçu; watchRegistration ne fait rien tant que le serveur
+    // principal n'envoie pas de heartbeats (ancien protocole)
+    private volatile long lastContact;
+    private volatile boolean heartbeatsExpected;
+
     public SecondaryServer(int port, String storagePath, String mainServerIp, int mainServerPort) {
         this.port = port;
         this.storagePath = storagePath;
         this.mainServerIp = mainServerIp;
         this.mainServerPort = mainServerPort;
+        this.connectionPool = new WorkerPool("partitions-" + port);
         
         setupGUI();
         createStorageDirectory();
+        openSegments();
+        scrubber = new Scrubber(new File(storagePath), segments, this::log);
+        scrubber.start();
         registerWithMainServer();
+        watchRegistration();
         startServer();
     }
 
@@ -52,7 +88,71 @@ public class SecondaryServer extends JFrame {
         }
     }
 
+    private void openSegments() {
+        SegmentStore store = new SegmentStore(Paths.get(storagePath, "segments"), this::log);
+        try {
+            store.open();
+            segments = store;
+        } catch (IOException e) {
+            log("Erreur de chargement des segments, toutes les partitions seront des fichiers: " + e.getMessage());
+        }
+    }
+
     private void registerWithMainServer() {
+        // Un échec est retenté après REREGISTER_AFTER_MS, comme un serveur principal redémarré
+        lastContact = System.currentTimeMillis();
+        try (Socket socket = new Socket(mainServerIp, mainServerPort)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            heartbeatsExpected = Protocol.clientHandshake(socket, in, out) >= Protocol.VERSION_HEARTBEAT;
+
+            String ip = InetAddress.getLocalHost().getHostAddress();
+            Protocol.writeFrame(out, Protocol.REGISTER, header -> {
+                header.writeUTF(ip);
+                header.writeInt(port);
+                header.writeUTF(storagePath);
+                header.writeLong(capacity());
+            });
+            out.flush();
+            int id = Protocol.readResponse(in).header.readInt();
+            log("Enregistré auprès du serveur principal (ID=" + id + ")");
+
+        } catch (ProtocolException e) {
+            // Serveur principal sans protocole binaire: ancien enregistrement
+            heartbeatsExpected = false;
+            registerWithMainServerLegacy();
+        } catch (IOException e) {
+            // Serveur principal pas encore démarré: nouvel essai plus tard
+            heartbeatsExpected = true;
+            log("Erreur d'enregistrement: " + e.getMessage());
+        }
+    }
+
+    // Nouvel enregistrement quand le serveur principal a cessé d'envoyer des heartbeats (redémarré,
+    // ou injoignable au premier enregistrement): sans lui, ses partitions seraient introuvables
+    private void watchRegistration() {
+        ScheduledExecutorService watcher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "enregistrement");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, REREGISTER_AFTER_MS / 2);
+        watcher.scheduleWithFixedDelay(() -> {
+            long silence = System.currentTimeMillis() - lastContact;
+            if (heartbeatsExpected && silence > REREGISTER_AFTER_MS) {
+                log("Aucun heartbeat du serveur principal depuis " + silence + " ms: nouvel enregistrement");
+                registerWithMainServer();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    // Espace annoncé au serveur principal (backup.secondary.capacity, en octets): par défaut la
+    // taille du disque qui contient le répertoire de stockage
+    private long capacity() {
+        return Long.getLong("backup.secondary.capacity", new File(storagePath).getTotalSpace());
+    }
+
+    private void registerWithMainServerLegacy() {
         try (Socket socket = new Socket(mainServerIp, mainServerPort);
              ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream())) {
             
@@ -62,6 +162,7 @@ public class SecondaryServer extends JFrame {
             info.setIp(InetAddress.getLocalHost().getHostAddress());
             info.setPort(port);
             info.setStoragePath(storagePath);
+            info.setCapacity(capacity());
             
             out.writeObject(info);
             log("Enregistré auprès du serveur principal");
@@ -72,6 +173,10 @@ public class SecondaryServer extends JFrame {
     }
 
     private void startServer() {
+        if (Boolean.getBoolean("backup.server.nio")) {
+            startNioServer();
+            return;
+        }
         Thread serverThread = new Thread(() -> {
             try {
                 serverSocket = new ServerSocket(port);
@@ -79,7 +184,10 @@ public class SecondaryServer extends JFrame {
 
                 while (true) {
                     Socket clientSocket = serverSocket.accept();
-                    handleConnection(clientSocket);
+                    if (!connectionPool.submit(() -> handleConnection(clientSocket))) {
+                        log("Connexion refusée: " + connectionPool.metrics());
+                        clientSocket.close();
+                    }
                 }
             } catch (IOException e) {
                 log("Erreur serveur: " + e.getMessage());
@@ -89,21 +197,282 @@ public class SecondaryServer extends JFrame {
         serverThread.start();
     }
 
+    private void startNioServer() {
+        nioServer = new NioServer(port, new NioServer.Handler() {
+            @Override
+            public void handleLegacy(Socket socket, InputStream in) throws Exception {
+                handleLegacyConnection(in);
+            }
+
+            @Override
+            public boolean handleFrame(Socket socket, Protocol.Frame frame, DataInputStream in, DataOutputStream out, int version) throws IOException {
+                return SecondaryServer.this.handleFrame(socket, frame, in, out);
+            }
+        }, connectionPool, this::log);
+        try {
+            nioServer.start();
+            log("Serveur secondaire démarré sur le port " + port + " (NIO)");
+        } catch (IOException e) {
+            log("Erreur serveur: " + e.getMessage());
+        }
+    }
+
     private void handleConnection(Socket socket) {
-        try (ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
+        try (socket) {
+            BufferedInputStream rawIn = new BufferedInputStream(socket.getInputStream());
+            if (Protocol.isSerializationStream(rawIn)) {
+                handleLegacyConnection(rawIn);
+            } else {
+                handleBinaryConnection(socket, rawIn);
+            }
+        } catch (Exception e) {
+            log("Erreur de traitement: " + e.getMessage());
+        }
+    }
+
+    private void handleBinaryConnection(Socket socket, InputStream rawIn) throws IOException {
+        DataInputStream in = new DataInputStream(rawIn);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        Protocol.serverHandshake(in, out);
+
+        Protocol.Frame frame;
+        while ((frame = Protocol.readFrame(in)) != null) {
+            if (!handleFrame(socket, frame, in, out)) {
+                return;
+            }
+        }
+    }
+
+    // Traite une commande du protocole binaire; retourne false si la connexion doit être fermée
+    private boolean handleFrame(Socket socket, Protocol.Frame frame, DataInputStream in, DataOutputStream out) throws IOException {
+        switch (frame.opcode) {
+            case Protocol.PING -> {
+                lastContact = System.currentTimeMillis();
+                Protocol.writeOk(out, null);
+            }
+            case Protocol.HEARTBEAT -> {
+                lastContact = System.currentTimeMillis();
+                Protocol.writeOk(out, header -> {
+                    header.writeLong(new File(storagePath).getUsableSpace());
+                    header.writeInt(connectionPool.getQueueDepth() + transfers.get());
+                    // Au plus MAX_REPORTED_CORRUPTIONS: l'entête reste petit même si tout un disque est perdu
+                    List<String> corrupted = scrubber.corrupted();
+                    List<String> reported = corrupted.subList(0, Math.min(corrupted.size(), MAX_REPORTED_CORRUPTIONS));
+                    header.writeInt(reported.size());
+                    for (String partitionName : reported) {
+                        header.writeUTF(partitionName);
+                    }
+                });
+            }
+            case Protocol.STORE_PARTITION -> {
+                transfers.incrementAndGet();
+                try {
+                    storePartition(frame, in, out);
+                } finally {
+                    transfers.decrementAndGet();
+                }
+            }
+            case Protocol.RETRIEVE_PARTITION -> {
+                transfers.incrementAndGet();
+                try {
+                    retrievePartition(socket, frame, out);
+                } finally {
+                    transfers.decrementAndGet();
+                }
+            }
+            case Protocol.DELETE_PARTITION -> deletePartition(frame, out);
+            default -> {
+                Protocol.writeError(out, "Commande inconnue: " + frame.opcode);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void storePartition(Protocol.Frame frame, DataInputStream in, DataOutputStream out) throws IOException {
+        String partitionName = frame.header.readUTF();
+        boolean verified = frame.header.available() > 0 && frame.header.readBoolean();
+        File partitionFile = partitionFile(partitionName);
+        // Le CRC32C est calculé pendant la réception: Scrubber le vérifiera plus tard
+        CRC32C crc = new CRC32C();
+        InputStream data = new CheckedInputStream(new ChunkedInputStream(in), crc);
+
+        long size;
+        // Une petite partition va dans un segment; au-delà, elle arrive en blocs et est écrite
+        // directement dans son propre fichier
+        byte[] start = segments == null ? new byte[0] : data.readNBytes(SegmentStore.MAX_PARTITION_SIZE + 1);
+        if (segments != null && SegmentStore.accepts(start.length)) {
+            if (!checksumMatches(verified, in, crc)) {
+                rejectCorrupted(partitionName, out);
+                return;
+            }
+            segments.put(partitionName, start, start.length, (int) crc.getValue());
+            removeFile(partitionFile);
+            size = start.length;
+        } else {
+            // Reçue à côté puis mise à sa place: une copie corrompue ou interrompue ne remplace pas
+            // la version déjà stockée
+            Path temporary = partitionFile.toPath().resolveSibling(partitionName + ".tmp");
+            try {
+                size = Files.copy(new SequenceInputStream(new ByteArrayInputStream(start), data), temporary,
+                        StandardCopyOption.REPLACE_EXISTING);
+                if (!checksumMatches(verified, in, crc)) {
+                    rejectCorrupted(partitionName, out);
+                    return;
+                }
+                Scrubber.writeChecksum(partitionFile, (int) crc.getValue());
+                Files.move(temporary, partitionFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+            removeFromSegments(partitionName);
+        }
+        scrubber.forget(partitionName);
+        Protocol.writeOk(out, null);
+
+        log("Partition reçue: " + partitionName + " (" + size + " octets)");
+    }
+
+    // Partition vérifiée: le CRC32C envoyé après les données doit être celui des données reçues
+    private static boolean checksumMatches(boolean verified, DataInputStream in, CRC32C crc) throws IOException {
+        return !verified || in.readInt() == (int) crc.getValue();
+    }
+
+    private void rejectCorrupted(String partitionName, DataOutputStream out) throws IOException {
+        log("Partition reçue corrompue (CRC32C différent), refusée: " + partitionName);
+        Protocol.writeError(out, "Partition reçue corrompue (CRC32C différent): " + partitionName);
+    }
+
+    // Une partition réécrite dans son propre fichier ne doit pas garder son ancienne version dans un segment
+    private void removeFromSegments(String partitionName) throws IOException {
+        if (segments != null) {
+            segments.delete(partitionName);
+        }
+    }
+
+    // Le fichier d'une partition et son CRC32C; retourne false s'il n'existait pas
+    private static boolean removeFile(File partitionFile) throws IOException {
+        Files.deleteIfExists(Scrubber.checksumFile(partitionFile).toPath());
+        return Files.deleteIfExists(partitionFile.toPath());
+    }
+
+    // Envoie tout ou partie d'une partition: l'entête annonce la longueur, le contenu brut suit
+    private void retrievePartition(Socket socket, Protocol.Frame frame, DataOutputStream out) throws IOException {
+        String partitionName = frame.header.readUTF();
+        long offset = frame.header.readLong();
+        long length = frame.header.readLong();
+
+        File partitionFile = partitionFile(partitionName);
+        if (scrubber.isCorrupted(partitionName)) {
+            Protocol.writeError(out, "Partition corrompue: " + partitionName);
+            return;
+        }
+        ByteBuffer stored = segments == null ? null : segments.get(partitionName);
+        if (stored != null) {
+            sendFromSegment(socket, stored, offset, length, out);
+            return;
+        }
+        if (!partitionFile.isFile()) {
+            Protocol.writeError(out, "Partition non trouvée: " + partitionName);
+            return;
+        }
+        try (FileChannel partition = FileChannel.open(partitionFile.toPath(), StandardOpenOption.READ)) {
+            long size = partition.size();
+            if (offset < 0 || offset > size) {
+                Protocol.writeError(out, "Position invalide: " + offset + " (taille " + size + ")");
+                return;
+            }
+            long count = length < 0 ? size - offset : Math.min(length, size - offset);
+            Protocol.writeOk(out, header -> header.writeLong(count));
+
+            // transferTo évite la copie en mémoire utilisateur quand la socket a un canal NIO
+            WritableByteChannel target = socket.getChannel() != null
+                    ? socket.getChannel()
+                    : Channels.newChannel(socket.getOutputStream());
+            long position = offset;
+            long end = offset + count;
+            while (position < end) {
+                long n = partition.transferTo(position, end - position, target);
+                if (n <= 0 && position >= partition.size()) {
+                    throw new IOException("Partition tronquée pendant l'envoi: " + partitionName);
+                }
+                position += n;
+            }
+        }
+    }
+
+    // Partition stockée dans un segment: envoyée depuis la projection en mémoire du segment
+    private void sendFromSegment(Socket socket, ByteBuffer stored, long offset, long length, DataOutputStream out) throws IOException {
+        int size = stored.remaining();
+        if (offset < 0 || offset > size) {
+            Protocol.writeError(out, "Position invalide: " + offset + " (taille " + size + ")");
+            return;
+        }
+        int count = (int) (length < 0 ? size - offset : Math.min(length, size - offset));
+        Protocol.writeOk(out, header -> header.writeLong(count));
+
+        WritableByteChannel target = socket.getChannel() != null
+                ? socket.getChannel()
+                : Channels.newChannel(socket.getOutputStream());
+        ByteBuffer range = stored.slice((int) offset, count);
+        while (range.hasRemaining()) {
+            target.write(range);
+        }
+    }
+
+    private void deletePartition(Protocol.Frame frame, DataOutputStream out) throws IOException {
+        String partitionName = frame.header.readUTF();
+        File partitionFile = partitionFile(partitionName);
+        boolean deleted = (segments != null && segments.delete(partitionName)) | removeFile(partitionFile);
+        scrubber.forget(partitionName);
+        Protocol.writeOk(out, header -> header.writeBoolean(deleted));
+        if (deleted) {
+            log("Partition supprimée: " + partitionName);
+        }
+    }
+
+    // Les partitions restent dans le répertoire de stockage
+    private File partitionFile(String partitionName) throws IOException {
+        if (partitionName.isEmpty() || partitionName.contains("/") || partitionName.contains("\\") || partitionName.equals("..")
+                || Scrubber.isChecksumFile(partitionName)) {
+            throw new IOException("Nom de partition invalide: " + partitionName);
+        }
+        return new File(storagePath, partitionName);
+    }
+
+    private void handleLegacyConnection(InputStream rawIn) throws IOException, ClassNotFoundException {
+        // Les serveurs principaux de l'ancien protocole lisent ces partitions directement sur disque:
+        // elles restent des fichiers
+        try (ObjectInputStream in = new ObjectInputStream(rawIn)) {
             String action = (String) in.readObject();
             
             if (action.equals("STORE_PARTITION")) {
                 String partitionName = (String) in.readObject();
                 byte[] partitionData = (byte[]) in.readObject();
                 
-                File partitionFile = new File(storagePath, partitionName);
+                File partitionFile = partitionFile(partitionName);
                 Files.write(partitionFile.toPath(), partitionData);
+                CRC32C crc = new CRC32C();
+                crc.update(partitionData);
+                Scrubber.writeChecksum(partitionFile, (int) crc.getValue());
+                removeFromSegments(partitionName);
+                scrubber.forget(partitionName);
                 
                 log("Partition reçue: " + partitionName);
+            } else if (action.equals("STORE_PARTITION_STREAM")) {
+                String partitionName = (String) in.readObject();
+
+                // La partition arrive en blocs et est écrite directement sur disque
+                File partitionFile = partitionFile(partitionName);
+                CRC32C crc = new CRC32C();
+                long size = Files.copy(new CheckedInputStream(new ChunkedInputStream(in), crc), partitionFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                Scrubber.writeChecksum(partitionFile, (int) crc.getValue());
+                removeFromSegments(partitionName);
+                scrubber.forget(partitionName);
+
+                log("Partition reçue: " + partitionName + " (" + size + " octets)");
             }
-        } catch (Exception e) {
-            log("Erreur de traitement: " + e.getMessage());
         }
     }
 
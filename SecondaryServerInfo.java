@@ -1,10 +1,18 @@
 import java.io.*;
 
 public class SecondaryServerInfo implements java.io.Serializable {
+    // Valeur de la version d'origine: les anciens serveurs secondaires s'enregistrent encore par sérialisation
+    private static final long serialVersionUID = -8764786267996572324L;
+
     private int id;
     private String ip;
     private String storagePath;
     private int port;
+    // Version du protocole binaire négociée à l'enregistrement (0 = ancien protocole)
+    private int protocolVersion;
+    // Espace de stockage annoncé à l'enregistrement, en octets (0 = inconnu): poids du serveur
+    // dans la répartition des partitions (voir Placement)
+    private long capacity;
 
     // Getters et Setters
     public int getId() { return id; }
@@ -18,4 +26,10 @@ public class SecondaryServerInfo implements java.io.Serializable {
     
     public int getPort() { return port; }
     public void setPort(int port) { this.port = port; }
+
+    public int getProtocolVersion() { return protocolVersion; }
+    public void setProtocolVersion(int protocolVersion) { this.protocolVersion = protocolVersion; }
+
+    public long getCapacity() { return capacity; }
+    public void setCapacity(long capacity) { this.capacity = capacity; }
 }
\ No newline at end of file
@@ -0,0 +1,527 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+// Stockage des petites partitions d'un serveur secondaire dans de grands fichiers (segments), au
+// lieu d'un fichier par partition: des millions de blocs dédupliqués de quelques Ko ne deviennent
+// pas des millions de fichiers.
+//
+// Les partitions sont ajoutées à la suite dans le segment courant (SEGMENT_SIZE octets réservés à
+// sa création) et un index en mémoire donne la position de chacune. Les lectures passent par une
+// projection en mémoire (mmap) de chaque segment: ni appel système ni copie par lecture. Les
+// écritures passent par FileChannel.write, qui signale un disque plein par une IOException là où
+// une écriture dans la projection arrêterait la JVM (SIGBUS).
+//
+// Enregistrement, aligné sur ALIGNMENT octets:
+//   [MAGIC: int][type: octet][longueur du nom: short][nom UTF-8][longueur des données: int]
+//   [CRC32C des données: int][CRC32C de l'entête: int][données]
+// Une suppression ajoute un enregistrement DELETE sans données. Au démarrage, l'index est reconstruit
+// en relisant les entêtes, segment par segment: le dernier enregistrement d'un nom l'emporte. Les
+// données sont écrites et forcées sur disque avant leur entête, lui-même forcé avant que put ne
+// rende la main (le serveur secondaire ne confirme la partition qu'ensuite). Les forces des écritures
+// simultanées d'un segment sont regroupées (voir sync). Un entête absent ou invalide (arrêt pendant
+// une écriture) est sauté en cherchant l'entête valide suivant. Le CRC32C des données est celui
+// calculé pendant la réception; les lectures ne le recalculent pas (le serveur principal vérifie les
+// données qu'il reçoit), Scrubber le vérifie en arrière-plan.
+//
+// Un segment plein dont moins de COMPACTION_RATIO de la taille est encore utilisée est compacté en
+// arrière-plan: ses partitions encore utilisées sont recopiées dans le segment courant, à au plus
+// COMPACTION_BANDWIDTH octets par seconde, puis forcées sur disque avant que son fichier soit
+// supprimé. Les copies ne sont pas forcées une à une: au démarrage, un enregistrement qui en remplace
+// un autre n'est retenu que si ses données correspondent à leur CRC32C.
+//
+// Configuration (propriétés système):
+//   backup.segment.size                taille d'un segment en octets (défaut: 64 Mio)
+//   backup.segment.maxPartition        plus grande partition stockée dans un segment (défaut: 1 Mio),
+//                                      les plus grandes restent des fichiers séparés
+//   backup.segment.compactionRatio     part utilisée en dessous de laquelle un segment est compacté (défaut: 0.5)
+//   backup.segment.compactionBandwidth débit maximal de la compaction en octets/s (défaut: 20 Mio/s, 0 = sans limite)
+public class SegmentStore {
+    private static final int SEGMENT_SIZE = (int) Math.min(Integer.MAX_VALUE,
+            Long.getLong("backup.segment.size", 64L * 1024 * 1024));
+    public static final int MAX_PARTITION_SIZE = (int) Math.min(SEGMENT_SIZE / 2,
+            Long.getLong("backup.segment.maxPartition", 1024 * 1024));
+    private static final double COMPACTION_RATIO = Double.parseDouble(System.getProperty("backup.segment.compactionRatio", "0.5"));
+    private static final long COMPACTION_BANDWIDTH = Long.getLong("backup.segment.compactionBandwidth", 20L * 1024 * 1024);
+
+    private static final int MAGIC = 0x5345474D; // "SEGM"
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    // Entête sans le nom
+    private static final int HEADER_SIZE = 4 + 1 + 2 + 4 + 4 + 4;
+    private static final int ALIGNMENT = 8;
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".dat";
+
+    private static final class Segment {
+        private final int id;
+        private final Path path;
+        private final FileChannel channel;
+        private final MappedByteBuffer mapping;
+        // Fin des enregistrements écrits ou réservés
+        private int end;
+        // Octets des enregistrements encore dans l'index
+        private long live;
+        private boolean compacting;
+        // Écritures terminées, et celles déjà forcées sur disque (voir sync)
+        private final AtomicLong written = new AtomicLong();
+        private final Object forceLock = new Object();
+        private long forced;
+
+        Segment(int id, Path path, FileChannel channel, MappedByteBuffer mapping) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.mapping = mapping;
+        }
+    }
+
+    // Enregistrement d'une partition dans un segment
+    private static final class Location {
+        private final Segment segment;
+        private final int position;
+        private final int size;
+        private final int dataOffset;
+        private final int length;
+        private final int crc;
+
+        Location(Segment segment, int position, int size, int dataOffset, int length, int crc) {
+            this.segment = segment;
+            this.position = position;
+            this.size = size;
+            this.dataOffset = dataOffset;
+            this.length = length;
+            this.crc = crc;
+        }
+    }
+
+    // Entête relu dans un segment
+    private static final class Header {
+        private final byte type;
+        private final String name;
+        private final int headerLength;
+        private final int length;
+        private final int crc;
+
+        Header(byte type, String name, int headerLength, int length, int crc) {
+            this.type = type;
+            this.name = name;
+            this.headerLength = headerLength;
+            this.length = length;
+            this.crc = crc;
+        }
+
+        int size() {
+            return align(headerLength + length);
+        }
+    }
+
+    // Passé à append pour recopier une suppression pendant la compaction
+    private static final Location NO_LOCATION = new Location(null, 0, 0, 0, 0, 0);
+
+    // Écritures en cours pour un nom: la compaction ne déplace pas ses enregistrements, et seule
+    // la dernière réservée modifie l'index
+    private static final class Pending {
+        private int count;
+        private Location latest;
+    }
+
+    private final Path directory;
+    private final Consumer<String> log;
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final Map<String, Location> index = new HashMap<>();
+    private final Map<String, Pending> pending = new HashMap<>();
+    private final Throttle throttle = new Throttle(COMPACTION_BANDWIDTH);
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "compaction-segments");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Segment active;
+    private int nextId = 1;
+
+    public SegmentStore(Path directory, Consumer<String> log) {
+        this.directory = directory;
+        this.log = log;
+    }
+
+    // Relit les segments existants et reconstruit l'index. Les écritures iront dans un nouveau segment.
+    public synchronized void open() throws IOException {
+        Files.createDirectories(directory);
+        TreeMap<Integer, Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                files.put(Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length())), path);
+            }
+        }
+        long skipped = 0;
+        for (Map.Entry<Integer, Path> file : files.entrySet()) {
+            FileChannel channel = FileChannel.open(file.getValue(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Segment segment = new Segment(file.getKey(), file.getValue(), channel,
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), Integer.MAX_VALUE)));
+            segments.put(segment.id, segment);
+            skipped += load(segment);
+            nextId = segment.id + 1;
+        }
+        for (Segment segment : segments.values()) {
+            checkCompaction(segment);
+        }
+        if (!segments.isEmpty()) {
+            log.accept("Segments chargés: " + describe() + (skipped > 0 ? ", " + skipped + " octets illisibles ignorés" : ""));
+        }
+    }
+
+    // Les enregistrements du segment, dans l'ordre; retourne le nombre d'octets sautés entre deux
+    // enregistrements valides
+    private long load(Segment segment) {
+        int capacity = segment.mapping.capacity();
+        int position = 0;
+        int lastValid = 0;
+        long skipped = 0;
+        while (position + HEADER_SIZE <= capacity) {
+            Header header = readHeader(segment, position);
+            if (header == null) {
+                position += ALIGNMENT;
+                continue;
+            }
+            skipped += position - lastValid;
+            Location location = new Location(segment, position, header.size(), header.headerLength, header.length, header.crc);
+            // Copie de compaction ou nouvelle version pas encore forcée au moment d'un arrêt: l'ancienne
+            // version reste si les données de la nouvelle ne sont pas arrivées sur disque
+            if (header.type == PUT && index.containsKey(header.name)
+                    && checksum(segment.mapping.slice(position + header.headerLength, header.length)) != header.crc) {
+                position += header.size();
+                skipped += header.size();
+                lastValid = position;
+                continue;
+            }
+            Location previous = header.type == PUT ? index.put(header.name, location) : index.remove(header.name);
+            if (header.type == PUT) {
+                segment.live += location.size;
+            }
+            if (previous != null) {
+                previous.segment.live -= previous.size;
+            }
+            position += header.size();
+            lastValid = position;
+        }
+        segment.end = lastValid;
+        return skipped;
+    }
+
+    private static Header readHeader(Segment segment, int position) {
+        ByteBuffer mapping = segment.mapping;
+        int capacity = mapping.capacity();
+        if (mapping.getInt(position) != MAGIC) {
+            return null;
+        }
+        byte type = mapping.get(position + 4);
+        int nameLength = mapping.getShort(position + 5) & 0xFFFF;
+        int headerLength = HEADER_SIZE + nameLength;
+        if ((type != PUT && type != DELETE) || (long) position + headerLength > capacity) {
+            return null;
+        }
+        int length = mapping.getInt(position + 7 + nameLength);
+        int crc = mapping.getInt(position + 11 + nameLength);
+        if (mapping.getInt(position + 15 + nameLength) != checksum(mapping.slice(position, 15 + nameLength))
+                || length < 0 || (long) position + headerLength + length > capacity) {
+            return null;
+        }
+        byte[] name = new byte[nameLength];
+        mapping.get(position + 7, name);
+        return new Header(type, new String(name, StandardCharsets.UTF_8), headerLength, length, crc);
+    }
+
+    // Vrai si une partition de cette taille va dans un segment plutôt que dans son propre fichier
+    public static boolean accepts(long length) {
+        return length <= MAX_PARTITION_SIZE;
+    }
+
+    public synchronized boolean contains(String name) {
+        return index.containsKey(name);
+    }
+
+    public synchronized List<String> names() {
+        return new ArrayList<>(index.keySet());
+    }
+
+    // crc: CRC32C des length premiers octets de data
+    public void put(String name, byte[] data, int length, int crc) throws IOException {
+        if (!accepts(length)) {
+            throw new IOException("Partition trop grande pour un segment: " + length + " octets");
+        }
+        append(name, PUT, ByteBuffer.wrap(data, 0, length), crc, null);
+    }
+
+    // Retourne false si la partition n'était pas dans un segment
+    public boolean delete(String name) throws IOException {
+        synchronized (this) {
+            if (!index.containsKey(name)) {
+                return false;
+            }
+        }
+        append(name, DELETE, ByteBuffer.allocate(0), 0, null);
+        return true;
+    }
+
+    // Contenu de la partition (vue en lecture seule de la projection du segment), ou null si elle
+    // n'est pas dans un segment
+    public ByteBuffer get(String name) {
+        Location location;
+        synchronized (this) {
+            location = index.get(name);
+        }
+        if (location == null) {
+            return null;
+        }
+        return location.segment.mapping.slice(location.position + location.dataOffset, location.length);
+    }
+
+    // Relit la partition et compare son contenu à son CRC32C, au débit de throttle. Retourne false si
+    // elle est corrompue, true si elle est intacte ou n'est plus dans un segment.
+    public boolean verify(String name, Throttle throttle) throws IOException {
+        Location location;
+        synchronized (this) {
+            location = index.get(name);
+        }
+        if (location == null) {
+            return true;
+        }
+        throttle.acquire(location.length);
+        return checksum(location.segment.mapping.slice(location.position + location.dataOffset, location.length)) == location.crc;
+    }
+
+    // Ajoute un enregistrement puis met à jour l'index. Pour la compaction (moved != null), seulement
+    // si rien n'a changé depuis: le nom est toujours à moved (PUT) ou toujours supprimé (DELETE); la
+    // copie n'est alors pas forcée sur disque (voir compact). Retourne le segment écrit, ou null si
+    // l'enregistrement n'a pas été ajouté.
+    private Segment append(String name, byte type, ByteBuffer data, int crc, Location moved) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > 0xFFFF) {
+            throw new IOException("Nom de partition trop long: " + name);
+        }
+        int headerLength = HEADER_SIZE + nameBytes.length;
+        int length = data.remaining();
+        int size = align(headerLength + length);
+        if (size > SEGMENT_SIZE) {
+            throw new IOException("Partition trop grande pour un segment: " + length + " octets");
+        }
+
+        Location location;
+        synchronized (this) {
+            if (moved != null && (pending.containsKey(name)
+                    || (type == PUT ? index.get(name) != moved : index.containsKey(name)))) {
+                return null;
+            }
+            Segment segment = reserve(size);
+            location = new Location(segment, segment.end - size, size, headerLength, length, crc);
+            Pending writes = pending.computeIfAbsent(name, n -> new Pending());
+            writes.count++;
+            writes.latest = location;
+            // Une suppression est visible tout de suite; une écriture, une fois terminée
+            if (type == DELETE) {
+                release(index.remove(name));
+            }
+        }
+
+        boolean written = false;
+        try {
+            ByteBuffer header = ByteBuffer.allocate(headerLength);
+            header.putInt(MAGIC).put(type).putShort((short) nameBytes.length).put(nameBytes).putInt(length).putInt(crc);
+            header.putInt(checksum(header.duplicate().flip()));
+            header.flip();
+            // Les données d'abord, sur disque avant l'entête: un entête présent au démarrage a ses
+            // données derrière lui
+            write(location.segment, data, location.position + headerLength);
+            if (moved == null && length > 0) {
+                sync(location.segment);
+            }
+            write(location.segment, header, location.position);
+            if (moved == null) {
+                sync(location.segment);
+            }
+            written = true;
+        } finally {
+            synchronized (this) {
+                Pending writes = pending.get(name);
+                boolean latest = writes.latest == location;
+                if (--writes.count == 0) {
+                    pending.remove(name);
+                }
+                if (written && type == PUT && latest) {
+                    location.segment.live += size;
+                    release(index.put(name, location));
+                }
+            }
+        }
+        return location.segment;
+    }
+
+    // Force sur disque les écritures terminées du segment. Les écritures simultanées partagent un
+    // même appel: celle qui attend le verrou n'a rien à faire si un force commencé après elle a fini.
+    private static void sync(Segment segment) throws IOException {
+        long ticket = segment.written.incrementAndGet();
+        synchronized (segment.forceLock) {
+            if (segment.forced >= ticket) {
+                return;
+            }
+            long upTo = segment.written.get();
+            segment.channel.force(false);
+            segment.forced = upTo;
+        }
+    }
+
+    // Réserve size octets à la fin du segment courant, ou d'un nouveau segment s'il est plein.
+    // Appelé avec le verrou.
+    private Segment reserve(int size) throws IOException {
+        if (active == null || active.end + size > active.mapping.capacity()) {
+            Segment previous = active;
+            active = createSegment(nextId++);
+            if (previous != null) {
+                checkCompaction(previous);
+            }
+        }
+        active.end += size;
+        return active;
+    }
+
+    private Segment createSegment(int id) throws IOException {
+        Path path = directory.resolve(String.format("%s%08d%s", PREFIX, id, SUFFIX));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.setLength(SEGMENT_SIZE);
+        }
+        Segment segment = new Segment(id, path, channel, channel.map(FileChannel.MapMode.READ_ONLY, 0, SEGMENT_SIZE));
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private static void write(Segment segment, ByteBuffer data, long position) throws IOException {
+        while (data.hasRemaining()) {
+            position += segment.channel.write(data, position);
+        }
+    }
+
+    // Enregistrement sorti de l'index: compte comme place perdue dans son segment. Appelé avec le verrou.
+    private void release(Location location) {
+        if (location != null) {
+            location.segment.live -= location.size;
+            checkCompaction(location.segment);
+        }
+    }
+
+    // Appelé avec le verrou
+    private void checkCompaction(Segment segment) {
+        if (segment != active && !segment.compacting && segments.get(segment.id) == segment
+                && segment.live < COMPACTION_RATIO * segment.mapping.capacity()) {
+            segment.compacting = true;
+            compactor.execute(() -> compact(segment));
+        }
+    }
+
+    // Recopie les enregistrements encore utiles du segment dans le segment courant puis le supprime.
+    // Un nom en cours d'écriture reporte la suppression à la prochaine compaction.
+    private void compact(Segment segment) {
+        int moved = 0;
+        boolean deferred = false;
+        // Segments qui ont reçu des copies, forcés sur disque avant la suppression
+        Set<Segment> copies = new HashSet<>();
+        try {
+            int position = 0;
+            while (position < segment.end) {
+                Header header = readHeader(segment, position);
+                if (header == null) {
+                    position += ALIGNMENT;
+                    continue;
+                }
+                Location location;
+                boolean older;
+                synchronized (this) {
+                    location = index.get(header.name);
+                    older = segments.firstKey() < segment.id;
+                }
+                if (header.type == PUT && location != null && location.segment == segment && location.position == position) {
+                    ByteBuffer data = segment.mapping.slice(position + header.headerLength, header.length);
+                    throttle.acquire(header.size());
+                    Segment copy = append(header.name, PUT, data, header.crc, location);
+                    if (copy != null) {
+                        copies.add(copy);
+                        moved++;
+                    } else {
+                        deferred |= stillHere(header.name, segment);
+                    }
+                } else if (header.type == DELETE && location == null && older) {
+                    // Une version plus ancienne peut rester dans un segment précédent: la suppression est gardée
+                    Segment copy = append(header.name, DELETE, ByteBuffer.allocate(0), 0, NO_LOCATION);
+                    if (copy != null) {
+                        copies.add(copy);
+                    } else {
+                        deferred = true;
+                    }
+                }
+                position += header.size();
+            }
+            for (Segment copy : copies) {
+                copy.channel.force(false);
+            }
+        } catch (IOException e) {
+            log.accept("Erreur de compaction du segment " + segment.path.getFileName() + ": " + e.getMessage());
+            deferred = true;
+        }
+
+        synchronized (this) {
+            segment.compacting = false;
+            if (deferred) {
+                return;
+            }
+            segments.remove(segment.id);
+        }
+        try {
+            segment.channel.close();
+            // Les lectures en cours gardent leur projection, valable après la suppression du fichier
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            log.accept("Erreur de suppression du segment " + segment.path.getFileName() + ": " + e.getMessage());
+        }
+        log.accept("Segment " + segment.path.getFileName() + " compacté: " + moved + " partition(s) recopiée(s)");
+    }
+
+    private synchronized boolean stillHere(String name, Segment segment) {
+        Location location = index.get(name);
+        return location != null && location.segment == segment;
+    }
+
+    public synchronized String describe() {
+        long used = 0;
+        for (Segment segment : segments.values()) {
+            used += segment.live;
+        }
+        return segments.size() + " segment(s), " + index.size() + " partition(s), " + used + " octets utilisés";
+    }
+
+    private static int align(int size) {
+        return (size + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    private static int checksum(ByteBuffer data) {
+        CRC32C crc = new CRC32C();
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+}
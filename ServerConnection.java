@@ -0,0 +1,790 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Connexion d'un client vers le serveur principal.
+// Utilise le protocole binaire (voir Protocol) et se rabat sur l'ancien protocole
+// par sérialisation Java si le serveur ne le supporte pas.
+//
+// Un téléchargement ou un envoi par manifeste coupé par une erreur réseau reprend sur une nouvelle
+// connexion là où il s'était arrêté (au plus MAX_ATTEMPTS tentatives), au lieu de tout retransférer.
+public class ServerConnection implements Closeable {
+    // Serveurs pour lesquels la négociation a échoué: inutile de réessayer à chaque commande
+    private static final Set<String> legacyServers = ConcurrentHashMap.newKeySet();
+    // Tentatives par transfert (backup.client.attempts), espacées de RETRY_DELAY_MS, puis du double...
+    // (backup.client.retryDelay, en ms)
+    private static final int MAX_ATTEMPTS = Integer.getInteger("backup.client.attempts", 5);
+    private static final long RETRY_DELAY_MS = Long.getLong("backup.client.retryDelay", 1000);
+    // Fichiers envoyés par lots par uploadFiles: au plus BATCH_FILE_SIZE octets (backup.client.batchFileSize);
+    // les plus gros sont envoyés un par un, par manifeste
+    private static final long BATCH_FILE_SIZE = Long.getLong("backup.client.batchFileSize", 1024 * 1024);
+
+    private final String serverIp;
+    private final int serverPort;
+    private Socket socket;
+    private DataInputStream in;
+    private DataOutputStream out;
+    private int version;
+
+    // Fichier de la liste du serveur
+    public static final class FileInfo {
+        private final String name;
+        // -1 et Catalog.NO_DATE si le serveur ne les donne pas (serveurs plus anciens)
+        private final long size;
+        private final long modified;
+
+        FileInfo(String name, long size, long modified) {
+            this.name = name;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        public String getName() { return name; }
+        public long getSize() { return size; }
+        public long getModified() { return modified; }
+    }
+
+    // Liste (ou page de la liste) des fichiers du serveur, dans une version donnée
+    public static final class FileList {
+        // 0 si le serveur ne versionne pas sa liste: elle est alors toujours considérée modifiée
+        private final long version;
+        // Fichiers correspondant au préfixe demandé, toutes pages confondues
+        private final int total;
+        private final List<FileInfo> files;
+
+        FileList(long version, int total, List<FileInfo> files) {
+            this.version = version;
+            this.total = total;
+            this.files = files;
+        }
+
+        public long getVersion() { return version; }
+        public int getTotal() { return total; }
+        public List<FileInfo> getFiles() { return files; }
+    }
+
+    public ServerConnection(String serverIp, int serverPort) throws IOException {
+        this.serverIp = serverIp;
+        this.serverPort = serverPort;
+        connect();
+    }
+
+    private void connect() throws IOException {
+        String key = serverIp + ":" + serverPort;
+        if (legacyServers.contains(key)) {
+            return;
+        }
+        Socket candidate = new Socket(serverIp, serverPort);
+        try {
+            DataInputStream candidateIn = new DataInputStream(new BufferedInputStream(candidate.getInputStream()));
+            DataOutputStream candidateOut = new DataOutputStream(new BufferedOutputStream(candidate.getOutputStream()));
+            version = Protocol.clientHandshake(candidate, candidateIn, candidateOut);
+            socket = candidate;
+            in = candidateIn;
+            out = candidateOut;
+        } catch (ProtocolException e) {
+            candidate.close();
+            legacyServers.add(key);
+        } catch (IOException e) {
+            candidate.close();
+            throw e;
+        }
+    }
+
+    public boolean isLegacy() {
+        return socket == null;
+    }
+
+    // Nouvelle connexion après une coupure, après avoir attendu un peu plus à chaque tentative
+    private void reconnect(int attempt) throws IOException {
+        close();
+        socket = null;
+        try {
+            Thread.sleep(RETRY_DELAY_MS << Math.min(attempt - 1, 10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Reprise interrompue");
+        }
+        connect();
+        if (isLegacy() || version < Protocol.VERSION_RESUME) {
+            throw new IOException("Le serveur ne permet plus la reprise du transfert");
+        }
+    }
+
+    // Vrai si l'erreur vient de la connexion (à reprendre) et pas d'un refus du serveur
+    private static boolean isInterruption(IOException e) {
+        return !(e instanceof Protocol.RemoteException) && !(e instanceof ProtocolException)
+                && !(e instanceof NotResumableException) && !Thread.currentThread().isInterrupted();
+    }
+
+    public void upload(String fileName, long fileSize, InputStream data) throws IOException {
+        if (isLegacy()) {
+            legacyUpload(fileName, fileSize, data);
+            return;
+        }
+        Protocol.writeFrame(out, Protocol.UPLOAD, header -> {
+            header.writeUTF(fileName);
+            header.writeLong(fileSize);
+        });
+        ChunkedOutputStream chunks = new ChunkedOutputStream(out);
+        data.transferTo(chunks);
+        chunks.finish();
+        Protocol.readResponse(in);
+    }
+
+    // Envoi d'un fichier local. Si le serveur le permet, le fichier est d'abord décrit par les
+    // empreintes de ses blocs (UPLOAD_MANIFEST) et seuls les blocs que le serveur n'a pas déjà sont
+    // transmis; sinon le fichier est envoyé en entier. Retourne le nombre d'octets transmis.
+    public long uploadFile(Path file) throws IOException {
+        return uploadFile(file, file.getFileName().toString());
+    }
+
+    // Même chose, enregistré sous fileName sur le serveur
+    public long uploadFile(Path file, String fileName) throws IOException {
+        return uploadFile(file, fileName, null);
+    }
+
+    // Même chose; digest, si non null, reçoit le contenu lu pendant l'envoi
+    private long uploadFile(Path file, String fileName, MessageDigest digest) throws IOException {
+        long fileSize = Files.size(file);
+        if (!isLegacy() && version >= Protocol.VERSION_MANIFEST) {
+            try {
+                return uploadManifest(fileName, fileSize, file, digest);
+            } catch (ServerRefusedException e) {
+                // Serveur configuré sans déduplication: envoi complet sur la même connexion
+            }
+        }
+        try (InputStream fileIn = digesting(Files.newInputStream(file), digest)) {
+            upload(fileName, fileSize, fileIn);
+        }
+        return fileSize;
+    }
+
+    // Envoi de plusieurs fichiers locaux sur cette connexion. Les petits fichiers partent par lots
+    // (BATCH_UPLOAD), sans attendre de réponse entre deux fichiers; les autres avec uploadFile.
+    // Retourne, dans l'ordre de files, null pour chaque fichier enregistré, le message d'erreur sinon.
+    public List<String> uploadFiles(List<Path> files) throws IOException {
+        List<String> fileNames = new ArrayList<>(files.size());
+        for (Path file : files) {
+            fileNames.add(file.getFileName().toString());
+        }
+        return uploadFiles(files, fileNames);
+    }
+
+    // Même chose, chaque fichier enregistré sous le nom correspondant de fileNames
+    public List<String> uploadFiles(List<Path> files, List<String> fileNames) throws IOException {
+        return uploadFiles(files, fileNames, null);
+    }
+
+    // Même chose; hashes, si non null, reçoit l'empreinte SHA-256 (en hexadécimal) du contenu envoyé
+    // de chaque fichier enregistré, calculée pendant sa lecture pour l'envoi
+    public List<String> uploadFiles(List<Path> files, List<String> fileNames, String[] hashes) throws IOException {
+        String[] errors = new String[files.size()];
+        long[] sizes = new long[files.size()];
+        List<Integer> batch = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            try {
+                sizes[i] = Files.size(files.get(i));
+            } catch (IOException e) {
+                errors[i] = "Fichier illisible: " + e.getMessage();
+                continue;
+            }
+            if (isLegacy() || version < Protocol.VERSION_BATCH || sizes[i] > BATCH_FILE_SIZE) {
+                MessageDigest digest = hashes == null ? null : newSha256();
+                try {
+                    uploadFile(files.get(i), fileNames.get(i), digest);
+                    if (digest != null) {
+                        hashes[i] = HexFormat.of().formatHex(digest.digest());
+                    }
+                } catch (Protocol.RemoteException | NoSuchFileException e) {
+                    errors[i] = e.getMessage();
+                }
+                continue;
+            }
+            batch.add(i);
+            if (batch.size() == Protocol.MAX_BATCH_FILES) {
+                uploadBatch(files, fileNames, sizes, batch, errors, hashes);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            uploadBatch(files, fileNames, sizes, batch, errors, hashes);
+        }
+        return Arrays.asList(errors);
+    }
+
+    // Un lot: renvoyé en entier après une coupure (les fichiers déjà enregistrés le sont à nouveau,
+    // leurs blocs n'étant alors pas restockés)
+    private void uploadBatch(List<Path> files, List<String> fileNames, long[] sizes, List<Integer> batch, String[] errors,
+            String[] hashes) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                if (attempt > 1) {
+                    reconnect(attempt - 1);
+                }
+                Protocol.writeFrame(out, Protocol.BATCH_UPLOAD, header -> {
+                    header.writeInt(batch.size());
+                    for (int i : batch) {
+                        header.writeUTF(fileNames.get(i));
+                        header.writeLong(sizes[i]);
+                    }
+                });
+                List<Integer> unreadable = new ArrayList<>();
+                for (int i : batch) {
+                    ChunkedOutputStream chunks = new ChunkedOutputStream(out);
+                    MessageDigest digest = hashes == null ? null : newSha256();
+                    InputStream fileIn;
+                    try {
+                        fileIn = digesting(Files.newInputStream(files.get(i)), digest);
+                    } catch (IOException e) {
+                        // Supprimé depuis: contenu vide, le serveur refuse le fichier incomplet
+                        errors[i] = "Fichier illisible: " + e.getMessage();
+                        unreadable.add(i);
+                        chunks.finish();
+                        continue;
+                    }
+                    try (fileIn) {
+                        fileIn.transferTo(chunks);
+                    }
+                    chunks.finish();
+                    if (digest != null) {
+                        hashes[i] = HexFormat.of().formatHex(digest.digest());
+                    }
+                }
+                out.flush();
+                DataInputStream header = Protocol.readResponse(in).header;
+                if (header.readInt() != batch.size()) {
+                    throw new ProtocolException("Réponse inattendue à l'envoi groupé");
+                }
+                for (int i : batch) {
+                    String error = header.readUTF();
+                    if (!unreadable.contains(i)) {
+                        errors[i] = error.isEmpty() ? null : error;
+                    }
+                }
+                return;
+            } catch (IOException e) {
+                if (attempt >= MAX_ATTEMPTS || !isInterruption(e)) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private long uploadManifest(String fileName, long fileSize, Path file, MessageDigest digest) throws IOException {
+        // Première lecture: découpage (le même que celui du serveur), empreintes des blocs et, si
+        // demandée, celle du fichier entier
+        List<byte[]> digests = new ArrayList<>();
+        List<long[]> ranges = new ArrayList<>();
+        try (InputStream fileIn = new BufferedInputStream(digesting(Files.newInputStream(file), digest))) {
+            ContentChunker chunker = new ContentChunker(fileIn, fileSize, ContentChunker.AVERAGE_SIZE);
+            MessageDigest sha256 = newSha256();
+            long offset = 0;
+            byte[] chunk;
+            while ((chunk = chunker.next()) != null) {
+                digests.add(sha256.digest(chunk));
+                ranges.add(new long[] {offset, chunk.length});
+                offset += chunk.length;
+            }
+        }
+
+        Protocol.writeFrame(out, Protocol.UPLOAD_MANIFEST, header -> {
+            header.writeUTF(fileName);
+            header.writeLong(fileSize);
+            header.writeInt(digests.size());
+        });
+        ChunkedOutputStream manifest = new ChunkedOutputStream(out);
+        DataOutputStream manifestOut = new DataOutputStream(manifest);
+        for (int i = 0; i < digests.size(); i++) {
+            manifestOut.write(digests.get(i));
+            manifestOut.writeInt((int) ranges.get(i)[1]);
+        }
+        manifestOut.flush();
+        manifest.finish();
+
+        Protocol.Frame response = Protocol.readFrame(in);
+        if (response != null && response.opcode == Protocol.ERROR) {
+            throw new ServerRefusedException(response.header.readUTF());
+        }
+        if (response == null || response.opcode != Protocol.OK) {
+            throw new ProtocolException("Réponse inattendue au manifeste");
+        }
+        byte[] missing = new byte[response.header.readInt()];
+        response.header.readFully(missing);
+        // Serveur sans reprise: pas d'identifiant de session
+        long session = response.header.available() >= 8 ? response.header.readLong() : 0;
+        long sent = 0;
+        for (int i = 0; i < ranges.size(); i++) {
+            if ((missing[i / 8] & (1 << (i % 8))) != 0) {
+                sent += ranges.get(i)[1];
+            }
+        }
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                if (attempt > 1) {
+                    // Le serveur indique les blocs qu'il n'a pas encore reçus
+                    reconnect(attempt - 1);
+                    Protocol.writeFrame(out, Protocol.UPLOAD_RESUME, header -> header.writeLong(session));
+                    out.flush();
+                    DataInputStream header = Protocol.readResponse(in).header;
+                    missing = new byte[header.readInt()];
+                    header.readFully(missing);
+                }
+                sendChunks(file, ranges, missing);
+                Protocol.readResponse(in);
+                return sent;
+            } catch (IOException e) {
+                if (session == 0 || attempt >= MAX_ATTEMPTS || !isInterruption(e)) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    // Deuxième lecture: seulement les blocs du masque, dans l'ordre
+    private void sendChunks(Path file, List<long[]> ranges, byte[] missing) throws IOException {
+        ChunkedOutputStream chunks = new ChunkedOutputStream(out);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            for (int i = 0; i < ranges.size(); i++) {
+                if ((missing[i / 8] & (1 << (i % 8))) == 0) {
+                    continue;
+                }
+                ByteBuffer buffer = ByteBuffer.allocate((int) ranges.get(i)[1]);
+                long position = ranges.get(i)[0];
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0) {
+                        throw new NotResumableException("Le fichier a été tronqué pendant l'envoi");
+                    }
+                }
+                chunks.write(buffer.array());
+            }
+        }
+        chunks.finish();
+    }
+
+    // Le contenu lu passe aussi par digest, remis à zéro (relecture après une reprise ou un refus)
+    private static InputStream digesting(InputStream in, MessageDigest digest) {
+        if (digest == null) {
+            return in;
+        }
+        digest.reset();
+        return new DigestInputStream(in, digest);
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Le serveur a refusé l'envoi par manifeste (sans rien lire d'autre): la connexion reste utilisable
+    private static final class ServerRefusedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ServerRefusedException(String message) {
+            super(message);
+        }
+    }
+
+    // Le transfert ne peut pas reprendre là où il s'était arrêté
+    private static final class NotResumableException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        NotResumableException(String message) {
+            super(message);
+        }
+    }
+
+    // Retourne le nombre d'octets écrits dans target. Après une coupure, le téléchargement reprend
+    // à la suite de ce qui a déjà été écrit, si le fichier n'a pas changé sur le serveur entre-temps.
+    public long download(String fileName, OutputStream target) throws IOException {
+        return download(fileName, target, null);
+    }
+
+    // Comme download(fileName, OutputStream), dans un fichier: si le serveur demande de reprendre
+    // plus tôt (données reçues d'une partition corrompue), la fin du fichier est effacée et réécrite
+    public long download(String fileName, FileChannel target) throws IOException {
+        return download(fileName, Channels.newOutputStream(target), target);
+    }
+
+    // Téléchargement de plusieurs fichiers dans directory, sous leur nom, sur cette connexion: une
+    // seule demande (BATCH_DOWNLOAD) par lot de Protocol.MAX_BATCH_FILES fichiers, le serveur les
+    // envoie l'un après l'autre. Après une coupure, le lot reprend au fichier interrompu. Retourne,
+    // dans l'ordre de fileNames, null pour chaque fichier téléchargé, le message d'erreur sinon.
+    public List<String> downloadFiles(List<String> fileNames, Path directory) throws IOException {
+        String[] errors = new String[fileNames.size()];
+        List<Integer> pending = new ArrayList<>();
+        List<Path> targets = new ArrayList<>(fileNames.size());
+        for (int i = 0; i < fileNames.size(); i++) {
+            Path target = target(directory, fileNames.get(i));
+            targets.add(target);
+            if (target == null) {
+                errors[i] = "Nom de fichier invalide: " + fileNames.get(i);
+            } else {
+                pending.add(i);
+            }
+        }
+        if (isLegacy() || version < Protocol.VERSION_BATCH) {
+            for (int i : pending) {
+                errors[i] = downloadOne(fileNames.get(i), targets.get(i));
+            }
+            return Arrays.asList(errors);
+        }
+
+        int done = 0;
+        for (int attempt = 1; done < pending.size(); ) {
+            List<Integer> batch = pending.subList(done, Math.min(pending.size(), done + Protocol.MAX_BATCH_FILES));
+            try {
+                Protocol.writeFrame(out, Protocol.BATCH_DOWNLOAD, header -> {
+                    header.writeInt(batch.size());
+                    for (int i : batch) {
+                        header.writeUTF(fileNames.get(i));
+                    }
+                });
+                out.flush();
+                for (int i : batch) {
+                    errors[i] = receiveBatchFile(targets.get(i));
+                    done++;
+                }
+            } catch (IOException e) {
+                if (attempt >= MAX_ATTEMPTS || !isInterruption(e)) {
+                    deleteQuietly(targets.get(pending.get(done)));
+                    throw e;
+                }
+                reconnect(attempt++);
+            }
+        }
+        return Arrays.asList(errors);
+    }
+
+    // Une réponse de BATCH_DOWNLOAD: null si le fichier a été écrit, le message d'erreur sinon
+    private String receiveBatchFile(Path target) throws IOException {
+        Protocol.Frame response = Protocol.readFrame(in);
+        if (response == null) {
+            throw new EOFException("Connexion fermée par le serveur");
+        }
+        if (response.opcode == Protocol.ERROR) {
+            return response.header.readUTF();
+        }
+        if (response.opcode != Protocol.OK) {
+            throw new ProtocolException("Réponse inattendue: " + response.opcode);
+        }
+        long size = response.header.readLong();
+        FileChannel fileOut;
+        try {
+            Files.createDirectories(target.getParent());
+            fileOut = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            // Le contenu est lu quand même: la réponse suivante le suit
+            copyExactly(in, OutputStream.nullOutputStream(), size);
+            return "Impossible d'écrire " + target + ": " + e.getMessage();
+        }
+        try (fileOut) {
+            copyExactly(in, Channels.newOutputStream(fileOut), size);
+        }
+        return null;
+    }
+
+    // Serveurs d'avant VERSION_BATCH: un DOWNLOAD par fichier, toujours sur cette connexion
+    private String downloadOne(String fileName, Path target) throws IOException {
+        try {
+            Files.createDirectories(target.getParent());
+            try (FileChannel fileOut = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                download(fileName, fileOut);
+            }
+            return null;
+        } catch (Protocol.RemoteException e) {
+            deleteQuietly(target);
+            return e.getMessage();
+        }
+    }
+
+    // Emplacement de fileName dans directory, ou null si le nom en sortirait
+    private static Path target(Path directory, String fileName) {
+        try {
+            Path base = directory.toAbsolutePath().normalize();
+            Path target = base.resolve(fileName).normalize();
+            return target.startsWith(base) && !target.equals(base) ? target : null;
+        } catch (InvalidPathException e) {
+            return null;
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            // Fichier partiel laissé en place
+        }
+    }
+
+    private long download(String fileName, OutputStream target, FileChannel file) throws IOException {
+        if (isLegacy()) {
+            return legacyDownload(fileName, target);
+        }
+        if (version < Protocol.VERSION_RESUME) {
+            Protocol.writeFrame(out, Protocol.DOWNLOAD, header -> header.writeUTF(fileName));
+            out.flush();
+            long size = Protocol.readResponse(in).header.readLong();
+            copyExactly(in, target, size);
+            return size;
+        }
+
+        byte[] buffer = new byte[ChunkedOutputStream.DEFAULT_CHUNK_SIZE];
+        long received = 0;
+        long fileVersion = 0;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                if (attempt > 1) {
+                    reconnect(attempt - 1);
+                }
+                long offset = received;
+                long expectedVersion = fileVersion;
+                Protocol.writeFrame(out, Protocol.DOWNLOAD, header -> {
+                    header.writeUTF(fileName);
+                    header.writeLong(offset);
+                    header.writeLong(expectedVersion);
+                });
+                out.flush();
+                DataInputStream header = Protocol.readResponse(in).header;
+                long size = header.readLong();
+                long start = header.readLong();
+                fileVersion = header.readLong();
+                // Même version du fichier: seules les données peut-être corrompues sont effacées
+                if (start < received && fileVersion == expectedVersion && file != null) {
+                    file.truncate(start);
+                    file.position(start);
+                    received = start;
+                }
+                if (start != received) {
+                    throw new NotResumableException("Le fichier a été modifié sur le serveur pendant le téléchargement");
+                }
+                while (received < size) {
+                    int n = in.read(buffer, 0, (int) Math.min(buffer.length, size - received));
+                    if (n < 0) {
+                        throw new EOFException("Connexion interrompue (" + (size - received) + " octets manquants)");
+                    }
+                    target.write(buffer, 0, n);
+                    received += n;
+                }
+                return size;
+            } catch (IOException e) {
+                if (attempt >= MAX_ATTEMPTS || !isInterruption(e)) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    public List<String> listFiles() throws IOException {
+        List<String> names = new ArrayList<>();
+        for (FileInfo file : listFiles("", 0).getFiles()) {
+            names.add(file.getName());
+        }
+        return names;
+    }
+
+    // Tous les fichiers dont le nom commence par prefix, triés par nom, demandés page par page; null
+    // si la liste n'a pas changé depuis knownVersion (version d'une liste précédente, 0 sinon)
+    public FileList listFiles(String prefix, long knownVersion) throws IOException {
+        if (isLegacy() || version < Protocol.VERSION_LIST) {
+            List<FileInfo> files = new ArrayList<>();
+            for (String name : isLegacy() ? legacyListFiles() : listAllNames()) {
+                if (name.startsWith(prefix)) {
+                    files.add(new FileInfo(name, -1, Catalog.NO_DATE));
+                }
+            }
+            files.sort(Comparator.comparing(FileInfo::getName));
+            return new FileList(0, files.size(), files);
+        }
+        for (int attempt = 1; ; attempt++) {
+            FileList first = listFiles(prefix, 0, Protocol.MAX_LIST_PAGE, knownVersion);
+            if (first == null) {
+                return null;
+            }
+            List<FileInfo> files = new ArrayList<>(first.getFiles());
+            boolean changed = false;
+            while (files.size() < first.getTotal() && !changed) {
+                FileList page = listFiles(prefix, files.size(), Protocol.MAX_LIST_PAGE, 0);
+                files.addAll(page.getFiles());
+                changed = page.getVersion() != first.getVersion() || page.getFiles().isEmpty();
+            }
+            // Liste modifiée entre deux pages: les pages ne se suivent plus, on recommence
+            if (!changed || attempt >= MAX_ATTEMPTS) {
+                return new FileList(first.getVersion(), first.getTotal(), files);
+            }
+        }
+    }
+
+    // Une page: au plus limit fichiers (et au plus Protocol.MAX_LIST_PAGE) à partir du offset-ième;
+    // null si la liste n'a pas changé depuis knownVersion. Serveurs à partir de VERSION_LIST.
+    public FileList listFiles(String prefix, int offset, int limit, long knownVersion) throws IOException {
+        if (isLegacy() || version < Protocol.VERSION_LIST) {
+            throw new IOException("Le serveur ne donne pas la liste des fichiers par pages");
+        }
+        Protocol.writeFrame(out, Protocol.LIST_FILES, header -> {
+            header.writeUTF(prefix);
+            header.writeInt(offset);
+            header.writeInt(limit);
+            header.writeLong(knownVersion);
+        });
+        out.flush();
+        DataInputStream header = Protocol.readResponse(in).header;
+        long listVersion = header.readLong();
+        if (!header.readBoolean()) {
+            return null;
+        }
+        int total = header.readInt();
+        int count = header.readInt();
+        List<FileInfo> files = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            files.add(new FileInfo(header.readUTF(), header.readLong(), header.readLong()));
+        }
+        return new FileList(listVersion, total, files);
+    }
+
+    // Serveurs d'avant VERSION_LIST: tous les noms d'un coup
+    private List<String> listAllNames() throws IOException {
+        Protocol.writeFrame(out, Protocol.LIST_FILES, null);
+        out.flush();
+        DataInputStream header = Protocol.readResponse(in).header;
+        int count = header.readInt();
+        List<String> files = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            files.add(header.readUTF());
+        }
+        return files;
+    }
+
+    public void delete(String fileName) throws IOException {
+        if (isLegacy()) {
+            legacyDelete(fileName);
+            return;
+        }
+        Protocol.writeFrame(out, Protocol.DELETE, header -> header.writeUTF(fileName));
+        out.flush();
+        Protocol.readResponse(in);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (socket != null) {
+            socket.close();
+        }
+    }
+
+    // --- Ancien protocole: une connexion par commande, messages sérialisés ---
+
+    private void legacyUpload(String fileName, long fileSize, InputStream data) throws IOException {
+        try (Socket legacySocket = new Socket(serverIp, serverPort);
+             ObjectOutputStream legacyOut = new ObjectOutputStream(legacySocket.getOutputStream());
+             ObjectInputStream legacyIn = new ObjectInputStream(legacySocket.getInputStream())) {
+
+            legacyOut.writeObject("CLIENT");
+            legacyOut.writeObject("UPLOAD_STREAM");
+            legacyOut.writeObject(fileName);
+            legacyOut.writeObject(fileSize);
+
+            ChunkedOutputStream chunks = new ChunkedOutputStream(legacyOut);
+            data.transferTo(chunks);
+            chunks.finish();
+
+            String response = (String) legacyIn.readObject();
+            if (!"SUCCESS".equals(response)) {
+                throw new IOException(response);
+            }
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private long legacyDownload(String fileName, OutputStream target) throws IOException {
+        try (Socket legacySocket = new Socket(serverIp, serverPort);
+             ObjectOutputStream legacyOut = new ObjectOutputStream(legacySocket.getOutputStream());
+             ObjectInputStream legacyIn = new ObjectInputStream(legacySocket.getInputStream())) {
+
+            legacyOut.writeObject("CLIENT");
+            legacyOut.writeObject("DOWNLOAD_STREAM");
+            legacyOut.writeObject(fileName);
+            legacyOut.flush();
+
+            String response = (String) legacyIn.readObject();
+            if (!"OK".equals(response)) {
+                throw new IOException("Le fichier n'a pas pu être récupéré du serveur");
+            }
+            // Le contenu suit l'entête, brut sur la socket
+            long size = legacyIn.readLong();
+            copyExactly(legacySocket.getInputStream(), target, size);
+            return size;
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private List<String> legacyListFiles() throws IOException {
+        try (Socket legacySocket = new Socket(serverIp, serverPort);
+             ObjectOutputStream legacyOut = new ObjectOutputStream(legacySocket.getOutputStream());
+             ObjectInputStream legacyIn = new ObjectInputStream(legacySocket.getInputStream())) {
+
+            legacyOut.writeObject("CLIENT");
+            legacyOut.writeObject("LIST_FILES");
+
+            @SuppressWarnings("unchecked")
+            List<String> files = (List<String>) legacyIn.readObject();
+            return files;
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void legacyDelete(String fileName) throws IOException {
+        try (Socket legacySocket = new Socket(serverIp, serverPort);
+             ObjectOutputStream legacyOut = new ObjectOutputStream(legacySocket.getOutputStream());
+             ObjectInputStream legacyIn = new ObjectInputStream(legacySocket.getInputStream())) {
+
+            legacyOut.writeObject("CLIENT");
+            legacyOut.writeObject("DELETE");
+            legacyOut.writeObject(fileName);
+
+            String response = (String) legacyIn.readObject();
+            if (!"SUCCESS".equals(response)) {
+                throw new IOException(response);
+            }
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    static void copyExactly(InputStream in, OutputStream out, long size) throws IOException {
+        byte[] buffer = new byte[ChunkedOutputStream.DEFAULT_CHUNK_SIZE];
+        long remaining = size;
+        while (remaining > 0) {
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (n < 0) {
+                throw new EOFException("Connexion interrompue (" + remaining + " octets manquants)");
+            }
+            out.write(buffer, 0, n);
+            remaining -= n;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+// Téléchargement d'un fichier codé Reed-Solomon: toutes les partitions sont lues en parallèle
+// (un thread par partition, voir read) et chaque bande est reconstituée dès que k partitions
+// ont fourni son bloc. Une partition lente ou perdue ne retarde donc pas le téléchargement tant
+// que k autres répondent; ses blocs arrivés trop tard sont simplement ignorés.
+//
+// Au plus capacity blocs en avance sont gardés en mémoire par partition.
+//
+// Une partition n'est vérifiée (CRC32C) qu'une fois lue jusqu'au bout: avant d'envoyer la dernière
+// bande, awaitUsed attend la fin de toutes les partitions qui ont servi.
+public class ShardCollector {
+    private final ReedSolomon code;
+    private final long fileSize;
+    private final int capacity;
+    private final List<ArrayDeque<byte[]>> blocks;
+    // Bande du premier bloc en attente de chaque partition
+    private final long[] firstStripe;
+    private final IOException[] failures;
+    // Partitions dont au moins un bloc a servi, et partitions lues jusqu'au bout
+    private final boolean[] used;
+    private final boolean[] finished;
+    private long nextStripe;
+    private long reconstructed;
+    private boolean closed;
+
+    public ShardCollector(ReedSolomon code, long fileSize, int capacity) {
+        this.code = code;
+        this.fileSize = fileSize;
+        this.capacity = capacity;
+        this.blocks = new ArrayList<>(code.getTotalShards());
+        for (int i = 0; i < code.getTotalShards(); i++) {
+            blocks.add(new ArrayDeque<>());
+        }
+        this.firstStripe = new long[code.getTotalShards()];
+        this.failures = new IOException[code.getTotalShards()];
+        this.used = new boolean[code.getTotalShards()];
+        this.finished = new boolean[code.getTotalShards()];
+    }
+
+    // Côté lecture: découpe la partition shard en blocs, bande par bande, jusqu'à la fin du fichier
+    // ou jusqu'à close()
+    public void read(int shard, InputStream in) throws IOException {
+        DataInputStream shardIn = new DataInputStream(in);
+        long stripes = code.stripeCount(fileSize);
+        for (long stripe = 0; stripe < stripes; stripe++) {
+            byte[] block = new byte[code.blockSize(code.stripeLength(fileSize, stripe))];
+            shardIn.readFully(block);
+            if (!offer(shard, block)) {
+                return;
+            }
+        }
+    }
+
+    private synchronized boolean offer(int shard, byte[] block) throws InterruptedIOException {
+        while (!closed && blocks.get(shard).size() >= capacity) {
+            waitForChange(0);
+        }
+        if (closed) {
+            return false;
+        }
+        blocks.get(shard).addLast(block);
+        notifyAll();
+        return true;
+    }
+
+    // Côté lecture: la partition a été lue (et vérifiée) jusqu'au bout
+    public synchronized void finish(int shard) {
+        finished[shard] = true;
+        notifyAll();
+    }
+
+    // Côté lecture: la partition n'est plus lisible (serveur arrêté, partition perdue...)
+    public synchronized void fail(int shard, IOException cause) {
+        failures[shard] = cause;
+        notifyAll();
+    }
+
+    // Côté envoi: données de la bande suivante, ou null à la fin du fichier
+    public byte[] nextStripe(long timeoutMs) throws IOException {
+        if (nextStripe == code.stripeCount(fileSize)) {
+            return null;
+        }
+        byte[][] shards = new byte[blocks.size()][];
+        synchronized (this) {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            while (true) {
+                int available = 0;
+                int pending = 0;
+                dropLate();
+                for (int i = 0; i < blocks.size(); i++) {
+                    if (!blocks.get(i).isEmpty()) {
+                        available++;
+                    } else if (failures[i] == null) {
+                        pending++;
+                    }
+                }
+                if (available >= code.getDataShards()) {
+                    break;
+                }
+                if (available + pending < code.getDataShards()) {
+                    throw unavailable();
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new IOException("Délai dépassé en attendant les serveurs secondaires");
+                }
+                // Les lecteurs bloqués par des blocs en retard (retirés ci-dessus) peuvent continuer
+                notifyAll();
+                waitForChange(remaining);
+            }
+            // Les partitions de données d'abord: sans perte, aucun calcul n'est nécessaire
+            int taken = 0;
+            for (int i = 0; i < blocks.size() && taken < code.getDataShards(); i++) {
+                if (!blocks.get(i).isEmpty()) {
+                    shards[i] = blocks.get(i).pollFirst();
+                    firstStripe[i]++;
+                    used[i] = true;
+                    taken++;
+                }
+            }
+            notifyAll();
+        }
+
+        int stripeLength = code.stripeLength(fileSize, nextStripe);
+        int blockSize = code.blockSize(stripeLength);
+        byte[][] data = code.decode(shards, blockSize);
+        for (int i = 0; i < code.getDataShards(); i++) {
+            if (shards[i] == null) {
+                reconstructed++;
+                break;
+            }
+        }
+        byte[] stripe = new byte[stripeLength];
+        for (int i = 0; i < data.length; i++) {
+            int offset = i * blockSize;
+            System.arraycopy(data[i], 0, stripe, offset, Math.max(0, Math.min(blockSize, stripeLength - offset)));
+        }
+        nextStripe++;
+        return stripe;
+    }
+
+    // Côté envoi: attend que chaque partition qui a servi soit lue jusqu'au bout ou en échec
+    public synchronized void awaitUsed(long timeoutMs) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        for (int i = 0; i < used.length; i++) {
+            while (used[i] && !finished[i] && failures[i] == null) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new IOException("Délai dépassé en attendant les serveurs secondaires");
+                }
+                // Les lecteurs en retard doivent pouvoir aller jusqu'au bout
+                dropLate();
+                notifyAll();
+                waitForChange(remaining);
+            }
+        }
+    }
+
+    // Blocs de bandes déjà envoyées: la partition était en retard
+    private void dropLate() {
+        for (int i = 0; i < blocks.size(); i++) {
+            while (firstStripe[i] < nextStripe && !blocks.get(i).isEmpty()) {
+                blocks.get(i).pollFirst();
+                firstStripe[i]++;
+            }
+        }
+    }
+
+    // Bandes reconstituées à partir de la parité
+    public long getReconstructed() {
+        return reconstructed;
+    }
+
+    // Arrête les lectures encore en cours
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    private IOException unavailable() {
+        for (IOException failure : failures) {
+            if (failure != null) {
+                return new IOException("Trop de partitions indisponibles pour reconstituer le fichier: " + failure.getMessage(), failure);
+            }
+        }
+        return new IOException("Trop de partitions indisponibles pour reconstituer le fichier");
+    }
+
+    private void waitForChange(long timeoutMs) throws InterruptedIOException {
+        try {
+            wait(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Téléchargement interrompu");
+        }
+    }
+}
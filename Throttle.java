@@ -0,0 +1,64 @@
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+// Limite de débit partagée par tous les flux passés à wrap(): une lecture attend quand les octets
+// déjà lus dépassent bytesPerSecond en moyenne. Les premiers BURST_NANOS de débit peuvent être
+// consommés d'un coup, après une pause par exemple.
+//
+// bytesPerSecond <= 0: pas de limite.
+public class Throttle {
+    private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final long bytesPerSecond;
+    // Instant où tout le débit déjà consommé aura été "remboursé"
+    private long nextFree = System.nanoTime();
+
+    public Throttle(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public InputStream wrap(InputStream in) {
+        if (bytesPerSecond <= 0) {
+            return in;
+        }
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    acquire(1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int n = super.read(buffer, offset, length);
+                if (n > 0) {
+                    acquire(n);
+                }
+                return n;
+            }
+        };
+    }
+
+    public void acquire(long bytes) throws InterruptedIOException {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            nextFree = Math.max(nextFree, now - BURST_NANOS) + bytes * 1_000_000_000L / bytesPerSecond;
+            waitNanos = nextFree - now;
+        }
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Transfert interrompu");
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Exécution des connexions entrantes avec un nombre de threads et une file d'attente bornés.
+//
+// Configuration (propriétés système):
+//   backup.workers.threads  nombre de threads de traitement (défaut: 64)
+//   backup.workers.queue    connexions en attente au-delà desquelles on refuse (défaut: 256)
+//   backup.workers.virtual  true pour un thread virtuel par connexion (Java 21+), limité
+//                           à threads + queue connexions simultanées
+// Une tâche refusée n'est pas exécutée: l'appelant doit répondre au client et fermer la connexion.
+public class WorkerPool {
+    private final String name;
+    private final ThreadPoolExecutor pool;
+    private final ExecutorService virtualExecutor;
+    private final Semaphore virtualPermits;
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicInteger peakQueueDepth = new AtomicInteger();
+
+    public WorkerPool(String name) {
+        this(name,
+             Integer.getInteger("backup.workers.threads", 64),
+             Integer.getInteger("backup.workers.queue", 256),
+             Boolean.getBoolean("backup.workers.virtual"));
+    }
+
+    public WorkerPool(String name, int threads, int queueCapacity, boolean virtualThreads) {
+        this.name = name;
+        ExecutorService virtual = virtualThreads ? newVirtualThreadExecutor() : null;
+        if (virtual != null) {
+            this.virtualExecutor = virtual;
+            this.virtualPermits = new Semaphore(threads + queueCapacity);
+            this.pool = null;
+        } else {
+            AtomicInteger counter = new AtomicInteger();
+            this.pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    queueCapacity > 0 ? new ArrayBlockingQueue<>(queueCapacity) : new SynchronousQueue<>(),
+                    r -> {
+                        Thread thread = new Thread(r, name + "-" + counter.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    },
+                    new ThreadPoolExecutor.AbortPolicy());
+            this.pool.allowCoreThreadTimeOut(true);
+            this.virtualExecutor = null;
+            this.virtualPermits = null;
+        }
+    }
+
+    // Threads virtuels disponibles à partir de Java 21: recherchés par réflexion pour compiler en Java 17
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    // Retourne false si la tâche est refusée (file pleine)
+    public boolean submit(Runnable task) {
+        Runnable tracked = () -> {
+            active.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                active.decrementAndGet();
+                completed.incrementAndGet();
+                if (virtualPermits != null) {
+                    virtualPermits.release();
+                }
+            }
+        };
+
+        try {
+            if (virtualExecutor != null) {
+                if (!virtualPermits.tryAcquire()) {
+                    rejected.incrementAndGet();
+                    return false;
+                }
+                virtualExecutor.execute(tracked);
+            } else {
+                pool.execute(tracked);
+                peakQueueDepth.accumulateAndGet(pool.getQueue().size(), Math::max);
+            }
+            return true;
+        } catch (RejectedExecutionException e) {
+            if (virtualPermits != null) {
+                virtualPermits.release();
+            }
+            rejected.incrementAndGet();
+            return false;
+        }
+    }
+
+    public boolean isVirtual() {
+        return virtualExecutor != null;
+    }
+
+    public int getQueueDepth() {
+        return pool != null ? pool.getQueue().size() : 0;
+    }
+
+    public int getPeakQueueDepth() {
+        return peakQueueDepth.get();
+    }
+
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public String metrics() {
+        return name + (isVirtual() ? " (threads virtuels)" : "")
+                + " - actives: " + getActiveCount()
+                + ", en attente: " + getQueueDepth() + " (max " + getPeakQueueDepth() + ")"
+                + ", traitées: " + getCompletedCount()
+                + ", refusées: " + getRejectedCount();
+    }
+}